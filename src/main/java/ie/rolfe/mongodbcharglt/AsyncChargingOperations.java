@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt;
+
+import com.mongodb.MongoException;
+import com.mongodb.TransactionOptions;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.model.Projections;
+import com.mongodb.reactivestreams.client.ClientSession;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import ie.rolfe.mongodbcharglt.documents.ChargingCodecProvider;
+import ie.rolfe.mongodbcharglt.documents.UserTable;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+
+/**
+ * Asynchronous versions of the KV and charging operations in BaseChargingDemo,
+ * using the reactive streams driver. Each method returns as soon as the first
+ * request is on the wire and completes its future when the transaction has
+ * committed, so one thread can keep thousands of operations in flight.
+ */
+public class AsyncChargingOperations {
+
+    /**
+     * How many times we retry a transaction that failed with a
+     * TransientTransactionError. The sync driver's withTransaction does this for
+     * us.
+     */
+    public static final int MAX_TRANSACTION_ATTEMPTS = 5;
+
+    static final TransactionOptions TXN_OPTIONS = TransactionOptions.builder()
+            .writeConcern(WriteConcern.MAJORITY)
+            .build();
+
+    /**
+     * Connect to MongoDB using a comma delimited hostname list.
+     *
+     * @param connectionString list of hostnames
+     * @return an instance of the reactive streams client
+     */
+    public static MongoClient connectMongoDBAsync(String connectionString) {
+
+        String uri = "mongodb://" + connectionString + ":" + BaseChargingDemo.MONGO_DEFAULT_PORT + "/";
+        MongoClient mongoClient = null;
+
+        // Create a new client and connect to the server
+        try {
+            mongoClient = com.mongodb.reactivestreams.client.MongoClients.create(uri);
+        } catch (MongoException e) {
+            e.printStackTrace();
+        }
+
+        return mongoClient;
+    }
+
+    static MongoCollection<Document> getCollection(MongoClient asyncClient) {
+        return asyncClient.getDatabase(BaseChargingDemo.CHARGLT_DATABASE).getCollection(BaseChargingDemo.CHARGLT_USERS);
+    }
+
+    static MongoCollection<UserTable> getUserCollection(MongoClient asyncClient) {
+        return asyncClient.getDatabase(BaseChargingDemo.CHARGLT_DATABASE).withCodecRegistry(ChargingCodecProvider.CODEC_REGISTRY)
+                .getCollection(BaseChargingDemo.CHARGLT_USERS, UserTable.class);
+    }
+
+    static MongoCollection<RawBsonDocument> getRawUserCollection(MongoClient asyncClient) {
+        return asyncClient.getDatabase(BaseChargingDemo.CHARGLT_DATABASE).withCodecRegistry(ChargingCodecProvider.CODEC_REGISTRY)
+                .getCollection(BaseChargingDemo.CHARGLT_USERS, RawBsonDocument.class);
+    }
+
+    /**
+     * Claim txnId in the IdempotencyStore, if we have one.
+     *
+     * @param session transaction we are in, or null if we aren't in one
+     * @return a future that fails with a duplicate key error if txnId has
+     * already been claimed
+     */
+    static CompletableFuture<?> claim(MongoClient asyncClient, ClientSession session, long userId, String txnId) {
+
+        if (BaseChargingDemo.idempotencyStore == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Document key = IdempotencyStore.getKey(userId, txnId);
+        MongoCollection<Document> keys = IdempotencyStore.getCollection(asyncClient);
+
+        return PublisherFuture.first(session == null ? keys.insertOne(key) : keys.insertOne(session, key));
+    }
+
+    /**
+     * Give up a claim made outside a transaction, because the change it was for
+     * didn't happen.
+     */
+    static <T> CompletableFuture<T> release(MongoClient asyncClient, long userId, String txnId, T result) {
+        return PublisherFuture.first(IdempotencyStore.getCollection(asyncClient)
+                        .deleteOne(new Document("_id", IdempotencyStore.getKey(userId, txnId).get("_id"))))
+                .thenApply(deleteResult -> result);
+    }
+
+    /**
+     * If we have an IdempotencyStore and future fails, give up the claim for
+     * txnId before passing the failure on, so retries aren't rejected as
+     * duplicates.
+     */
+    static <T> CompletableFuture<T> releaseIfFailed(MongoClient asyncClient, long userId, String txnId,
+                                                    CompletableFuture<T> future) {
+
+        if (BaseChargingDemo.idempotencyStore == null) {
+            return future;
+        }
+
+        return future.handle((result, t) -> {
+
+            if (t == null) {
+                return CompletableFuture.completedFuture(result);
+            }
+
+            return release(asyncClient, userId, txnId, null)
+                    .handle((v, releaseError) -> CompletableFuture.<T>failedFuture(t)).thenCompose(f -> f);
+        }).thenCompose(f -> f);
+    }
+
+    /**
+     * If future failed because its txnId had already been claimed, count it and
+     * complete with duplicateResult instead.
+     */
+    static <T> CompletableFuture<T> ifDuplicate(CompletableFuture<T> future, T duplicateResult) {
+        return future.handle((result, t) -> {
+
+            if (t == null) {
+                return CompletableFuture.completedFuture(result);
+            }
+
+            if (IdempotencyStore.isDuplicate(t)) {
+                BaseChargingDemo.shc.incCounter(IdempotencyStore.DUPLICATE_TXN);
+                return CompletableFuture.completedFuture(duplicateResult);
+            }
+
+            return CompletableFuture.<T>failedFuture(t);
+        }).thenCompose(f -> f);
+    }
+
+    /**
+     * Run body inside a majority transaction, committing if it succeeds and
+     * aborting if it doesn't. Transient errors are retried up to
+     * MAX_TRANSACTION_ATTEMPTS times, as is a commit whose outcome we don't
+     * know, which is what ClientSession.withTransaction does for the sync
+     * driver.
+     *
+     * @param asyncClient reactive client
+     * @param body        what to do inside the transaction
+     * @return a future with whatever body returned
+     */
+    static <T> CompletableFuture<T> inTransaction(MongoClient asyncClient,
+                                                  Function<ClientSession, CompletableFuture<T>> body) {
+        return inTransaction(asyncClient, body, 1);
+    }
+
+    private static <T> CompletableFuture<T> inTransaction(MongoClient asyncClient,
+                                                          Function<ClientSession, CompletableFuture<T>> body,
+                                                          int attempt) {
+
+        return PublisherFuture.first(asyncClient.startSession()).thenCompose(session -> {
+
+            session.startTransaction(TXN_OPTIONS);
+
+            CompletableFuture<T> bodyFuture;
+
+            try {
+                bodyFuture = body.apply(session);
+            } catch (RuntimeException e) {
+                bodyFuture = CompletableFuture.failedFuture(e);
+            }
+
+            return bodyFuture
+                    .thenCompose(result -> commit(session, 1).thenApply(v -> result))
+                    .handle((result, t) -> {
+
+                        if (t == null) {
+                            session.close();
+                            return CompletableFuture.completedFuture(result);
+                        }
+
+                        CompletableFuture<Void> abortFuture = session.hasActiveTransaction()
+                                ? PublisherFuture.first(session.abortTransaction())
+                                : CompletableFuture.completedFuture(null);
+
+                        return abortFuture.handle((v, abortError) -> {
+                            session.close();
+                            return null;
+                        }).thenCompose(v -> {
+
+                            Throwable cause = (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+
+                            if (attempt < MAX_TRANSACTION_ATTEMPTS && cause instanceof MongoException
+                                    && ((MongoException) cause).hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)) {
+                                return inTransaction(asyncClient, body, attempt + 1);
+                            }
+
+                            return CompletableFuture.<T>failedFuture(cause);
+                        });
+
+                    }).thenCompose(f -> f);
+        });
+    }
+
+    /**
+     * Commit, trying again if the server can't tell us whether it worked. The
+     * body isn't run again, as it may have been committed already...
+     *
+     * @param session session whose transaction we are committing
+     * @param attempt how many times we have tried
+     * @return a future that completes when the commit does
+     */
+    private static CompletableFuture<Void> commit(ClientSession session, int attempt) {
+
+        return PublisherFuture.first(session.commitTransaction()).handle((v, t) -> {
+
+            if (t == null) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+
+            Throwable cause = (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+
+            if (attempt < MAX_TRANSACTION_ATTEMPTS && cause instanceof MongoException
+                    && ((MongoException) cause).hasErrorLabel(MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL)) {
+                return commit(session, attempt + 1);
+            }
+
+            return CompletableFuture.<Void>failedFuture(cause);
+        }).thenCompose(f -> f);
+    }
+
+    /**
+     * Asynchronous version of GetAndLockUser. On completion the user's
+     * UserKVState is told how it went via clientCallback.
+     *
+     * @param asyncClient reactive client
+     * @param userKVState user we are locking
+     * @return a future that completes when we are done
+     */
+    public static CompletableFuture<Void> getAndLockUser(MongoClient asyncClient, UserKVState userKVState) {
+
+        MongoCollection<RawBsonDocument> collection = getRawUserCollection(asyncClient)
+                .withWriteConcern(WriteConcern.MAJORITY);
+
+        final long newLockId = UserTable.newLockId();
+
+        return PublisherFuture.first(collection.findOneAndUpdate(BaseChargingDemo.getLockableFilter(userKVState.id),
+                BaseChargingDemo.getLockUpdate(newLockId, BaseChargingDemo.lockLease.getLeaseMs()),
+                BaseChargingDemo.LOCK_OPTIONS)).thenApply(before -> {
+
+            if (before == null) {
+                return ReferenceData.STATUS_RECORD_ALREADY_SOFTLOCKED;
+            }
+
+            BaseChargingDemo.reportIfLeaseStolen(before);
+            userKVState.lockId = newLockId;
+            return ReferenceData.STATUS_RECORD_HAS_BEEN_SOFTLOCKED;
+
+        }).handle((statusByte, t) -> {
+            if (t != null) {
+                userKVState.clientCallbackFailed(t);
+            } else {
+                userKVState.clientCallback(statusByte, userKVState.lockId);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous version of UpdateLockedUser. On completion the user's
+     * UserKVState is told how it went via clientCallback.
+     *
+     * @param asyncClient  reactive client
+     * @param userKVState  user we are updating
+     * @param lockId       lock we think we hold
+     * @param extraPayload either a new loyalty number as a String, or a new
+     *                     ExtraUserData
+     * @return a future that completes when we are done
+     */
+    public static CompletableFuture<Void> updateLockedUser(MongoClient asyncClient, UserKVState userKVState,
+                                                           long lockId, Object extraPayload) {
+
+        MongoCollection<RawBsonDocument> collection = getRawUserCollection(asyncClient)
+                .withWriteConcern(WriteConcern.MAJORITY);
+
+        Bson filter = BaseChargingDemo.getLockOwnerFilter(userKVState.id, lockId);
+        Bson update = BaseChargingDemo.getKVUpdate(extraPayload);
+
+        CompletableFuture<Byte> updateFuture = PublisherFuture.first(collection.updateOne(filter, update))
+                .thenApply(updateResult -> {
+                    BaseChargingDemo.reportKVPutBytes(BaseChargingDemo.getKVPutType(extraPayload),
+                            BaseChargingDemo.getBsonSize(filter) + BaseChargingDemo.getBsonSize(update));
+                    return updateResult.getMatchedCount() == 0
+                            ? ReferenceData.STATUS_RECORD_ALREADY_SOFTLOCKED : ReferenceData.STATUS_OK;
+                });
+
+        return updateFuture.handle((statusByte, t) -> {
+            if (t != null) {
+                userKVState.clientCallbackFailed(t);
+            } else {
+                userKVState.clientCallback(statusByte, Long.MIN_VALUE);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous version of UpdateUnlockedUser. On completion the user's
+     * UserKVState is told how it went via clientCallback.
+     *
+     * @param asyncClient  reactive client
+     * @param userKVState  user we are updating
+     * @param extraPayload either a new loyalty number as a String, or a new
+     *                     ExtraUserData
+     * @return a future that completes when we are done
+     */
+    public static CompletableFuture<Void> updateUnlockedUser(MongoClient asyncClient, UserKVState userKVState,
+                                                             Object extraPayload) {
+
+        MongoCollection<RawBsonDocument> collection = getRawUserCollection(asyncClient)
+                .withWriteConcern(WriteConcern.MAJORITY);
+
+        Bson filter = BaseChargingDemo.getUnlockedFilter(userKVState.id);
+        Bson update = BaseChargingDemo.getKVUpdate(extraPayload);
+
+        return PublisherFuture.first(collection.updateOne(filter, update)).thenApply(updateResult -> {
+
+            BaseChargingDemo.reportKVPutBytes(BaseChargingDemo.getKVPutType(extraPayload),
+                    BaseChargingDemo.getBsonSize(filter) + BaseChargingDemo.getBsonSize(update));
+
+            return BaseChargingDemo.reportOptimisticWrite(updateResult.getMatchedCount() > 0)
+                    ? ReferenceData.STATUS_OK : ReferenceData.STATUS_RECORD_ALREADY_SOFTLOCKED;
+
+        }).handle((statusByte, t) -> {
+            if (t != null) {
+                userKVState.clientCallbackFailed(t);
+            } else {
+                userKVState.clientCallback(statusByte, Long.MIN_VALUE);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Read a user without a transaction.
+     *
+     * @param asyncClient reactive client
+     * @param userId      user id
+     * @return a future with the user's document, or null if there isn't one
+     */
+    public static CompletableFuture<Document> getUser(MongoClient asyncClient, int userId) {
+        return PublisherFuture.first(getCollection(asyncClient).find(eq(userId)).first());
+    }
+
+    /**
+     * Asynchronous version of addCredit.
+     *
+     * @param asyncClient reactive client
+     * @param randomuser  user id
+     * @param extraCredit how much to add
+     * @param txnId       transaction id
+     * @return a future that completes with true if the credit was added
+     */
+    public static CompletableFuture<Boolean> addCredit(MongoClient asyncClient, int randomuser, long extraCredit,
+                                                       String txnId) {
+
+        MongoCollection<UserTable> collection = getUserCollection(asyncClient);
+        Bson pk = eq(randomuser);
+
+        return ifDuplicate(inTransaction(asyncClient, session ->
+                claim(asyncClient, session, randomuser, txnId)
+                        .thenCompose(v -> PublisherFuture.first(collection.find(session, pk)
+                                .projection(BaseChargingDemo.CHARGING_PROJECTION).first())).thenCompose(ut -> {
+
+                    if (ut == null) {
+                        return CompletableFuture.completedFuture(0L);
+                    }
+
+                    final long oldBalance = ut.balance;
+
+                    BaseChargingDemo.addCredit(ut, extraCredit, txnId);
+
+                    return PublisherFuture.first(collection.updateOne(session, pk, BaseChargingDemo.getChargingUpdate(ut)))
+                            .thenApply(updateResult -> ut.balance - oldBalance);
+                })
+        ), 0L).thenApply(balanceDelta -> {
+            BaseChargingDemo.recordTotals(randomuser, balanceDelta, 0);
+            return balanceDelta != 0;
+        });
+    }
+
+    /**
+     * Asynchronous version of addCreditAtomic.
+     *
+     * @param asyncClient reactive client
+     * @param randomuser  user id
+     * @param extraCredit how much to add
+     * @param txnId       transaction id
+     * @return a future that completes with true if the credit was added, false
+     * if the user doesn't exist or the transaction already happened
+     */
+    public static CompletableFuture<Boolean> addCreditAtomic(MongoClient asyncClient, int randomuser, long extraCredit,
+                                                             String txnId) {
+
+        MongoCollection<Document> collection = getCollection(asyncClient).withWriteConcern(WriteConcern.MAJORITY);
+
+        if (BaseChargingDemo.idempotencyStore != null) {
+            return ifDuplicate(claim(asyncClient, null, randomuser, txnId)
+                    .thenCompose(v -> releaseIfFailed(asyncClient, randomuser, txnId,
+                            PublisherFuture.first(collection.updateOne(eq(randomuser),
+                                    combine(inc("balance", extraCredit), inc("version", 1L))))))
+                    .thenCompose(result -> result.getModifiedCount() == 0
+                            ? release(asyncClient, randomuser, txnId, false)
+                            : CompletableFuture.completedFuture(BaseChargingDemo.recordAtomicAddCredit(randomuser, extraCredit, result))),
+                    false);
+        }
+
+        return PublisherFuture.first(collection
+                        .updateOne(BaseChargingDemo.getNewTxnFilter(randomuser, txnId),
+                                BaseChargingDemo.getAtomicAddCreditUpdate(randomuser, extraCredit, txnId)))
+                .thenApply(result -> BaseChargingDemo.recordAtomicAddCredit(randomuser, extraCredit, result));
+    }
+
+    /**
+     * Asynchronous version of reportQuotaUsageAtomic.
+     *
+     * @param asyncClient reactive client
+     * @param randomuser  user id
+     * @param unitsUsed   units used since last call
+     * @param unitsWanted units wanted for next time
+     * @param sessionId   charging session
+     * @param txnId       unique transaction id
+     * @param userTS      client side state for this user
+     * @return a future with the status code
+     */
+    public static CompletableFuture<Byte> reportQuotaUsageAtomic(MongoClient asyncClient, int randomuser, int unitsUsed,
+                                                                 int unitsWanted, long sessionId, String txnId,
+                                                                 UserTransactionState userTS) {
+
+        final boolean keepTxnId = BaseChargingDemo.idempotencyStore == null;
+        MongoCollection<Document> collection = getCollection(asyncClient).withWriteConcern(WriteConcern.MAJORITY);
+
+        return ifDuplicate(claim(asyncClient, null, randomuser, txnId)
+                .thenCompose(v -> releaseIfFailed(asyncClient, randomuser, txnId,
+                        PublisherFuture.first(collection.findOneAndUpdate(
+                                keepTxnId ? BaseChargingDemo.getNewTxnFilter(randomuser, txnId) : eq(randomuser),
+                                BaseChargingDemo.getAtomicReportQuotaUsagePipeline(unitsUsed, unitsWanted, sessionId, txnId, keepTxnId),
+                                BaseChargingDemo.ATOMIC_RQU_OPTIONS))))
+                .thenCompose(before -> {
+
+                    if (before != null) {
+                        return CompletableFuture.completedFuture(BaseChargingDemo.getAtomicReportQuotaUsageStatus(
+                                randomuser, unitsUsed, unitsWanted, sessionId, before, userTS));
+                    }
+
+                    // Either there's no such user, or txnId already happened...
+                    if (keepTxnId) {
+                        return PublisherFuture.first(collection.find(eq(randomuser)).projection(Projections.include("_id")).first())
+                                .thenApply(user -> user == null
+                                        ? ReferenceData.STATUS_USER_DOESNT_EXIST : ReferenceData.STATUS_TXN_ALREADY_HAPPENED);
+                    }
+
+                    return release(asyncClient, randomuser, txnId, ReferenceData.STATUS_USER_DOESNT_EXIST);
+                }),
+                ReferenceData.STATUS_TXN_ALREADY_HAPPENED);
+    }
+
+    /**
+     * Asynchronous version of addCreditOCC.
+     *
+     * @param asyncClient reactive client
+     * @param randomuser  user id
+     * @param extraCredit how much to add
+     * @param txnId       transaction id
+     * @return a future that completes with true if the credit was added, false
+     * if the user doesn't exist, the transaction already happened or we gave up
+     */
+    public static CompletableFuture<Boolean> addCreditOCC(MongoClient asyncClient, int randomuser, long extraCredit,
+                                                          String txnId) {
+
+        MongoCollection<UserTable> collection = getUserCollection(asyncClient).withWriteConcern(WriteConcern.MAJORITY);
+
+        return ifDuplicate(claim(asyncClient, null, randomuser, txnId)
+                .thenCompose(v -> releaseIfFailed(asyncClient, randomuser, txnId,
+                        updateWithOCC(collection, randomuser, ut -> {
+                            final long oldBalance = ut.balance;
+                            BaseChargingDemo.addCredit(ut, extraCredit, txnId);
+                            return ut.balance - oldBalance;
+                        }, null, 1)))
+                .thenCompose(balanceDelta -> balanceDelta == null && BaseChargingDemo.idempotencyStore != null
+                        ? release(asyncClient, randomuser, txnId, (Long) null)
+                        : CompletableFuture.completedFuture(balanceDelta))
+                .thenApply(balanceDelta -> {
+
+                    if (balanceDelta == null) {
+                        return false;
+                    }
+
+                    BaseChargingDemo.recordTotals(randomuser, balanceDelta, 0);
+                    return true;
+                }), false);
+    }
+
+    /**
+     * Asynchronous version of reportQuotaUsageOCC.
+     *
+     * @param asyncClient reactive client
+     * @param randomuser  user id
+     * @param unitsUsed   units used since last call
+     * @param unitsWanted units wanted for next time
+     * @param sessionId   charging session
+     * @param txnId       unique transaction id
+     * @param userTS      client side state for this user
+     * @return a future with the status code
+     */
+    public static CompletableFuture<Byte> reportQuotaUsageOCC(MongoClient asyncClient, int randomuser, int unitsUsed,
+                                                              int unitsWanted, long sessionId, String txnId,
+                                                              UserTransactionState userTS) {
+
+        MongoCollection<UserTable> collection = getUserCollection(asyncClient).withWriteConcern(WriteConcern.MAJORITY);
+
+        return ifDuplicate(claim(asyncClient, null, randomuser, txnId)
+                .thenCompose(v -> releaseIfFailed(asyncClient, randomuser, txnId,
+                        updateWithOCC(collection, randomuser,
+                                BaseChargingDemo.getOCCReportQuotaUsage(unitsUsed, unitsWanted, sessionId, txnId, userTS),
+                                BaseChargingDemo.OCC_GAVE_UP_RESULT, 1)))
+                .thenCompose(result -> !BaseChargingDemo.isOCCWritten(result) && BaseChargingDemo.idempotencyStore != null
+                        ? release(asyncClient, randomuser, txnId, result)
+                        : CompletableFuture.completedFuture(result))
+                .thenApply(result -> BaseChargingDemo.recordOCCReportQuotaUsage(randomuser, result)),
+                ReferenceData.STATUS_TXN_ALREADY_HAPPENED);
+    }
+
+    /**
+     * Asynchronous version of BaseChargingDemo.updateWithOCC.
+     *
+     * @param attempt 1 for the first try
+     */
+    static <T> CompletableFuture<T> updateWithOCC(MongoCollection<UserTable> collection, long userId,
+                                                  Function<UserTable, T> change, T gaveUp, int attempt) {
+
+        return PublisherFuture.first(collection.find(eq(userId)).projection(BaseChargingDemo.CHARGING_PROJECTION).first()).thenCompose(ut -> {
+
+            if (ut == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            final long expectedVersion = ut.version;
+            final T result = change.apply(ut);
+
+            return PublisherFuture.first(collection.updateOne(BaseChargingDemo.getOCCFilter(userId, expectedVersion),
+                    BaseChargingDemo.getChargingUpdate(ut))).thenCompose(updateResult -> {
+
+                if (BaseChargingDemo.reportOCCAttempt(attempt, updateResult.getMatchedCount() > 0)) {
+                    return CompletableFuture.completedFuture(result);
+                } else if (attempt >= ChargingMode.MAX_OCC_ATTEMPTS) {
+                    return CompletableFuture.completedFuture(gaveUp);
+                }
+
+                return updateWithOCC(collection, userId, change, gaveUp, attempt + 1);
+            });
+        });
+    }
+
+    /**
+     * Asynchronous version of reportQuotaUsage.
+     *
+     * @param asyncClient reactive client
+     * @param randomuser  user id
+     * @param unitsUsed   units used since last call
+     * @param unitsWanted units wanted for next time
+     * @param sessionId   charging session
+     * @param txnId       unique transaction id
+     * @param userTS      client side state for this user
+     * @return a future with the status code from UserTable.reportQuotaUsage
+     */
+    public static CompletableFuture<Byte> reportQuotaUsage(MongoClient asyncClient, int randomuser, int unitsUsed,
+                                                           int unitsWanted, long sessionId, String txnId,
+                                                           UserTransactionState userTS) {
+
+        MongoCollection<UserTable> collection = getUserCollection(asyncClient);
+        Bson pk = eq(randomuser);
+
+        return ifDuplicate(inTransaction(asyncClient, session ->
+                claim(asyncClient, session, randomuser, txnId)
+                        .thenCompose(v -> PublisherFuture.first(collection.find(session, pk)
+                                .projection(BaseChargingDemo.CHARGING_PROJECTION).first())).thenCompose(theUserTable -> {
+
+                    if (theUserTable == null) {
+                        return CompletableFuture.completedFuture(new long[]{ReferenceData.STATUS_USER_DOESNT_EXIST, 0, 0});
+                    }
+
+                    final long oldBalance = theUserTable.balance;
+                    final long oldReserved = theUserTable.reservedTotal;
+                    final byte statusCode = theUserTable.reportQuotaUsage(unitsUsed, unitsWanted, sessionId, txnId);
+                    userTS.spendableBalance = theUserTable.getAvailableCredit();
+
+                    if (BaseChargingDemo.idempotencyStore != null) {
+                        theUserTable.getUserRecentTransactions().clear();
+                    }
+
+                    return PublisherFuture.first(collection.updateOne(session, pk, BaseChargingDemo.getChargingUpdate(theUserTable)))
+                            .thenApply(updateResult -> new long[]{statusCode, theUserTable.balance - oldBalance,
+                                    theUserTable.reservedTotal - oldReserved});
+                })
+        ), new long[]{ReferenceData.STATUS_TXN_ALREADY_HAPPENED, 0, 0}).thenApply(result -> {
+            BaseChargingDemo.recordTotals(randomuser, result[1], result[2]);
+            return (byte) result[0];
+        });
+    }
+}
@@ -21,20 +21,62 @@ import com.mongodb.MongoException;
 import com.mongodb.TransactionOptions;
 import com.mongodb.WriteConcern;
 import com.mongodb.client.*;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
+import ie.rolfe.mongodbcharglt.documents.AbstractBaseTable;
+import ie.rolfe.mongodbcharglt.documents.ChargingCodecProvider;
 import ie.rolfe.mongodbcharglt.documents.ExtraUserData;
 import ie.rolfe.mongodbcharglt.documents.UserTable;
+import ie.rolfe.mongodbcharglt.documents.UserTableCodec;
+import ie.rolfe.mongodbcharglt.workload.KeyGenerator;
+import ie.rolfe.mongodbcharglt.workload.OperationType;
+import ie.rolfe.mongodbcharglt.workload.TraceReader;
+import ie.rolfe.mongodbcharglt.workload.TraceWriter;
+import ie.rolfe.mongodbcharglt.workload.WorkloadMix;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
 import org.bson.conversions.Bson;
+import org.voltdb.voltutil.stats.LatencyHistogram;
 import org.voltdb.voltutil.stats.SafeHistogramCache;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.expr;
 import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
 
 /**
  * This is an abstract class that contains the actual logic of the demo code.
@@ -54,15 +96,58 @@ public abstract class BaseChargingDemo {
     public static final String ADD_DOC_ERROR = "Add Doc Error";
     public static final String UNABLE_TO_MEET_REQUESTED_TPS = "UNABLE_TO_MEET_REQUESTED_TPS";
     public static final String EXTRA_MS = "EXTRA_MS";
+    public static final String THREADS = "THREADS";
+    public static final String RESERVED_CREDIT_PARTITIONS = "RESERVED_CREDIT_PARTITIONS";
+    public static final String BINARY_PAYLOAD = "BINARY_PAYLOAD";
+    public static final String KV_PUT_DELTA = "KV_PUT_DELTA";
+    public static final String KV_PUT_FULL = "KV_PUT_FULL";
+    public static final String KV_OPTIMISTIC_WRITES = "KV_OPTIMISTIC_WRITES";
+    public static final String KV_OPTIMISTIC_WRITE = "KV_OPTIMISTIC_WRITE";
+    public static final String KV_OPTIMISTIC_CONFLICT = "KV_OPTIMISTIC_CONFLICT";
+    public static final String OCC_RETRIES = "OCC_RETRIES";
+    public static final String OCC_CONFLICT = "OCC_CONFLICT";
+    public static final String OCC_GAVE_UP = "OCC_GAVE_UP";
+    static final String BYTES_SUFFIX = "_BYTES";
     public static final int MONGO_DEFAULT_PORT = 27017;
-    private static final String CHARGLT_DATABASE = "CHARGLT_DB";
-    private static final String CHARGLT_USERS = "CHARGLT_USERS";
-    private static final String ADD_CREDIT = "ADD_CREDIT";
+    static final String CHARGLT_DATABASE = "CHARGLT_DB";
+    static final String CHARGLT_USERS = "CHARGLT_USERS";
+    public static final String ADD_CREDIT = "ADD_CREDIT";
+    public static final String POINT_READ = "POINT_READ";
     private static final String CLEAR_LOCK = "CLEAR_LOCK";
     private static final String CLEAR_UNFINISHED = "CLEAR_UNFINISHED";
     private static final String COUNT_USAGE_TOTAL_BY_DOC = "COUNT_USAGE_TOTAL_BY_DOC";
     public static SafeHistogramCache shc = SafeHistogramCache.getInstance();
 
+    /**
+     * Striped global totals, or null if GLOBAL_TOTALS_STRIPES isn't set.
+     */
+    static GlobalTotals globalTotals = null;
+
+    /**
+     * Where we keep transaction ids, or null if IDEMPOTENCY_STORE isn't set and
+     * they live in userRecentTransactions.
+     */
+    static IdempotencyStore idempotencyStore = null;
+
+    /**
+     * true if getExtraUserDataAsObject should make binary payloads, see
+     * BINARY_PAYLOAD.
+     */
+    static boolean binaryPayload = false;
+
+    /**
+     * How long KV soft locks last, see LOCK_LEASE_MS.
+     */
+    static LockLease lockLease = new LockLease(ReferenceData.LOCK_TIMEOUT_MS);
+
+    /**
+     * true if KV updates of users nobody has locked skip the lock, see
+     * KV_OPTIMISTIC_WRITES.
+     */
+    static boolean kvOptimisticWrites = false;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * Print a formatted message.
      *
@@ -101,6 +186,45 @@ public abstract class BaseChargingDemo {
         return mongoClient;
     }
 
+    /**
+     * Connect to MongoDB with the reactive streams driver, but only if
+     * ASYNC_IN_FLIGHT says we are going to need it.
+     *
+     * @param connectionString list of hostnames
+     * @return an instance of the reactive client, or null
+     */
+    protected static com.mongodb.reactivestreams.client.MongoClient connectMongoDBAsyncIfNeeded(String connectionString) {
+
+        if (RequestDispatcher.isAsyncRequested()) {
+            return AsyncChargingOperations.connectMongoDBAsync(connectionString);
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the users collection, typed so documents are encoded and decoded
+     * directly by UserTableCodec.
+     *
+     * @param mongoClient
+     * @return the users collection
+     */
+    static MongoCollection<UserTable> getUserCollection(MongoClient mongoClient) {
+        return mongoClient.getDatabase(CHARGLT_DATABASE).withCodecRegistry(ChargingCodecProvider.CODEC_REGISTRY)
+                .getCollection(CHARGLT_USERS, UserTable.class);
+    }
+
+    /**
+     * Get the users collection, returning documents undecoded.
+     *
+     * @param mongoClient
+     * @return the users collection
+     */
+    static MongoCollection<RawBsonDocument> getRawUserCollection(MongoClient mongoClient) {
+        return mongoClient.getDatabase(CHARGLT_DATABASE).withCodecRegistry(ChargingCodecProvider.CODEC_REGISTRY)
+                .getCollection(CHARGLT_USERS, RawBsonDocument.class);
+    }
+
     /**
      * Convenience method to generate a JSON payload.
      *
@@ -108,59 +232,67 @@ public abstract class BaseChargingDemo {
      * @return
      */
     public static ExtraUserData getExtraUserDataAsObject(int length, Gson gson, Random r) {
+        return getExtraUserDataAsObject(length, r, binaryPayload);
+    }
+
+    /**
+     * Generate a payload of length / 2 random bytes, either as a byte[] or as
+     * hex.
+     *
+     * @param length how long the payload would be as hex
+     * @param r
+     * @param binary true for a byte[], false for hex
+     * @return a new ExtraUserData
+     */
+    static ExtraUserData getExtraUserDataAsObject(int length, Random r, boolean binary) {
 
         ExtraUserData eud = new ExtraUserData();
 
         eud.loyaltySchemeName = "HelperCard";
         eud.loyaltySchemeNumber = getNewLoyaltyCardNumber(r);
 
-        StringBuffer ourText = new StringBuffer();
+        byte[] payload = new byte[length / 2];
+        r.nextBytes(payload);
 
-        for (int i = 0; i < length / 2; i++) {
-            ourText.append(Integer.toHexString(r.nextInt(256)));
-        }
+        if (binary) {
+            eud.binaryPayload = payload;
+        } else {
+            char[] ourText = new char[payload.length * 2];
 
-        eud.mysteriousHexPayload = ourText.toString();
+            for (int i = 0; i < payload.length; i++) {
+                ourText[i * 2] = HEX_DIGITS[(payload[i] >> 4) & 0xF];
+                ourText[i * 2 + 1] = HEX_DIGITS[payload[i] & 0xF];
+            }
+
+            eud.mysteriousHexPayload = new String(ourText);
+        }
 
         return eud;
     }
 
 
-    protected static void upsertAllUsers(int userCount, int tpMs, ExtraUserData ourEud, int initialCredit, MongoClient mongoClient, MongoClient otherClient)
+    protected static void upsertAllUsers(int userCount, double tpMs, ExtraUserData ourEud, int initialCredit, MongoClient mongoClient, MongoClient otherClient)
             throws InterruptedException {
 
         final long startMsUpsert = System.currentTimeMillis();
 
         SafeHistogramCache shc = SafeHistogramCache.getInstance();
-        long currentMs = System.currentTimeMillis();
-        int tpThisMs = 0;
+        OpenLoopScheduler scheduler = new OpenLoopScheduler(tpMs);
         Random r = new Random();
-        Gson g = new Gson();
 
-        MongoDatabase database = mongoClient.getDatabase(CHARGLT_DATABASE);
-        MongoCollection<Document> collection = database.getCollection(CHARGLT_USERS);
+        MongoCollection<UserTable> collection = getUserCollection(mongoClient);
 
         for (int i = 0; i < userCount; i++) {
 
-            if (tpThisMs++ > tpMs) {
-
-                while (currentMs == System.currentTimeMillis()) {
-                    Thread.sleep(0, 50000);
-                }
-
-                currentMs = System.currentTimeMillis();
-                tpThisMs = 0;
-            }
+            final long intendedStartNs = scheduler.awaitNext();
 
             UserTable newUser = UserTable.getUserTable(ourEud, r.nextInt(initialCredit), i, startMsUpsert);
             newUser.addCredit(100, "Txn_" + i);
             newUser.reportQuotaUsage(100, 10, 100, "TX2_" + i);
-            String jsonObject = g.toJson(newUser, UserTable.class);
 
-            Document document2 = Document.parse(jsonObject);
-            final long startMs = System.currentTimeMillis();
-            collection.insertOne(document2);
-            shc.reportLatency(BaseChargingDemo.ADD_DOC, startMs, "Add time", 2000);
+            final long startNs = System.nanoTime();
+            collection.insertOne(newUser);
+            shc.reportLatencyWithIntended(BaseChargingDemo.ADD_DOC, intendedStartNs, startNs, "Add time", 2000);
             shc.incCounter(BaseChargingDemo.ADD_DOC);
 
             if (i % 100000 == 1) {
@@ -184,36 +316,24 @@ public abstract class BaseChargingDemo {
     }
 
 
-    protected static void deleteAllUsers(MongoClient mongoClient, int userCount, int tpMs) {
+    protected static void deleteAllUsers(MongoClient mongoClient, int userCount, double tpMs)
+            throws InterruptedException {
 
         final long startMsUpsert = System.currentTimeMillis();
 
         SafeHistogramCache shc = SafeHistogramCache.getInstance();
-        long currentMs = System.currentTimeMillis();
-        int tpThisMs = 0;
+        OpenLoopScheduler scheduler = new OpenLoopScheduler(tpMs);
 
         MongoDatabase database = mongoClient.getDatabase(CHARGLT_DATABASE);
         MongoCollection<Document> collection = database.getCollection(CHARGLT_USERS);
 
         for (int i = 0; i < userCount; i++) {
 
-            if (tpThisMs++ > tpMs) {
-
-                while (currentMs == System.currentTimeMillis()) {
-                    try {
-                        Thread.sleep(0, 50000);
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-
-                currentMs = System.currentTimeMillis();
-                tpThisMs = 0;
-            }
+            final long intendedStartNs = scheduler.awaitNext();
 
-            long startNs = System.currentTimeMillis();
+            final long startNs = System.nanoTime();
             DeleteResult dl = collection.deleteOne(eq(i));
-            shc.reportLatency(BaseChargingDemo.DELETE_DOC, startNs, "Delete time", 2000);
+            shc.reportLatencyWithIntended(BaseChargingDemo.DELETE_DOC, intendedStartNs, startNs, "Delete time", 2000);
             if (dl.getDeletedCount() == 1) {
                 shc.incCounter(BaseChargingDemo.DELETE_DOC);
             } else {
@@ -236,59 +356,238 @@ public abstract class BaseChargingDemo {
      * Convenience method to query a user a general stats and log the results
      */
     protected static void queryUserAndStats(MongoClient mongoClient, long queryUserId, int userCount) {
-        MongoDatabase database = mongoClient.getDatabase(CHARGLT_DATABASE);
-        MongoCollection<Document> collection = database.getCollection(CHARGLT_USERS);
+        MongoCollection<UserTable> collection = getUserCollection(mongoClient);
 
         // Query user #queryUserId...
         msg("Query user #" + queryUserId + "...");
         getUser(queryUserId, collection, BaseChargingDemo::reportDocument);
 
         msg("Show amount of credit currently reserved for products...");
-        getCurrentReservedCredit(collection, userCount);
+        getCurrentReservedCredit(mongoClient.getDatabase(CHARGLT_DATABASE).getCollection(CHARGLT_USERS), userCount,
+                getReservedCreditPartitionsIfSet());
+
+        if (globalTotals != null) {
+            getCurrentReservedCredit(globalTotals);
+        }
+
+    }
+
+    /**
+     * Same as getCurrentReservedCredit, but by reading the global totals
+     * stripes.
+     *
+     * @param globalTotals
+     * @return the total
+     */
+    static long getCurrentReservedCredit(GlobalTotals globalTotals) {
+
+        final long startMs = System.currentTimeMillis();
+
+        long[] totals = globalTotals.getTotals();
+
+        msg("Total from " + globalTotals + " is " + totals[1] + ", balance " + totals[0]);
+
+        shc.reportLatency(GlobalTotals.COUNT_USAGE_TOTAL_BY_STRIPES, startMs, "Time to read global totals", 10000);
+
+        return totals[1];
+    }
+
+    /**
+     * A duplicate key from idempotencyStore means the transaction already
+     * happened, so we count it. Anything else is a real problem.
+     *
+     * @param e what went wrong
+     */
+    static void reportChargingException(Throwable e) {
+
+        if (IdempotencyStore.isDuplicate(e)) {
+            shc.incCounter(IdempotencyStore.DUPLICATE_TXN);
+        } else {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Give up an IdempotencyStore claim made outside a transaction, because
+     * the change it was for didn't happen or failed. Otherwise every retry of
+     * txnId would be rejected as a duplicate.
+     *
+     * @param userId user id
+     * @param txnId  transaction id
+     */
+    static void releaseClaim(long userId, String txnId) {
+
+        if (idempotencyStore != null) {
+            try {
+                idempotencyStore.release(userId, txnId);
+            } catch (Exception e) {
+                msg("Unable to release " + userId + "/" + txnId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Tell globalTotals, if we have one, about a change that has committed.
+     *
+     * @param userId        whose balance or reservations changed
+     * @param balanceDelta  change in balance
+     * @param reservedDelta change in reserved credit
+     */
+    static void recordTotals(long userId, long balanceDelta, long reservedDelta) {
 
+        if (globalTotals != null) {
+            globalTotals.record(userId, balanceDelta, reservedDelta);
+        }
     }
 
-    private static void getCurrentReservedCredit(MongoCollection<Document> collection, int userCount) {
+    /**
+     * Add up the credit reserved by every session of every user. This used to
+     * fetch each user in turn; now the server does the work with one
+     * aggregation, or one per partition of the _id range if partitions > 1.
+     *
+     * @param collection users
+     * @param userCount  how many users
+     * @param partitions how many _id ranges to aggregate in parallel
+     * @return the total, or -1 if one or more partitions couldn't be counted
+     */
+    static long getCurrentReservedCredit(MongoCollection<Document> collection, int userCount, int partitions) {
 
         final long getDocByDocMs = System.currentTimeMillis();
 
         SafeHistogramCache shc = SafeHistogramCache.getInstance();
-        Random r = new Random();
-        Gson g = new Gson();
         long total = 0;
+        int partitionsCounted = partitions;
 
-        for (int i = 0; i < userCount; i++) {
+        if (partitions <= 1) {
+            total = getReservedCredit(collection, null);
+        } else {
 
-            Document userDoc = collection.find(eq(i)).first();
-            UserTable ut = new UserTable(userDoc);
-            total += ut.getUsageBalance();
+            final long[] bounds = getPartitionBounds(userCount, partitions);
+            ArrayList<Future<Long>> partialTotals = new ArrayList<>(partitions);
 
-            if (i % 100000 == 1) {
-                msg("Queried " + i + " users. Total is " + total);
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
 
-            }
+                for (int i = 0; i < partitions; i++) {
+
+                    Bson range = and(gte("_id", bounds[i]), lt("_id", bounds[i + 1]));
+
+                    // The last range is open ended, in case users were added after startup...
+                    if (i == partitions - 1) {
+                        range = gte("_id", bounds[i]);
+                    }
+
+                    final Bson partitionFilter = range;
+                    partialTotals.add(executor.submit(() -> getReservedCredit(collection, partitionFilter)));
+                }
+
+                for (Future<Long> partialTotal : partialTotals) {
+                    try {
+                        total += partialTotal.get();
+                    } catch (ExecutionException e) {
+                        msg("Unable to count usage: " + e.getCause().getMessage());
+                        partitionsCounted--;
+                    }
+                }
 
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                msg("Interrupted while counting usage");
+                partitionsCounted = 0;
+            }
         }
 
+        if (partitionsCounted < partitions) {
+            // Don't pass off a partial sum as the total, or count its latency...
+            msg("Total for " + userCount + " users is INCOMPLETE: only " + Math.max(partitionsCounted, 0) + " of "
+                    + partitions + " partitions counted, which add up to " + total);
+            return -1;
+        }
 
         msg("Total for " + userCount + " users is " + total);
 
         shc.reportLatency(BaseChargingDemo.COUNT_USAGE_TOTAL_BY_DOC, getDocByDocMs, "Time to count usage", 10000);
+
+        return total;
+    }
+
+    /**
+     * Run the aggregation that adds up reservedTotal across users.
+     *
+     * @param collection users
+     * @param filter     which users, or null for all of them
+     * @return the total, or 0 if there were no users
+     */
+    static long getReservedCredit(MongoCollection<Document> collection, Bson filter) {
+
+        Document result = collection.aggregate(getReservedCreditPipeline(filter)).first();
+
+        if (result == null) {
+            return 0;
+        }
+
+        return ((Number) result.get("total")).longValue();
+    }
+
+    /**
+     * We add up reservedTotal across users.
+     *
+     * @param filter which users, or null for all of them
+     * @return an aggregation pipeline
+     */
+    static List<Bson> getReservedCreditPipeline(Bson filter) {
+
+        ArrayList<Bson> pipeline = new ArrayList<>(3);
+
+        if (filter != null) {
+            pipeline.add(Aggregates.match(filter));
+        }
+
+        pipeline.add(Aggregates.project(new Document("_id", 0).append("reserved", getReservedCreditExpression())));
+
+        pipeline.add(Aggregates.group(null, Accumulators.sum("total", "$reserved")));
+
+        return pipeline;
+    }
+
+    /**
+     * @return an expression for a user's reserved credit. Users written before
+     * we kept reservedTotal still need userUsage adding up.
+     */
+    static Document getReservedCreditExpression() {
+        return new Document("$ifNull", Arrays.asList("$reservedTotal", sumOfAllocated("$userUsage")));
+    }
+
+    /**
+     * Split 0 to userCount into partitions ranges of about the same size.
+     *
+     * @param userCount  how many users
+     * @param partitions how many ranges
+     * @return partitions + 1 bounds. Range i is bounds[i] (inclusive) to
+     * bounds[i+1] (exclusive).
+     */
+    static long[] getPartitionBounds(int userCount, int partitions) {
+
+        long[] bounds = new long[partitions + 1];
+
+        for (int i = 0; i <= partitions; i++) {
+            bounds[i] = ((long) userCount * i) / partitions;
+        }
+
+        return bounds;
     }
 
-    private static void getUser(long queryUserId, MongoCollection<Document> collection, java.util.function.Consumer<Document> nextStep) {
-        Document userDoc = collection.find(eq(queryUserId)).first();
+    private static void getUser(long queryUserId, MongoCollection<UserTable> collection, java.util.function.Consumer<UserTable> nextStep) {
+        UserTable user = collection.find(eq(queryUserId)).first();
 
-        reportDocument(userDoc);
+        nextStep.accept(user);
     }
 
 
-    static protected void reportDocument(Document document) {
-        if (document == null) {
+    static protected void reportDocument(UserTable user) {
+        if (user == null) {
             msg("Document is null...");
         } else {
-            UserTable foo = new UserTable(document);
-            msg(foo.toString());
+            msg(user.toString());
 
         }
     }
@@ -305,17 +604,23 @@ public abstract class BaseChargingDemo {
      * @param globalQueryFreqSeconds
      * @param jsonsize
      * @param mainClient
+     * @param asyncClient reactive client, used if ASYNC_IN_FLIGHT is set
      * @param deltaProportion
      * @param extraMs
-     * @return true if >=90% of requested throughput was achieved.
+     * @return observed transactions per second
      * @throws InterruptedException
      */
-    protected static boolean runKVBenchmark(int userCount, int tpMs, int durationSeconds, int globalQueryFreqSeconds,
-                                            int jsonsize, MongoClient mainClient, int deltaProportion, int extraMs)
+    protected static double runKVBenchmark(int userCount, double tpMs, int durationSeconds, int globalQueryFreqSeconds,
+                                            int jsonsize, MongoClient mainClient,
+                                            com.mongodb.reactivestreams.client.MongoClient asyncClient,
+                                            int deltaProportion, int extraMs)
             throws InterruptedException {
 
         long lastGlobalQueryMs = 0;
 
+        RequestDispatcher dispatcher = RequestDispatcher.getDispatcher();
+        KeyGenerator keyGenerator = KeyGenerator.getKeyGenerator(KeyGenerator.getKeyDistributionIfSet(), userCount);
+
         UserKVState[] userState = new UserKVState[userCount];
 
         Random r = new Random();
@@ -326,8 +631,7 @@ public abstract class BaseChargingDemo {
         }
 
         final long startMsRun = System.currentTimeMillis();
-        long currentMs = System.currentTimeMillis();
-        int tpThisMs = 0;
+        OpenLoopScheduler scheduler = new OpenLoopScheduler(OpenLoopScheduler.getEffectiveTpMs(tpMs, extraMs));
 
         final long endtimeMs = System.currentTimeMillis() + (durationSeconds * 1000L);
 
@@ -336,6 +640,7 @@ public abstract class BaseChargingDemo {
         int inFlightCount = 0;
         int lockCount = 0;
         int contestedLockCount = 0;
+        int optimisticWriteCount = 0;
         int fullUpdate = 0;
         int deltaUpdate = 0;
 
@@ -343,57 +648,52 @@ public abstract class BaseChargingDemo {
 
         while (endtimeMs > System.currentTimeMillis()) {
 
-            if (tpThisMs++ > tpMs) {
-
-                while (currentMs == System.currentTimeMillis()) {
-                    Thread.sleep(0, 50000);
-
-                }
-
-                sleepExtraMSIfNeeded(extraMs);
-
-                currentMs = System.currentTimeMillis();
-                tpThisMs = 0;
-            }
+            final long intendedStartNs = scheduler.awaitNext();
 
             // Find session to do a transaction for...
-            int oursession = r.nextInt(userCount);
+            final int oursession = keyGenerator.nextKey();
 
             if (firstSession == Integer.MIN_VALUE) {
                 firstSession = oursession;
             }
 
+            final UserKVState ourState = userState[oursession];
+
             // See if session already has an active transaction and avoid
             // it if it does.
-            if (userState[oursession].isTxInFlight()) {
+            if (ourState.isTxInFlight()) {
 
                 inFlightCount++;
 
-            } else if (userState[oursession].getUserStatus() == UserKVState.STATUS_LOCKED_BY_SOMEONE_ELSE) {
+            } else if (ourState.getUserStatus() == UserKVState.STATUS_LOCKED_BY_SOMEONE_ELSE) {
 
-                if (userState[oursession].getOtherLockTimeMs() + ReferenceData.LOCK_TIMEOUT_MS < System
+                if (ourState.getOtherLockTimeMs() + lockLease.getLeaseMs() < System
                         .currentTimeMillis()) {
 
-                    userState[oursession].startTran();
-                    userState[oursession].setStatus(UserKVState.STATUS_TRYING_TO_LOCK);
-                    GetAndLockUser(mainClient, userState[oursession], oursession, gson);
+                    ourState.startTran(intendedStartNs);
+                    ourState.setStatus(UserKVState.STATUS_TRYING_TO_LOCK);
+                    dispatchGetAndLockUser(dispatcher, mainClient, asyncClient, ourState, oursession);
                     lockCount++;
 
                 } else {
                     contestedLockCount++;
                 }
 
-            } else if (userState[oursession].getUserStatus() == UserKVState.STATUS_UNLOCKED) {
+            } else if (ourState.getUserStatus() == UserKVState.STATUS_UNLOCKED && !kvOptimisticWrites) {
 
-                userState[oursession].startTran();
-                userState[oursession].setStatus(UserKVState.STATUS_TRYING_TO_LOCK);
-                GetAndLockUser(mainClient, userState[oursession], oursession, gson);
+                ourState.startTran(intendedStartNs);
+                ourState.setStatus(UserKVState.STATUS_TRYING_TO_LOCK);
+                dispatchGetAndLockUser(dispatcher, mainClient, asyncClient, ourState, oursession);
                 lockCount++;
 
-            } else if (userState[oursession].getUserStatus() == UserKVState.STATUS_LOCKED) {
+            } else if (ourState.getUserStatus() == UserKVState.STATUS_LOCKED
+                    || ourState.getUserStatus() == UserKVState.STATUS_UNLOCKED) {
 
-                userState[oursession].startTran();
-                userState[oursession].setStatus(UserKVState.STATUS_UPDATING);
+                if (ourState.getUserStatus() == UserKVState.STATUS_UNLOCKED) {
+                    optimisticWriteCount++;
+                }
+
+                ourState.startTran(intendedStartNs);
 
                 if (deltaProportion > r.nextInt(101)) {
                     deltaUpdate++;
@@ -401,19 +701,17 @@ public abstract class BaseChargingDemo {
                     // number. For
                     // large values stored as JSON this can have a dramatic effect on network
                     // bandwidth
-                    UpdateLockedUser(mainClient, userState[oursession],
-                            userState[oursession].getLockId(), getNewLoyaltyCardNumber(r) + "",
-                            ExtraUserData.NEW_LOYALTY_NUMBER, gson);
+                    dispatchKVUpdate(dispatcher, mainClient, asyncClient, ourState,
+                            getNewLoyaltyCardNumber(r) + "", ExtraUserData.NEW_LOYALTY_NUMBER);
                 } else {
                     fullUpdate++;
-                    UpdateLockedUser(mainClient, userState[oursession],
-                            userState[oursession].getLockId(), getExtraUserDataAsObject(jsonsize, gson, r), null, gson);
+                    dispatchKVUpdate(dispatcher, mainClient, asyncClient, ourState,
+                            getExtraUserDataAsObject(jsonsize, gson, r), null);
                 }
 
             }
 
             tranCount++;
-            userState[oursession].endTran(); //TODO - Fix when we make async
 
             if (tranCount % 100000 == 1) {
                 msg("Transaction " + tranCount);
@@ -432,6 +730,7 @@ public abstract class BaseChargingDemo {
 
         msg(tranCount + " transactions done...");
         msg("All entries in queue, waiting for it to drain...");
+        dispatcher.shutdown();
         msg("Queue drained...");
 
         long transactionsPerMs = tranCount / (System.currentTimeMillis() - startMsRun);
@@ -445,137 +744,484 @@ public abstract class BaseChargingDemo {
         msg(inFlightCount + " events where a tx was in flight were observed");
         msg(lockCount + " lock attempts");
         msg(contestedLockCount + " contested lock attempts");
+        msg(optimisticWriteCount + " optimistic write attempts");
         msg(lockFailCount + " lock attempt failures");
         msg(fullUpdate + " full updates");
         msg(deltaUpdate + " delta updates");
+        msg("Requests ran " + dispatcher);
+        msg("Key distribution " + keyGenerator);
 
         double tps = tranCount;
         tps = tps / (System.currentTimeMillis() - startMsRun);
         tps = tps * 1000;
 
-        reportRunLatencyStats(tpMs, tps);
+        reportRunLatencyStats(tpMs, tps, keyGenerator.toString());
 
-        // Declare victory if we got >= 90% of requested TPS...
-        return tps / (tpMs * 1000) > .9;
+        return tps;
     }
 
-    private static void GetAndLockUser(MongoClient mongoClient, UserKVState userKVState, int sessionId, Gson gson) {
+    /**
+     * Run GetAndLockUser the way our dispatcher wants it run.
+     */
+    private static void dispatchGetAndLockUser(RequestDispatcher dispatcher, MongoClient mainClient,
+                                               com.mongodb.reactivestreams.client.MongoClient asyncClient,
+                                               UserKVState ourState, int oursession)
+            throws InterruptedException {
 
-        MongoDatabase kvDatabase = mongoClient.getDatabase(CHARGLT_DATABASE);
-        MongoCollection<Document> collection = kvDatabase.getCollection(CHARGLT_USERS);
-        // Sets transaction options
-        TransactionOptions txnOptions = TransactionOptions.builder()
-                .writeConcern(WriteConcern.MAJORITY)
-                .build();
+        if (dispatcher.isAsync()) {
+            dispatcher.dispatchAsync(() -> AsyncChargingOperations.getAndLockUser(asyncClient, ourState));
+        } else {
+            dispatcher.dispatch(() -> {
+                GetAndLockUser(mainClient, ourState, oursession);
+                ourState.endTran();
+            });
+        }
+    }
 
-        Bson pk = eq(userKVState.id);
-        final long startMs = System.currentTimeMillis();
-        try (ClientSession session = mongoClient.startSession()) {
-            // Uses withTransaction and lambda for transaction operations
-            session.withTransaction(() -> {
-                Document userDoc = collection.find(pk).first();
-                if (userDoc != null) {
-                    UserTable ut = new UserTable(userDoc);
-                    ut.lock();
-                    Document update = userDoc.append("userSoftlockExpiry", ut.userSoftlockExpiry).append("userSoftLockSessionId", ut.userSoftLockSessionId);
-                    UpdateResult replaceResult = collection.replaceOne(pk, update);
-                    if (replaceResult.getModifiedCount() == 0) {
-                        msg("User not found");
-                    } else {
-                        userKVState.setLockId(ut.userSoftLockSessionId);
-                    }
-                }
+    /**
+     * Update a user. If we hold their lock this is UpdateLockedUser, otherwise
+     * it's an optimistic UpdateUnlockedUser.
+     */
+    private static void dispatchKVUpdate(RequestDispatcher dispatcher, MongoClient mainClient,
+                                         com.mongodb.reactivestreams.client.MongoClient asyncClient,
+                                         UserKVState ourState, Object extraPayload, String deltaOperationName)
+            throws InterruptedException {
 
-                return null; // Return value as expected by the lambda
-            }, txnOptions);
+        final boolean locked = ourState.getUserStatus() == UserKVState.STATUS_LOCKED;
+        ourState.setStatus(UserKVState.STATUS_UPDATING);
 
-            shc.reportLatency(BaseChargingDemo.KV_GET, startMs, "KV Get time", 2000);
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (locked) {
+            dispatchUpdateLockedUser(dispatcher, mainClient, asyncClient, ourState, ourState.getLockId(),
+                    extraPayload, deltaOperationName);
+        } else {
+            dispatchUpdateUnlockedUser(dispatcher, mainClient, asyncClient, ourState, extraPayload);
         }
+    }
 
+    /**
+     * Run UpdateUnlockedUser the way our dispatcher wants it run.
+     */
+    private static void dispatchUpdateUnlockedUser(RequestDispatcher dispatcher, MongoClient mainClient,
+                                                   com.mongodb.reactivestreams.client.MongoClient asyncClient,
+                                                   UserKVState ourState, Object extraPayload)
+            throws InterruptedException {
 
+        if (dispatcher.isAsync()) {
+            dispatcher.dispatchAsync(() -> AsyncChargingOperations.updateUnlockedUser(asyncClient, ourState, extraPayload));
+        } else {
+            dispatcher.dispatch(() -> {
+                UpdateUnlockedUser(mainClient, ourState, extraPayload);
+                ourState.endTran();
+            });
+        }
     }
 
-    private static void UpdateLockedUser(MongoClient mongoClient, UserKVState userKVState, long lockId, Object extraPayload, String deltaOperationName, Gson gson) {
+    /**
+     * Run UpdateLockedUser the way our dispatcher wants it run.
+     */
+    private static void dispatchUpdateLockedUser(RequestDispatcher dispatcher, MongoClient mainClient,
+                                                 com.mongodb.reactivestreams.client.MongoClient asyncClient,
+                                                 UserKVState ourState, long lockId, Object extraPayload,
+                                                 String deltaOperationName)
+            throws InterruptedException {
 
-        MongoDatabase kvDatabase = mongoClient.getDatabase(CHARGLT_DATABASE);
-        MongoCollection<Document> collection = kvDatabase.getCollection(CHARGLT_USERS);
-        // Sets transaction options
-        TransactionOptions txnOptions = TransactionOptions.builder()
-                .writeConcern(WriteConcern.MAJORITY)
-                .build();
+        if (dispatcher.isAsync()) {
+            dispatcher.dispatchAsync(() -> AsyncChargingOperations.updateLockedUser(asyncClient, ourState, lockId, extraPayload));
+        } else {
+            dispatcher.dispatch(() -> {
+                UpdateLockedUser(mainClient, ourState, lockId, extraPayload, deltaOperationName);
+                ourState.endTran();
+            });
+        }
+    }
 
-        Bson pk = eq(userKVState.id);
-        final long startMs = System.currentTimeMillis();
-        try (ClientSession session = mongoClient.startSession()) {
-            // Uses withTransaction and lambda for transaction operations
-            session.withTransaction(() -> {
-                Document userDoc = collection.find(pk).first();
-                if (userDoc != null) {
-                    UserTable ut = new UserTable(userDoc);
-
-                    if (ut.isLockedBySomeoneElse(lockId)) {
-                        userKVState.lockedBySomeoneElseCount++;
-                        msg(userKVState.id + ": locked by session " + ut.userId + " until " + ut.userSoftlockExpiry);
-                    } else {
+    /**
+     * Run addCredit the way our dispatcher and chargingMode want it run.
+     */
+    static void dispatchAddCredit(RequestDispatcher dispatcher, MongoClient mainClient,
+                                  com.mongodb.reactivestreams.client.MongoClient asyncClient,
+                                  UserTransactionState user, long extraCredit, String txnId,
+                                  long intendedStartNs, ChargingMode chargingMode)
+            throws InterruptedException {
 
-                        ut.unLock();//
-                        Document update;
+        if (dispatcher.isAsync()) {
+            dispatcher.dispatchAsync(() -> {
+                // Time starts once we have a permit, not while we wait for one...
+                final long startNs = System.nanoTime();
+                return (chargingMode == ChargingMode.ATOMIC
+                        ? AsyncChargingOperations.addCreditAtomic(asyncClient, user.id, extraCredit, txnId)
+                        : chargingMode == ChargingMode.OCC
+                        ? AsyncChargingOperations.addCreditOCC(asyncClient, user.id, extraCredit, txnId)
+                        : AsyncChargingOperations.addCredit(asyncClient, user.id, extraCredit, txnId))
+                        .whenComplete((added, t) -> {
+                            if (t != null) {
+                                t.printStackTrace();
+                            }
+                            shc.reportLatencyWithIntended(ADD_CREDIT, intendedStartNs, startNs, "ADD_CREDIT", 2000);
+                            shc.incCounter(ADD_CREDIT);
+                            if (t == null && added) {
+                                user.spendableBalance += extraCredit;
+                            }
+                            user.endTran();
+                        });
+            });
+        } else {
+            dispatcher.dispatch(() -> {
+                final long startNs = System.nanoTime();
+                final boolean added;
+                if (chargingMode == ChargingMode.ATOMIC) {
+                    added = addCreditAtomic(mainClient, user.id, extraCredit, txnId);
+                } else if (chargingMode == ChargingMode.OCC) {
+                    added = addCreditOCC(mainClient, user.id, extraCredit, txnId);
+                } else {
+                    added = addCredit(mainClient, user.id, extraCredit, txnId);
+                }
+                shc.reportLatencyWithIntended(ADD_CREDIT, intendedStartNs, startNs, "ADD_CREDIT", 2000);
+                shc.incCounter(ADD_CREDIT);
+                // Only spend what we actually have...
+                if (added) {
+                    user.spendableBalance += extraCredit;
+                }
+                user.endTran();
+            });
+        }
+    }
 
-                        if (extraPayload instanceof String) {
-                            ut.userDataObject.loyaltySchemeNumber = Long.parseLong((String) extraPayload);
-                            Document utDoc = Document.parse(gson.toJson(ut.userDataObject));
-                            update = userDoc.append("userSoftlockExpiry", null).append("userSoftLockSessionId", NO_SESSION).append("userDataObject", utDoc);
-                        } else {
-                            Document utDoc = Document.parse(gson.toJson(extraPayload));
-                            update = userDoc.append("userSoftlockExpiry", null).append("userSoftLockSessionId", NO_SESSION).append("userDataObject", utDoc);
-                        }
+    /**
+     * Run reportQuotaUsage the way our dispatcher and chargingMode want it run.
+     */
+    static void dispatchReportQuotaUsage(RequestDispatcher dispatcher, MongoClient mainClient,
+                                         com.mongodb.reactivestreams.client.MongoClient asyncClient,
+                                         UserTransactionState user, int unitsUsed, int unitsWanted, long sessionId,
+                                         String txnId, long intendedStartNs, ChargingMode chargingMode)
+            throws InterruptedException {
 
-                        UpdateResult replaceResult = collection.replaceOne(pk, update);
-                        if (replaceResult.getModifiedCount() == 0) {
-                            msg("User not found");
-                        }
-                        userKVState.setLockId(NO_SESSION);
-                    }
+        if (dispatcher.isAsync()) {
+            dispatcher.dispatchAsync(() -> {
+                final long startNs = System.nanoTime();
+                return (chargingMode == ChargingMode.ATOMIC
+                        ? AsyncChargingOperations.reportQuotaUsageAtomic(asyncClient, user.id, unitsUsed, unitsWanted,
+                        sessionId, txnId, user)
+                        : chargingMode == ChargingMode.OCC
+                        ? AsyncChargingOperations.reportQuotaUsageOCC(asyncClient, user.id, unitsUsed, unitsWanted,
+                        sessionId, txnId, user)
+                        : AsyncChargingOperations.reportQuotaUsage(asyncClient, user.id, unitsUsed,
+                        unitsWanted, sessionId, txnId, user))
+                        .whenComplete((statusByte, t) -> {
+                            if (t != null) {
+                                t.printStackTrace();
+                            }
+                            shc.reportLatencyWithIntended(REPORT_QUOTA_USAGE, intendedStartNs, startNs, "REPORT_QUOTA_USAGE", 2000);
+                            shc.incCounter(REPORT_QUOTA_USAGE);
+                            user.endTran();
+                        });
+            });
+        } else {
+            dispatcher.dispatch(() -> {
+                final long startNs = System.nanoTime();
+                if (chargingMode == ChargingMode.ATOMIC) {
+                    reportQuotaUsageAtomic(mainClient, user.id, unitsUsed, unitsWanted, sessionId, txnId, user);
+                } else if (chargingMode == ChargingMode.OCC) {
+                    reportQuotaUsageOCC(mainClient, user.id, unitsUsed, unitsWanted, sessionId, txnId, user);
+                } else {
+                    reportQuotaUsage(mainClient, user.id, unitsUsed, unitsWanted, sessionId, txnId, user);
                 }
-
-                return null; // Return value as expected by the lambda
-            }, txnOptions);
-            shc.reportLatency(BaseChargingDemo.KV_PUT, startMs, "KV Put Time", 2000);
-        } catch (Exception e) {
-            e.printStackTrace();
+                shc.reportLatencyWithIntended(REPORT_QUOTA_USAGE, intendedStartNs, startNs, "REPORT_QUOTA_USAGE", 2000);
+                shc.incCounter(REPORT_QUOTA_USAGE);
+                user.endTran();
+            });
         }
+    }
 
+    /**
+     * Read a user, outside a transaction, the way our dispatcher wants it run.
+     */
+    private static void dispatchPointRead(RequestDispatcher dispatcher, MongoClient mainClient,
+                                          com.mongodb.reactivestreams.client.MongoClient asyncClient,
+                                          int userId, long intendedStartNs)
+            throws InterruptedException {
 
+        if (dispatcher.isAsync()) {
+            dispatcher.dispatchAsync(() -> {
+                final long startNs = System.nanoTime();
+                return AsyncChargingOperations.getUser(asyncClient, userId)
+                        .whenComplete((userDoc, t) -> {
+                            if (t != null) {
+                                t.printStackTrace();
+                            }
+                            shc.reportLatencyWithIntended(POINT_READ, intendedStartNs, startNs, "POINT_READ", 2000);
+                        });
+            });
+        } else {
+            dispatcher.dispatch(() -> {
+                final long startNs = System.nanoTime();
+                try {
+                    mainClient.getDatabase(CHARGLT_DATABASE).getCollection(CHARGLT_USERS).find(eq(userId)).first();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                shc.reportLatencyWithIntended(POINT_READ, intendedStartNs, startNs, "POINT_READ", 2000);
+            });
+        }
     }
 
     /**
-     * Used when we need to really slow down below 1 tx per ms..
-     *
-     * @param extraMs an arbitrary extra delay.
+     * Lock a user with one findOneAndUpdate that only matches if they are
+     * unlocked or the lock has expired. If nothing matches someone else has
+     * the lock, which costs us one round trip instead of an aborted
+     * transaction. Expiry is decided by the server's clock, not ours.
      */
-    private static void sleepExtraMSIfNeeded(int extraMs) {
-        if (extraMs > 0) {
-            try {
-                Thread.sleep(extraMs);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    private static void GetAndLockUser(MongoClient mongoClient, UserKVState userKVState, int sessionId) {
+
+        MongoCollection<RawBsonDocument> collection = getRawUserCollection(mongoClient)
+                .withWriteConcern(WriteConcern.MAJORITY);
+
+        final long newLockId = UserTable.newLockId();
+        final long startNs = System.nanoTime();
+
+        try {
+            RawBsonDocument before = collection.findOneAndUpdate(getLockableFilter(userKVState.id),
+                    getLockUpdate(newLockId, lockLease.getLeaseMs()), LOCK_OPTIONS);
+
+            if (before == null) {
+                userKVState.setLockedBySomeoneElse();
+            } else {
+                reportIfLeaseStolen(before);
+                userKVState.setLockId(newLockId);
             }
-        }
 
+            shc.reportLatencyWithIntended(BaseChargingDemo.KV_GET, userKVState.getIntendedStartNs(), startNs, "KV Get time", 2000);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Convenience method to remove unneeded records storing old allotments of
-     * credit.
-     *
+     * We want the lock as it was before we took it, so we can tell if we
+     * took over someone else's expired lease.
      */
-    protected static void clearUnfinishedTransactions(MongoClient mongoClient, int usercount, Gson g)
+    static final FindOneAndUpdateOptions LOCK_OPTIONS = new FindOneAndUpdateOptions()
+            .returnDocument(ReturnDocument.BEFORE)
+            .projection(Projections.include("userSoftLockSessionId"));
+
+    /**
+     * @param userId user id
+     * @return a filter that only matches userId if it's unlocked or its lease
+     * has run out, according to the server's clock. Missing and null expiry
+     * dates sort before $$NOW, as do text dates from Gson documents.
+     */
+    static Bson getLockableFilter(long userId) {
+        return and(eq(userId), expr(new Document("$lte", Arrays.asList("$userSoftlockExpiry", "$$NOW"))));
+    }
+
+    /**
+     * @param userId user id
+     * @return a filter that only matches userId if nobody holds its lock, even
+     * an expired one. Optimistic writes use this, so taking over someone
+     * else's lease always goes through getLockableFilter and is counted.
+     */
+    static Bson getUnlockedFilter(long userId) {
+        return and(eq(userId), in("userSoftLockSessionId", NO_SESSION, null));
+    }
+
+    /**
+     * @param lockId  new lock id
+     * @param leaseMs how long we want it for
+     * @return an update pipeline that gives us the lock until $$NOW + leaseMs
+     */
+    static List<Bson> getLockUpdate(long lockId, int leaseMs) {
+        return Arrays.asList(new Document("$set", new Document("userSoftLockSessionId", lockId)
+                .append("userSoftlockExpiry", new Document("$add", Arrays.asList("$$NOW", (long) leaseMs)))));
+    }
+
+    /**
+     * @param before the user as it was before we locked it
+     * @return true if it still had someone else's lock id, which means we took
+     * over a lease that had run out. We count these as LOCK_LEASE_STOLEN.
+     */
+    static boolean reportIfLeaseStolen(RawBsonDocument before) {
+
+        BsonValue oldLockId = before.get("userSoftLockSessionId");
+
+        if (oldLockId != null && oldLockId.isNumber() && oldLockId.asNumber().longValue() != NO_SESSION) {
+            shc.incCounter(LockLease.LOCK_LEASE_STOLEN);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Change a locked user and unlock them with one updateOne. A delta update
+     * only sends the new loyalty number and a full update sends the new
+     * userDataObject. Either way we don't read the user first: the lock check
+     * is part of the filter, so if our lease ran out and someone else took the
+     * lock nothing matches and we leave their changes alone.
+     */
+    private static void UpdateLockedUser(MongoClient mongoClient, UserKVState userKVState, long lockId, Object extraPayload, String deltaOperationName) {
+
+        Bson filter = getLockOwnerFilter(userKVState.id, lockId);
+        Bson update = getKVUpdate(extraPayload);
+
+        final long startNs = System.nanoTime();
+        try {
+            UpdateResult updateResult = getRawUserCollection(mongoClient).withWriteConcern(WriteConcern.MAJORITY)
+                    .updateOne(filter, update);
+
+            if (updateResult.getMatchedCount() == 0) {
+                userKVState.setLockedBySomeoneElse();
+                msg(userKVState.id + ": locked by another session");
+            } else {
+                userKVState.setLockId(NO_SESSION);
+            }
+
+            reportKVPutBytes(getKVPutType(extraPayload), getBsonSize(filter) + getBsonSize(update));
+            shc.reportLatencyWithIntended(BaseChargingDemo.KV_PUT, userKVState.getIntendedStartNs(), startNs, "KV Put Time", 2000);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Update a user we haven't locked with one updateOne that only matches if
+     * nobody else has locked them either. This is lock, change and unlock in
+     * one round trip. If nothing matches someone else has the lock, and we go
+     * back to locking first, which takes over their lease if it has run out.
+     */
+    private static void UpdateUnlockedUser(MongoClient mongoClient, UserKVState userKVState, Object extraPayload) {
+
+        Bson filter = getUnlockedFilter(userKVState.id);
+        Bson update = getKVUpdate(extraPayload);
+
+        final long startNs = System.nanoTime();
+        try {
+            UpdateResult updateResult = getRawUserCollection(mongoClient).withWriteConcern(WriteConcern.MAJORITY)
+                    .updateOne(filter, update);
+
+            if (reportOptimisticWrite(updateResult.getMatchedCount() > 0)) {
+                userKVState.setLockId(NO_SESSION);
+            } else {
+                userKVState.setLockedBySomeoneElse();
+            }
+
+            reportKVPutBytes(getKVPutType(extraPayload), getBsonSize(filter) + getBsonSize(update));
+            shc.reportLatencyWithIntended(BaseChargingDemo.KV_PUT, userKVState.getIntendedStartNs(), startNs, "KV Put Time", 2000);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param extraPayload either a new loyalty number as a String, or a new
+     *                     ExtraUserData
+     * @return an update that makes the change and leaves the user unlocked
+     */
+    static Bson getKVUpdate(Object extraPayload) {
+
+        if (extraPayload instanceof String) {
+            return getDeltaUpdate(Long.parseLong((String) extraPayload));
+        }
+
+        return getUnlockingUpdate(set("userDataObject", (ExtraUserData) extraPayload));
+    }
+
+    /**
+     * @param extraPayload what getKVUpdate was given
+     * @return KV_PUT_DELTA or KV_PUT_FULL
+     */
+    static String getKVPutType(Object extraPayload) {
+        return extraPayload instanceof String ? KV_PUT_DELTA : KV_PUT_FULL;
+    }
+
+    /**
+     * Count an optimistic write as KV_OPTIMISTIC_WRITE if it happened or
+     * KV_OPTIMISTIC_CONFLICT if someone else had the lock.
+     *
+     * @param written true if our update matched
+     * @return written
+     */
+    static boolean reportOptimisticWrite(boolean written) {
+        shc.incCounter(written ? KV_OPTIMISTIC_WRITE : KV_OPTIMISTIC_CONFLICT);
+        return written;
+    }
+
+    /**
+     * @param userId user id
+     * @param lockId lock we think we hold
+     * @return a filter that only matches userId if it's unlocked or locked by
+     * lockId. Like getUnlockedFilter, a missing lock id counts as unlocked.
+     */
+    static Bson getLockOwnerFilter(long userId, long lockId) {
+        return and(eq(userId), in("userSoftLockSessionId", lockId, NO_SESSION, null));
+    }
+
+    /**
+     * @param loyaltySchemeNumber new loyalty number
+     * @return an update that sets just the loyalty number and unlocks the user
+     */
+    static Bson getDeltaUpdate(long loyaltySchemeNumber) {
+        return getUnlockingUpdate(set("userDataObject.loyaltySchemeNumber", loyaltySchemeNumber));
+    }
+
+    /**
+     * @param change what we want to change
+     * @return change, plus unlocking the user
+     */
+    static Bson getUnlockingUpdate(Bson change) {
+        return combine(change,
+                set("userSoftLockSessionId", Long.MIN_VALUE),
+                unset("userSoftlockExpiry"));
+    }
+
+    /**
+     * @param bson a filter, update or document
+     * @return how many bytes it takes up as BSON
+     */
+    static int getBsonSize(Bson bson) {
+
+        if (bson instanceof RawBsonDocument) {
+            return ((RawBsonDocument) bson).getByteBuffer().remaining();
+        }
+
+        return new RawBsonDocument(bson.toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY),
+                new BsonDocumentCodec()).getByteBuffer().remaining();
+    }
+
+    /**
+     * Count a KV put and the bytes it moved, so we can report bytes per op.
+     *
+     * @param type  KV_PUT_DELTA or KV_PUT_FULL
+     * @param bytes documents read plus filters and updates sent
+     */
+    static void reportKVPutBytes(String type, int bytes) {
+        shc.incCounter(type);
+        shc.incCounter(type + BYTES_SUFFIX, bytes);
+    }
+
+    /**
+     * Print the average bytes moved by each kind of KV put.
+     */
+    private static void reportKVPutBytesPerOp() {
+
+        for (String type : new String[]{KV_PUT_DELTA, KV_PUT_FULL}) {
+
+            final long count = shc.getCounter(type);
+
+            if (count > 0) {
+                msg(type + ": " + count + " ops, " + (shc.getCounter(type + BYTES_SUFFIX) / count) + " bytes per op");
+            }
+        }
+    }
+
+    /**
+     * Convenience method to remove unneeded records storing old allotments of
+     * credit.
+     *
+     */
+    protected static void clearUnfinishedTransactions(MongoClient mongoClient, int usercount)
             throws Exception {
 
-        MongoDatabase kvDatabase = mongoClient.getDatabase(CHARGLT_DATABASE);
-        MongoCollection<Document> collection = kvDatabase.getCollection(CHARGLT_USERS);
+        MongoCollection<UserTable> collection = getUserCollection(mongoClient);
         // Sets transaction options
         TransactionOptions txnOptions = TransactionOptions.builder()
                 .writeConcern(WriteConcern.MAJORITY)
@@ -588,12 +1234,10 @@ public abstract class BaseChargingDemo {
             try (ClientSession session = mongoClient.startSession()) {
                 // Uses withTransaction and lambda for transaction operations
                 session.withTransaction(() -> {
-                    Document userDoc = collection.find(pk).first();
-                    if (userDoc != null) {
-                        UserTable ut = new UserTable(userDoc);
+                    UserTable ut = collection.find(pk).first();
+                    if (ut != null) {
                         ut.clearSessions();
-                        Document update = userDoc.append("userUsage", ut.userUsage);
-                        UpdateResult replaceResult = collection.replaceOne(pk, update);
+                        UpdateResult replaceResult = collection.replaceOne(pk, ut);
                         if (replaceResult.getModifiedCount() == 0) {
                             msg("User " + pk + " not found on update");
                         }
@@ -651,21 +1295,25 @@ public abstract class BaseChargingDemo {
      * @param globalQueryFreqSeconds how often we check on global stats and a single
      *                               user
      * @param mainClient
-     * @return true if within 90% of targeted TPS
+     * @param asyncClient            reactive client, used if ASYNC_IN_FLIGHT is set
+     * @return observed transactions per second
      * @throws InterruptedException
      */
-    protected static boolean runTransactionBenchmark(int userCount, int tpMs, int durationSeconds,
-                                                     int globalQueryFreqSeconds, MongoClient mainClient, MongoClient otherClient, int extraMs)
+    protected static double runTransactionBenchmark(int userCount, double tpMs, int durationSeconds,
+                                                     int globalQueryFreqSeconds, MongoClient mainClient, MongoClient otherClient,
+                                                     com.mongodb.reactivestreams.client.MongoClient asyncClient, int extraMs)
             throws InterruptedException {
 
-        Gson g = new Gson();
-        MongoDatabase database = mainClient.getDatabase(CHARGLT_DATABASE);
-        MongoCollection<Document> collection = database.getCollection(CHARGLT_USERS);
-
         // Used to track changes and be unique when we are running multiple threads
         final long pid = getPid();
 
-        Random r = new Random();
+        // More threads than users would leave some of them nothing to do...
+        final int threadCount = Math.min(getThreadCountIfSet(), Math.max(1, userCount));
+        final String keyDistribution = KeyGenerator.getKeyDistributionIfSet();
+        final ChargingMode chargingMode = ChargingMode.getChargingModeIfSet();
+        final double tpMsPerWorker = OpenLoopScheduler.getEffectiveTpMs(tpMs, extraMs) / threadCount;
+
+        RequestDispatcher dispatcher = RequestDispatcher.getDispatcher();
 
         UserTransactionState[] users = new UserTransactionState[userCount];
 
@@ -677,71 +1325,275 @@ public abstract class BaseChargingDemo {
         }
 
         final long startMsRun = System.currentTimeMillis();
-        long currentMs = System.currentTimeMillis();
-        int tpThisMs = 0;
 
         final long endtimeMs = System.currentTimeMillis() + (durationSeconds * 1000L);
 
-        // How many transactions we've done...
+        long lastGlobalQueryMs = System.currentTimeMillis();
+
+        // Workers share one key generator over all the users, so hot users are
+        // hot for everyone, and each gets its own share of tpMs...
+        final KeyGenerator keyGenerator = KeyGenerator.getKeyGenerator(keyDistribution, userCount);
+        TransactionBenchmarkWorker[] workers = new TransactionBenchmarkWorker[threadCount];
+        Thread[] workerThreads = new Thread[threadCount];
+
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new TransactionBenchmarkWorker(users, tpMsPerWorker, keyGenerator, endtimeMs, mainClient,
+                    asyncClient, dispatcher, chargingMode, pid, i);
+            workerThreads[i] = new Thread(workers[i], "TransactionBenchmarkWorker-" + i);
+        }
+
+        msg("starting " + threadCount + " worker threads...");
+
+        for (Thread workerThread : workerThreads) {
+            workerThread.start();
+        }
+
+        // While the workers run we take care of the global queries...
+        while (endtimeMs > System.currentTimeMillis()) {
+
+            Thread.sleep(Math.max(1, Math.min(endtimeMs - System.currentTimeMillis(), 100)));
+
+            // See if we need to do global queries...
+            if (lastGlobalQueryMs + (globalQueryFreqSeconds * 1000L) < System.currentTimeMillis()) {
+                lastGlobalQueryMs = System.currentTimeMillis();
+
+                queryUserAndStats(mainClient, GENERIC_QUERY_USER_ID, userCount);
+
+            }
+
+        }
+
+        msg("finished adding transactions to queue");
+
         long tranCount = 0;
         long inFlightCount = 0;
         long addCreditCount = 0;
         long reportUsageCount = 0;
+
+        for (int i = 0; i < threadCount; i++) {
+            workerThreads[i].join();
+            tranCount += workers[i].tranCount;
+            inFlightCount += workers[i].inFlightCount;
+            addCreditCount += workers[i].addCreditCount;
+            reportUsageCount += workers[i].reportUsageCount;
+        }
+
+        msg("All entries in queue, waiting for it to drain...");
+        dispatcher.shutdown();
+        msg("Queue drained");
+
+        long elapsedTimeMs = System.currentTimeMillis() - startMsRun;
+        msg("Processed " + tranCount + " transactions in " + elapsedTimeMs + " milliseconds");
+
+        double tps = tranCount;
+        tps = tps / elapsedTimeMs;
+        tps = tps * 1000;
+
+        msg("TPS = " + tps);
+
+        msg("Worker threads = " + threadCount);
+        msg("Requests ran " + dispatcher);
+        msg("Key distribution " + keyGenerator);
+        msg("Charging mode " + chargingMode);
+        msg("Add Credit calls = " + addCreditCount);
+        msg("Report Usage calls = " + reportUsageCount);
+        msg("Skipped because transaction was in flight = " + inFlightCount);
+
+        reportRunLatencyStats(tpMs, tps, keyGenerator.toString());
+
+        return tps;
+    }
+
+
+    /**
+     *
+     * Run a mixed workload for userCount users at tpMs transactions per
+     * millisecond. Each request picks a user using KEY_DISTRIBUTION and an
+     * operation using mix, so one run can reproduce a realistic traffic mix of
+     * charging, KV and read traffic. If traceWriter is set every generated
+     * operation is recorded. If traceReader is set we ignore mix and
+     * durationSeconds and replay the trace instead, so two runs can offer exactly
+     * the same load.
+     *
+     * @param userCount              number of users
+     * @param tpMs                   transactions per milliseconds
+     * @param durationSeconds
+     * @param globalQueryFreqSeconds how often we check on global stats and a single
+     *                               user
+     * @param jsonsize               size of payload for KV_FULL_UPDATE
+     * @param mainClient
+     * @param asyncClient            reactive client, used if ASYNC_IN_FLIGHT is set
+     * @param mix                    what operations we run, and how often
+     * @param traceWriter            where to record operations, or null
+     * @param traceReader            trace to replay, or null
+     * @param replaySpeed            how much faster than the original we replay
+     * @param extraMs
+     * @return observed transactions per second
+     * @throws InterruptedException
+     */
+    protected static double runMixedWorkloadBenchmark(int userCount, double tpMs, int durationSeconds,
+                                                       int globalQueryFreqSeconds, int jsonsize, MongoClient mainClient,
+                                                       com.mongodb.reactivestreams.client.MongoClient asyncClient,
+                                                       WorkloadMix mix, TraceWriter traceWriter, TraceReader traceReader,
+                                                       double replaySpeed, int extraMs)
+            throws InterruptedException {
+
+        if (traceReader != null && traceReader.getUserCount() > userCount) {
+            throw new IllegalArgumentException("Trace was recorded with " + traceReader.getUserCount()
+                    + " users, we only have " + userCount);
+        }
+
+        // Used to make transaction ids unique when we are running multiple processes
+        final String txnIdPrefix = "Mixed_" + getPid() + "_";
+
         long lastGlobalQueryMs = System.currentTimeMillis();
 
-        msg("starting...");
+        RequestDispatcher dispatcher = RequestDispatcher.getDispatcher();
+        KeyGenerator keyGenerator = KeyGenerator.getKeyGenerator(KeyGenerator.getKeyDistributionIfSet(), userCount);
+        ChargingMode chargingMode = ChargingMode.getChargingModeIfSet();
 
-        while (endtimeMs > System.currentTimeMillis()) {
+        UserTransactionState[] users = new UserTransactionState[userCount];
+        UserKVState[] userKVState = new UserKVState[userCount];
 
-            if (tpThisMs++ > tpMs) {
+        msg("Creating internal client records for " + users.length + " users");
+        for (int i = 0; i < userCount; i++) {
+            users[i] = new UserTransactionState(i, 2000);
+            userKVState[i] = new UserKVState(i, shc);
+        }
 
-                while (currentMs == System.currentTimeMillis()) {
-                    Thread.sleep(0, 50000);
+        Random r = new Random();
+        Gson gson = new Gson();
 
-                }
+        // Reseeded with txnSeq before each KV update, so a replay writes the same payloads...
+        Random payloadRandom = new Random();
 
-                sleepExtraMSIfNeeded(extraMs);
+        // What the mix asked for, and what we actually ran, by OperationType ordinal
+        final long[] requestedCount = new long[OperationType.values().length];
+        final long[] ranCount = new long[OperationType.values().length];
 
-                currentMs = System.currentTimeMillis();
-                tpThisMs = 0;
-            }
+        long tranCount = 0;
+        long inFlightCount = 0;
+        long contestedLockCount = 0;
 
-            int randomuser = r.nextInt(userCount);
+        final long startMsRun = System.currentTimeMillis();
+        final long startNsRun = System.nanoTime();
+        OpenLoopScheduler scheduler = new OpenLoopScheduler(OpenLoopScheduler.getEffectiveTpMs(tpMs, extraMs), startNsRun);
 
-            if (users[randomuser].isTxInFlight()) {
-                inFlightCount++;
-            } else {
+        final long endtimeMs = System.currentTimeMillis() + (durationSeconds * 1000L);
 
-                users[randomuser].startTran();
+        while (traceReader != null || endtimeMs > System.currentTimeMillis()) {
 
-                if (users[randomuser].spendableBalance < 1000) {
+            final long intendedStartNs;
+            final int ouruser;
+            final OperationType requested;
+            final long sessionId;
+            final int unitsUsed;
+            final int unitsWanted;
+            final long txnSeq;
 
-                    addCreditCount++;
+            try {
+                if (traceReader != null) {
 
-                    final long extraCredit = r.nextInt(1000) + 1000;
+                    // Do exactly what the trace says, when it says...
+                    if (!traceReader.next()) {
+                        break;
+                    }
 
-                    final long startMs = System.currentTimeMillis();
-                    addCredit(mainClient, randomuser, extraCredit, g);
-                    shc.reportLatency(BaseChargingDemo.ADD_CREDIT, startMs, "ADD_CREDIT", 2000);
-                    shc.incCounter(BaseChargingDemo.ADD_CREDIT);
-                    users[randomuser].endTran();
-                    users[randomuser].spendableBalance += extraCredit;
+                    intendedStartNs = startNsRun + (long) (traceReader.getIntendedOffsetNs() / replaySpeed);
+                    OpenLoopScheduler.awaitNanoTime(intendedStartNs);
 
+                    ouruser = traceReader.getUserId();
+                    requested = traceReader.getOperation();
+                    sessionId = traceReader.getSessionId();
+                    unitsUsed = traceReader.getUnitsUsed();
+                    unitsWanted = traceReader.getUnitsWanted();
+                    txnSeq = traceReader.getTxnSeq();
 
                 } else {
 
-                    reportUsageCount++;
+                    intendedStartNs = scheduler.awaitNext();
+
+                    ouruser = keyGenerator.nextKey();
+                    requested = mix.nextOperation();
+                    sessionId = users[ouruser].sessionId;
+                    unitsUsed = requested == OperationType.ADD_CREDIT ? r.nextInt(1000) + 1000
+                            : (int) (users[ouruser].currentlyReserved * 0.9);
+                    unitsWanted = requested == OperationType.REPORT_USAGE ? r.nextInt(100) : 0;
+                    txnSeq = tranCount;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            requestedCount[requested.ordinal()]++;
+
+            final UserTransactionState user = users[ouruser];
+            final UserKVState ourKVState = userKVState[ouruser];
+            final OperationType op;
+
+            if (requested == OperationType.POINT_READ) {
+                // Reads don't care what else is going on...
+                op = requested;
+            } else if (user.isTxInFlight() || ourKVState.isTxInFlight()) {
+                inFlightCount++;
+                op = null;
+            } else if (traceReader != null || !requested.isKV()) {
+                // A trace has the KV operation we actually ran, so we run it as is...
+                op = requested;
+            } else {
+                op = chooseKVOperation(requested, ourKVState);
+                if (op == null) {
+                    contestedLockCount++;
+                }
+            }
+
+            if (op != null) {
+
+                ranCount[op.ordinal()]++;
 
-                    int unitsUsed = (int) (users[randomuser].currentlyReserved * 0.9);
-                    int unitsWanted = r.nextInt(100);
-                    final long startMs = System.currentTimeMillis();
-                    reportQuotaUsage(mainClient, randomuser, unitsUsed,
-                            unitsWanted, users[randomuser].sessionId,
-                            "ReportQuotaUsage_" + pid + "_" + reportUsageCount + "_" + System.currentTimeMillis(), g, users[randomuser]);
-                    shc.reportLatency(BaseChargingDemo.REPORT_QUOTA_USAGE, startMs, "REPORT_QUOTA_USAGE", 2000);
-                    shc.incCounter(BaseChargingDemo.REPORT_QUOTA_USAGE);
-                    users[randomuser].endTran();
+                if (traceWriter != null) {
+                    try {
+                        traceWriter.write(op, ouruser, sessionId, unitsUsed, unitsWanted, txnSeq,
+                                intendedStartNs - startNsRun);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
 
+                switch (op) {
+                    case POINT_READ:
+                        dispatchPointRead(dispatcher, mainClient, asyncClient, ouruser, intendedStartNs);
+                        break;
+                    case ADD_CREDIT:
+                        user.startTran();
+                        dispatchAddCredit(dispatcher, mainClient, asyncClient, user, unitsUsed,
+                                txnIdPrefix + "AddCredit_" + txnSeq, intendedStartNs, chargingMode);
+                        break;
+                    case REPORT_USAGE:
+                    case REPORT_USAGE_ZERO_WANTED:
+                        user.startTran();
+                        dispatchReportQuotaUsage(dispatcher, mainClient, asyncClient, user, unitsUsed, unitsWanted,
+                                sessionId, txnIdPrefix + txnSeq, intendedStartNs, chargingMode);
+                        break;
+                    case KV_GET_AND_LOCK:
+                        ourKVState.startTran(intendedStartNs);
+                        ourKVState.setStatus(UserKVState.STATUS_TRYING_TO_LOCK);
+                        dispatchGetAndLockUser(dispatcher, mainClient, asyncClient, ourKVState, ouruser);
+                        break;
+                    case KV_DELTA_UPDATE:
+                        ourKVState.startTran(intendedStartNs);
+                        payloadRandom.setSeed(txnSeq);
+                        dispatchKVUpdate(dispatcher, mainClient, asyncClient, ourKVState,
+                                getNewLoyaltyCardNumber(payloadRandom) + "", ExtraUserData.NEW_LOYALTY_NUMBER);
+                        break;
+                    case KV_FULL_UPDATE:
+                        ourKVState.startTran(intendedStartNs);
+                        payloadRandom.setSeed(txnSeq);
+                        dispatchKVUpdate(dispatcher, mainClient, asyncClient, ourKVState,
+                                getExtraUserDataAsObject(jsonsize, gson, payloadRandom), null);
+                        break;
+                    default:
+                        break;
                 }
             }
 
@@ -759,112 +1611,839 @@ public abstract class BaseChargingDemo {
 
         }
 
-        msg("finished adding transactions to queue");
-        msg("Queue drained");
+        msg(tranCount + " transactions done...");
+        msg("All entries in queue, waiting for it to drain...");
+        dispatcher.shutdown();
+        msg("Queue drained...");
 
         long elapsedTimeMs = System.currentTimeMillis() - startMsRun;
         msg("Processed " + tranCount + " transactions in " + elapsedTimeMs + " milliseconds");
 
-        double tps = tranCount;
-        tps = tps / (elapsedTimeMs / 1000);
-
-        msg("TPS = " + tps);
+        if (traceReader != null) {
+            msg("Replayed " + traceReader.getRecordCount() + " operations at " + replaySpeed + "x");
+        } else {
+            msg("Workload mix " + mix);
+        }
 
-        msg("Add Credit calls = " + addCreditCount);
-        msg("Report Usage calls = " + reportUsageCount);
-        msg("Skipped because transaction was in flight = " + inFlightCount);
+        if (traceWriter != null) {
+            msg("Recorded " + traceWriter.getRecordCount() + " operations");
+        }
 
-        reportRunLatencyStats(tpMs, tps);
+        for (OperationType op : OperationType.values()) {
+            msg(op + ": requested " + requestedCount[op.ordinal()] + ", ran " + ranCount[op.ordinal()]);
+        }
 
-        // Declare victory if we got >= 90% of requested TPS...
-        return tps / (tpMs * 1000) > .9;
-    }
+        msg("Skipped because transaction was in flight = " + inFlightCount);
+        msg("Skipped because someone else had the lock = " + contestedLockCount);
+        msg("Charging mode " + chargingMode);
+        msg("Requests ran " + dispatcher);
+        msg("Key distribution " + (traceReader == null ? keyGenerator : "from trace"));
 
+        double tps = tranCount;
+        tps = tps / elapsedTimeMs;
+        tps = tps * 1000;
 
-    private static void addCredit(MongoClient mongoClient, int randomuser, long extraCredit, Gson g) {
+        reportRunLatencyStats(tpMs, tps, traceReader == null ? keyGenerator.toString() : "replay");
 
-        MongoDatabase restaurantsDatabase = mongoClient.getDatabase(CHARGLT_DATABASE);
-        MongoCollection<Document> collection = restaurantsDatabase.getCollection(CHARGLT_USERS);
-        // Sets transaction options
-        TransactionOptions txnOptions = TransactionOptions.builder()
-                .writeConcern(WriteConcern.MAJORITY)
-                .build();
+        return tps;
+    }
 
-        try (ClientSession session = mongoClient.startSession()) {
-            // Uses withTransaction and lambda for transaction operations
-            session.withTransaction(() -> {
-                Document userDoc = collection.find(eq(randomuser)).first();
-                if (userDoc != null) {
-                    collection.replaceOne(eq(randomuser), addCredit(userDoc, g, extraCredit));
-                }
+    /**
+     * KV updates only make sense if we hold the lock, so if we don't we lock
+     * first, unless KV_OPTIMISTIC_WRITES is set and nobody has locked the user.
+     * Asking to lock a user we already hold becomes a delta update, which
+     * releases it.
+     *
+     * @param requested  what the workload mix asked for
+     * @param ourKVState client side state of the user
+     * @return what we should actually do, or null if someone else holds the lock
+     */
+    private static OperationType chooseKVOperation(OperationType requested, UserKVState ourKVState) {
 
-                return null; // Return value as expected by the lambda
-            }, txnOptions);
+        if (ourKVState.getUserStatus() == UserKVState.STATUS_LOCKED) {
+            return requested == OperationType.KV_GET_AND_LOCK ? OperationType.KV_DELTA_UPDATE : requested;
+        }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (kvOptimisticWrites && ourKVState.getUserStatus() == UserKVState.STATUS_UNLOCKED) {
+            return requested;
         }
 
+        if (ourKVState.getUserStatus() == UserKVState.STATUS_LOCKED_BY_SOMEONE_ELSE
+                && ourKVState.getOtherLockTimeMs() + lockLease.getLeaseMs() >= System.currentTimeMillis()) {
+            return null;
+        }
 
+        return OperationType.KV_GET_AND_LOCK;
     }
 
+    /**
+     * Add credit to a user inside a transaction.
+     *
+     * @param mongoClient
+     * @param randomuser  user id
+     * @param extraCredit how much to add
+     * @param txnId       transaction id
+     * @return true if the credit was added, false if the user doesn't exist,
+     * the transaction already happened or it failed
+     */
+    static boolean addCredit(MongoClient mongoClient, int randomuser, long extraCredit, String txnId) {
 
-    private static void reportQuotaUsage(MongoClient mainClient, int randomuser, int unitsUsed, int unitsWanted, long sessionId, String txnId, Gson gson, UserTransactionState userTS) {
-
-        MongoDatabase restaurantsDatabase = mainClient.getDatabase(CHARGLT_DATABASE);
-        MongoCollection<Document> collection = restaurantsDatabase.getCollection(CHARGLT_USERS);
-
+        MongoCollection<UserTable> collection = getUserCollection(mongoClient);
         // Sets transaction options
         TransactionOptions txnOptions = TransactionOptions.builder()
                 .writeConcern(WriteConcern.MAJORITY)
                 .build();
 
-        try (ClientSession session = mainClient.startSession()) {
+        try (ClientSession session = mongoClient.startSession()) {
             // Uses withTransaction and lambda for transaction operations
-            session.withTransaction(() -> {
-                Document document = collection.find(eq(randomuser)).first();
-                if (document != null) {
-                    UserTable theUserTable = new UserTable(document);
-                    theUserTable.reportQuotaUsage(unitsUsed, unitsWanted, sessionId, txnId);
-                    String jsonObject = gson.toJson(theUserTable, UserTable.class);
-                    userTS.spendableBalance = theUserTable.getAvailableCredit();
+            long balanceDelta = session.withTransaction(() -> {
 
-                    collection.replaceOne(eq(randomuser), Document.parse(jsonObject));
+                if (idempotencyStore != null) {
+                    idempotencyStore.claim(session, randomuser, txnId);
+                }
 
+                UserTable ut = collection.find(session, eq(randomuser)).projection(CHARGING_PROJECTION).first();
+                if (ut != null) {
+                    final long oldBalance = ut.balance;
+                    addCredit(ut, extraCredit, txnId);
+                    collection.updateOne(session, eq(randomuser), getChargingUpdate(ut));
+                    return ut.balance - oldBalance;
                 }
 
-                return null; // Return value as expected by the lambda
+                return 0L;
             }, txnOptions);
 
+            recordTotals(randomuser, balanceDelta, 0);
+            return balanceDelta != 0;
+
         } catch (Exception e) {
-            e.printStackTrace();
+            reportChargingException(e);
         }
 
-
+        return false;
     }
 
 
-    public static Document addCredit(Document document, Gson g, long amount) {
-
-        UserTable theUserTable = new UserTable(document);
+    /**
+     * Same as addCredit, but as a single conditional updateOne with no
+     * transaction. The filter only matches if txnId isn't already in
+     * userRecentTransactions, so it's still idempotent. The update is a
+     * pipeline that adds the new transaction to the end of
+     * userRecentTransactions, which is capped at
+     * UserTable.MAX_RECENT_TRANSACTIONS, turning it into an array first if it's
+     * still an older sub-document. Transactions older than five minutes are
+     * pruned the next time something rewrites the document.
+     *
+     * @param mongoClient
+     * @param randomuser  user id
+     * @param extraCredit how much to add
+     * @param txnId       transaction id
+     * @return true if the credit was added, false if the user doesn't exist or
+     * the transaction already happened
+     */
+    static boolean addCreditAtomic(MongoClient mongoClient, int randomuser, long extraCredit, String txnId) {
+
+        MongoCollection<Document> collection = mongoClient.getDatabase(CHARGLT_DATABASE).getCollection(CHARGLT_USERS)
+                .withWriteConcern(WriteConcern.MAJORITY);
+
+        try {
+
+            if (idempotencyStore != null) {
+
+                if (!idempotencyStore.claim(randomuser, txnId)) {
+                    shc.incCounter(IdempotencyStore.DUPLICATE_TXN);
+                    return false;
+                }
+
+                UpdateResult result;
 
-        theUserTable.addCredit(amount, "AddCredit_" + amount + "_" + System.currentTimeMillis());
-        String jsonObject = g.toJson(theUserTable, UserTable.class);
-        return (Document.parse(jsonObject));
+                try {
+                    result = collection.updateOne(eq(randomuser),
+                            combine(inc("balance", extraCredit), inc("version", 1L)));
+                } catch (RuntimeException e) {
+                    releaseClaim(randomuser, txnId);
+                    throw e;
+                }
+
+                if (result.getModifiedCount() == 0) {
+                    releaseClaim(randomuser, txnId);
+                }
 
+                return recordAtomicAddCredit(randomuser, extraCredit, result);
+            }
 
+            UpdateResult result = collection.updateOne(getNewTxnFilter(randomuser, txnId),
+                    getAtomicAddCreditUpdate(randomuser, extraCredit, txnId));
+            return recordAtomicAddCredit(randomuser, extraCredit, result);
+        } catch (Exception e) {
+            reportChargingException(e);
+        }
+
+        return false;
     }
 
     /**
-     * Turn latency stats into a grepable string
+     * @return true if the credit was added, in which case we tell globalTotals
+     */
+    static boolean recordAtomicAddCredit(long userId, long extraCredit, UpdateResult result) {
+
+        if (result.getModifiedCount() == 1) {
+            recordTotals(userId, extraCredit, 0);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param amount credit being added
+     * @return a transaction id for addCredit
+     */
+    static String getAddCreditTxnId(long amount) {
+        return "AddCredit_" + amount + "_" + System.currentTimeMillis();
+    }
+
+    /**
+     * @return a filter that matches the user only if txnId hasn't happened yet.
+     * Older documents keep recent transactions in a sub-document keyed by txn
+     * id, so we check for that key as well.
+     */
+    static Bson getNewTxnFilter(long userId, String txnId) {
+        return and(eq(userId), ne("userRecentTransactions.userTxnId", txnId),
+                exists("userRecentTransactions." + txnId, false));
+    }
+
+    /**
+     * @return an update pipeline that adds the credit and records txnId, the
+     * same way UserTable.addCredit does
+     */
+    static List<Bson> getAtomicAddCreditUpdate(long userId, long extraCredit, String txnId) {
+
+        Document newTran = new Document("userId", userId)
+                .append("userTxnId", txnId)
+                .append("txnTime", new Date())
+                .append("sessionId", 0L)
+                .append("approvedAmount", 0L)
+                .append("spentAmount", extraCredit)
+                .append("purpose", "Add Credit");
+
+        return List.of(new Document("$set", new Document("balance", new Document("$add", Arrays.asList("$balance", extraCredit)))
+                .append("version", new Document("$add", Arrays.asList(new Document("$ifNull", Arrays.asList("$version", 0L)), 1L)))
+                .append("userRecentTransactions", new Document("$slice", Arrays.asList(
+                        new Document("$concatArrays", Arrays.asList(getRecentTransactionsAsArray(), List.of(newTran))),
+                        -UserTable.MAX_RECENT_TRANSACTIONS)))));
+    }
+
+    /**
+     * @return an expression for userRecentTransactions as an array. Older
+     * documents keep them in a sub-document keyed by txn id.
+     */
+    private static Document getRecentTransactionsAsArray() {
+        return new Document("$cond", Arrays.asList(
+                new Document("$isArray", "$userRecentTransactions"), "$userRecentTransactions",
+                new Document("$map", new Document("input", objectToArray("$userRecentTransactions")).append("in", "$$this.v"))));
+    }
+
+    /**
+     * Same as reportQuotaUsage, but the decision is made on the server by a
+     * single pipeline findOneAndUpdate, with no transaction.
+     *
+     * @return a status code from ReferenceData
+     */
+    static byte reportQuotaUsageAtomic(MongoClient mainClient, int randomuser, int unitsUsed, int unitsWanted,
+                                       long sessionId, String txnId, UserTransactionState userTS) {
+
+        MongoCollection<Document> collection = mainClient.getDatabase(CHARGLT_DATABASE).getCollection(CHARGLT_USERS)
+                .withWriteConcern(WriteConcern.MAJORITY);
+
+        try {
+            return reportQuotaUsageAtomic(collection, randomuser, unitsUsed, unitsWanted, sessionId, txnId, userTS);
+        } catch (Exception e) {
+            reportChargingException(e);
+        }
+
+        return ReferenceData.STATUS_USER_DOESNT_EXIST;
+    }
+
+    static byte reportQuotaUsageAtomic(MongoCollection<Document> collection, int randomuser, int unitsUsed,
+                                       int unitsWanted, long sessionId, String txnId, UserTransactionState userTS) {
+
+        if (idempotencyStore != null && !idempotencyStore.claim(randomuser, txnId)) {
+            shc.incCounter(IdempotencyStore.DUPLICATE_TXN);
+            return ReferenceData.STATUS_TXN_ALREADY_HAPPENED;
+        }
+
+        final boolean keepTxnId = idempotencyStore == null;
+        Document before;
+
+        try {
+            before = collection.findOneAndUpdate(keepTxnId ? getNewTxnFilter(randomuser, txnId) : eq(randomuser),
+                    getAtomicReportQuotaUsagePipeline(unitsUsed, unitsWanted, sessionId, txnId, keepTxnId),
+                    ATOMIC_RQU_OPTIONS);
+        } catch (RuntimeException e) {
+            releaseClaim(randomuser, txnId);
+            throw e;
+        }
+
+        if (before == null) {
+
+            // Either there's no such user, or txnId already happened...
+            if (keepTxnId && collection.find(eq(randomuser)).projection(Projections.include("_id")).first() != null) {
+                return ReferenceData.STATUS_TXN_ALREADY_HAPPENED;
+            }
+
+            releaseClaim(randomuser, txnId);
+            return ReferenceData.STATUS_USER_DOESNT_EXIST;
+        }
+
+        return getAtomicReportQuotaUsageStatus(randomuser, unitsUsed, unitsWanted, sessionId, before, userTS);
+    }
+
+    /**
+     * What reportQuotaUsageAtomic wants back: the user as it was before the
+     * pipeline ran, which is all getAtomicReportQuotaUsageStatus needs to
+     * work out what it did.
+     */
+    static final FindOneAndUpdateOptions ATOMIC_RQU_OPTIONS = new FindOneAndUpdateOptions()
+            .returnDocument(ReturnDocument.BEFORE)
+            .projection(Projections.include("balance", "reservedTotal", "userUsage"));
+
+    /**
+     * Work out what getAtomicReportQuotaUsagePipeline did to a user, given the
+     * user as it was before, using the same rules. This gives us the status
+     * code without the pipeline having to leave it behind in the document.
+     * Also updates our client side idea of the user's balance and tells
+     * globalTotals what changed.
+     *
+     * @param userId      user id
+     * @param unitsUsed   units used since last call
+     * @param unitsWanted units wanted for next time
+     * @param sessionId   charging session
+     * @param before      the user before the pipeline ran
+     * @param userTS      client side state for this user
+     * @return a status code from ReferenceData
+     */
+    static byte getAtomicReportQuotaUsageStatus(long userId, int unitsUsed, int unitsWanted, long sessionId,
+                                                Document before, UserTransactionState userTS) {
+
+        // Gson stores the userUsage map with the session id as a string key...
+        final String sessionKey = Long.toString(sessionId);
+        final long balance = AbstractBaseTable.getLong(before, "balance");
+        long otherAllocated = 0;
+        long allAllocated = 0;
+
+        Document usage = (Document) before.get("userUsage");
+
+        if (usage != null) {
+            for (Map.Entry<String, Object> uuEntry : usage.entrySet()) {
+
+                final long allocated = AbstractBaseTable.getLong((Document) uuEntry.getValue(), "allocatedAmount");
+                allAllocated += allocated;
+
+                if (!uuEntry.getKey().equals(sessionKey)) {
+                    otherAllocated += allocated;
+                }
+            }
+        }
+
+        final long oldReserved = before.get("reservedTotal") != null
+                ? AbstractBaseTable.getLong(before, "reservedTotal") : allAllocated;
+        final long available = balance - otherAllocated - unitsUsed;
+
+        byte statusCode = ReferenceData.STATUS_OK;
+        long approved = 0;
+
+        if (unitsWanted != 0) {
+            if (available <= 0) {
+                statusCode = ReferenceData.STATUS_NO_MONEY;
+            } else if (unitsWanted > available) {
+                statusCode = ReferenceData.STATUS_SOME_UNITS_ALLOCATED;
+                approved = available;
+            } else {
+                statusCode = ReferenceData.STATUS_ALL_UNITS_ALLOCATED;
+                approved = unitsWanted;
+            }
+        }
+
+        final long newReserved = otherAllocated + approved;
+        userTS.spendableBalance = balance - unitsUsed - newReserved;
+        recordTotals(userId, -unitsUsed, newReserved - oldReserved);
+
+        return statusCode;
+    }
+
+    /**
+     * Fields getAtomicReportQuotaUsagePipeline uses along the way.
+     */
+    static final List<String> RQU_TEMPORARY_FIELDS = List.of("_rquTrans", "_rquOtherUsage", "_rquAvailable",
+            "_rquApproved", "_rquDecision");
+
+    /**
+     * The logic of UserTable.reportQuotaUsage as an update pipeline. We work out
+     * how much credit is available, decide how much to approve, and rewrite
+     * balance, userUsage, reservedTotal and userRecentTransactions and bump
+     * version. Temporary fields start with _rqu and are removed at the end, so
+     * the only fields we leave behind are the ones UserTable has. We don't
+     * check txnId here: reportQuotaUsageAtomic only runs this on users it
+     * hasn't happened to yet, so duplicates leave the document alone.
+     *
+     * @param unitsUsed   units used since last call
+     * @param unitsWanted units wanted for next time
+     * @param sessionId   charging session
+     * @param txnId       unique transaction id
+     * @param keepTxnId   false if an IdempotencyStore is keeping track of
+     *                    txnId, in which case we don't keep it in
+     *                    userRecentTransactions
+     * @return a pipeline for findOneAndUpdate
+     */
+    static List<Bson> getAtomicReportQuotaUsagePipeline(int unitsUsed, int unitsWanted, long sessionId, String txnId,
+                                                        boolean keepTxnId) {
+
+        // Gson stores the userUsage map with the session id as a string key...
+        final String sessionKey = Long.toString(sessionId);
+        final long amountSpent = -unitsUsed;
+
+        // Older documents keep recent transactions in a sub-document keyed by txn id...
+        Document recentTrans = getRecentTransactionsAsArray();
+
+        Document otherUsage = new Document("$filter",
+                new Document("input", objectToArray("$userUsage"))
+                        .append("cond", new Document("$ne", Arrays.asList("$$this.k", sessionKey))));
+
+        Document available = new Document("$subtract", Arrays.asList(
+                new Document("$subtract", Arrays.asList("$balance", new Document("$sum", "$_rquOtherUsage.v.allocatedAmount"))),
+                (long) unitsUsed));
+
+        Object approved;
+        Object decision;
+
+        if (unitsWanted == 0) {
+            approved = 0L;
+            decision = "Recorded usage of " + amountSpent;
+        } else {
+
+            Document noMoney = new Document("$lte", Arrays.asList("$_rquAvailable", 0));
+            Document notEnough = new Document("$gt", Arrays.asList(unitsWanted, "$_rquAvailable"));
+
+            approved = switchOf(noMoney, 0L, notEnough, "$_rquAvailable", (long) unitsWanted);
+
+            decision = switchOf(
+                    noMoney, new Document("$concat", Arrays.asList("none; Negative balance: ", new Document("$toString", "$_rquAvailable"))),
+                    notEnough, new Document("$concat", Arrays.asList("none; Allocated ", new Document("$toString", "$_rquAvailable"),
+                            " units of " + unitsWanted + " asked for")),
+                    "none; Allocated " + unitsWanted);
+        }
+
+        List<Object> newUsage = unitsWanted == 0 ? List.of() : List.of(new Document("k", sessionKey)
+                .append("v", new Document("userId", "$userId")
+                        .append("allocatedAmount", "$_rquApproved")
+                        .append("sessionId", sessionId)
+                        .append("lastDate", "$$NOW")));
+
+        Document newTran = new Document("userId", "$userId")
+                .append("userTxnId", txnId)
+                .append("txnTime", "$$NOW")
+                .append("sessionId", 0L)
+                .append("approvedAmount", 0L)
+                .append("spentAmount", amountSpent)
+                .append("purpose", "$_rquDecision");
+
+        Document newReserved = new Document("$add", Arrays.asList(
+                new Document("$sum", "$_rquOtherUsage.v.allocatedAmount"), unitsWanted == 0 ? 0L : "$_rquApproved"));
+
+        // Same as deleteOldTransactions, but only for entries with real dates...
+        Document keptTrans = new Document("$filter",
+                new Document("input", "$_rquTrans")
+                        .append("cond", new Document("$or", Arrays.asList(
+                                new Document("$ne", Arrays.asList(new Document("$type", "$$this.txnTime"), "date")),
+                                new Document("$gte", Arrays.asList("$$this.txnTime",
+                                        new Document("$subtract", Arrays.asList("$$NOW", UserTable.FIVE_MINUTES_IN_MS))))))));
+
+        return Arrays.asList(
+                new Document("$set", new Document("_rquTrans", recentTrans).append("_rquOtherUsage", otherUsage)),
+                new Document("$set", new Document("_rquAvailable", available)),
+                new Document("$set", new Document("_rquApproved", approved).append("_rquDecision", decision)),
+                new Document("$set", new Document("balance", new Document("$add", Arrays.asList("$balance", amountSpent)))
+                        .append("userUsage", new Document("$arrayToObject",
+                                new Document("$concatArrays", Arrays.asList("$_rquOtherUsage", newUsage))))
+                        .append("reservedTotal", newReserved)
+                        .append("userRecentTransactions", new Document("$slice", Arrays.asList(new Document("$concatArrays",
+                                Arrays.asList(keptTrans, keepTxnId ? List.of(newTran) : List.of())),
+                                -UserTable.MAX_RECENT_TRANSACTIONS)))
+                        .append("version", new Document("$add", Arrays.asList(
+                                new Document("$ifNull", Arrays.asList("$version", 0L)), 1L)))),
+                new Document("$unset", RQU_TEMPORARY_FIELDS));
+    }
+
+    /**
+     * @return an expression that turns an embedded document that may be
+     * missing into an array of k/v pairs
+     */
+    private static Document objectToArray(String fieldPath) {
+        return new Document("$objectToArray", new Document("$ifNull", Arrays.asList(fieldPath, new Document())));
+    }
+
+    /**
+     * @return an expression that adds up allocatedAmount across a userUsage
+     * style embedded document
+     */
+    private static Document sumOfAllocated(String fieldPath) {
+        return new Document("$sum", new Document("$map", new Document("input", objectToArray(fieldPath))
+                .append("in", "$$this.v.allocatedAmount")));
+    }
+
+    /**
+     * @return a two branch $switch expression
+     */
+    private static Document switchOf(Object case1, Object then1, Object case2, Object then2, Object otherwise) {
+        return new Document("$switch", new Document("branches", Arrays.asList(
+                new Document("case", case1).append("then", then1),
+                new Document("case", case2).append("then", then2)))
+                .append("default", otherwise));
+    }
+
+    static void reportQuotaUsage(MongoClient mainClient, int randomuser, int unitsUsed, int unitsWanted, long sessionId, String txnId, UserTransactionState userTS) {
+
+        MongoCollection<UserTable> collection = getUserCollection(mainClient);
+
+        // Sets transaction options
+        TransactionOptions txnOptions = TransactionOptions.builder()
+                .writeConcern(WriteConcern.MAJORITY)
+                .build();
+
+        try (ClientSession session = mainClient.startSession()) {
+            // Uses withTransaction and lambda for transaction operations
+            long[] deltas = session.withTransaction(() -> {
+
+                if (idempotencyStore != null) {
+                    idempotencyStore.claim(session, randomuser, txnId);
+                }
+
+                UserTable theUserTable = collection.find(session, eq(randomuser)).projection(CHARGING_PROJECTION).first();
+                if (theUserTable != null) {
+                    final long oldBalance = theUserTable.balance;
+                    final long oldReserved = theUserTable.reservedTotal;
+                    theUserTable.reportQuotaUsage(unitsUsed, unitsWanted, sessionId, txnId);
+                    userTS.spendableBalance = theUserTable.getAvailableCredit();
+
+                    if (idempotencyStore != null) {
+                        theUserTable.getUserRecentTransactions().clear();
+                    }
+
+                    collection.updateOne(session, eq(randomuser), getChargingUpdate(theUserTable));
+
+                    return new long[]{theUserTable.balance - oldBalance, theUserTable.reservedTotal - oldReserved};
+                }
+
+                return new long[]{0, 0};
+            }, txnOptions);
+
+            recordTotals(randomuser, deltas[0], deltas[1]);
+
+        } catch (Exception e) {
+            reportChargingException(e);
+        }
+
+
+    }
+
+
+    /**
+     * Same as addCredit, but using OCC instead of a transaction.
+     *
+     * @param mongoClient
+     * @param randomuser  user id
+     * @param extraCredit how much to add
+     * @param txnId       transaction id
+     * @return true if the credit was added, false if the user doesn't exist,
+     * the transaction already happened or we gave up
+     */
+    static boolean addCreditOCC(MongoClient mongoClient, int randomuser, long extraCredit, String txnId) {
+
+        MongoCollection<UserTable> collection = getUserCollection(mongoClient).withWriteConcern(WriteConcern.MAJORITY);
+
+        try {
+
+            if (idempotencyStore != null && !idempotencyStore.claim(randomuser, txnId)) {
+                shc.incCounter(IdempotencyStore.DUPLICATE_TXN);
+                return false;
+            }
+
+            Long balanceDelta;
+
+            try {
+                balanceDelta = updateWithOCC(collection, randomuser, ut -> {
+                    final long oldBalance = ut.balance;
+                    addCredit(ut, extraCredit, txnId);
+                    return ut.balance - oldBalance;
+                }, null);
+            } catch (RuntimeException e) {
+                releaseClaim(randomuser, txnId);
+                throw e;
+            }
+
+            if (balanceDelta == null) {
+                releaseClaim(randomuser, txnId);
+                return false;
+            }
+
+            recordTotals(randomuser, balanceDelta, 0);
+            return true;
+
+        } catch (Exception e) {
+            reportChargingException(e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Same as reportQuotaUsage, but using OCC instead of a transaction.
+     *
+     * @return a status code from ReferenceData
+     */
+    static byte reportQuotaUsageOCC(MongoClient mainClient, int randomuser, int unitsUsed, int unitsWanted,
+                                    long sessionId, String txnId, UserTransactionState userTS) {
+
+        MongoCollection<UserTable> collection = getUserCollection(mainClient).withWriteConcern(WriteConcern.MAJORITY);
+
+        try {
+
+            if (idempotencyStore != null && !idempotencyStore.claim(randomuser, txnId)) {
+                shc.incCounter(IdempotencyStore.DUPLICATE_TXN);
+                return ReferenceData.STATUS_TXN_ALREADY_HAPPENED;
+            }
+
+            long[] result;
+
+            try {
+                result = updateWithOCC(collection, randomuser,
+                        getOCCReportQuotaUsage(unitsUsed, unitsWanted, sessionId, txnId, userTS), OCC_GAVE_UP_RESULT);
+            } catch (RuntimeException e) {
+                releaseClaim(randomuser, txnId);
+                throw e;
+            }
+
+            if (!isOCCWritten(result)) {
+                releaseClaim(randomuser, txnId);
+            }
+
+            return recordOCCReportQuotaUsage(randomuser, result);
+
+        } catch (Exception e) {
+            reportChargingException(e);
+        }
+
+        return ReferenceData.STATUS_USER_DOESNT_EXIST;
+    }
+
+    /**
+     * What updateWithOCC gives back for reportQuotaUsage if it gives up.
+     */
+    static final long[] OCC_GAVE_UP_RESULT = new long[]{ReferenceData.STATUS_TOO_MANY_CONFLICTS, 0, 0};
+
+    /**
+     * @return a change for updateWithOCC that runs UserTable.reportQuotaUsage
+     * and returns the status code and the changes in balance and reserved credit
+     */
+    static Function<UserTable, long[]> getOCCReportQuotaUsage(int unitsUsed, int unitsWanted, long sessionId,
+                                                             String txnId, UserTransactionState userTS) {
+        return theUserTable -> {
+
+            final long oldBalance = theUserTable.balance;
+            final long oldReserved = theUserTable.reservedTotal;
+            final byte statusCode = theUserTable.reportQuotaUsage(unitsUsed, unitsWanted, sessionId, txnId);
+            userTS.spendableBalance = theUserTable.getAvailableCredit();
+
+            if (idempotencyStore != null) {
+                theUserTable.getUserRecentTransactions().clear();
+            }
+
+            return new long[]{statusCode, theUserTable.balance - oldBalance, theUserTable.reservedTotal - oldReserved};
+        };
+    }
+
+    /**
+     * @param result what updateWithOCC returned for reportQuotaUsage
+     * @return false if there was no such user or we gave up, in which case any
+     * IdempotencyStore claim should be released
+     */
+    static boolean isOCCWritten(long[] result) {
+        return result != null && result != OCC_GAVE_UP_RESULT;
+    }
+
+    /**
+     * Tell globalTotals what an OCC reportQuotaUsage changed.
+     *
+     * @param userId user id
+     * @param result what updateWithOCC returned
+     * @return a status code from ReferenceData
+     */
+    static byte recordOCCReportQuotaUsage(long userId, long[] result) {
+
+        if (!isOCCWritten(result)) {
+            return result == null ? ReferenceData.STATUS_USER_DOESNT_EXIST : ReferenceData.STATUS_TOO_MANY_CONFLICTS;
+        }
+
+        recordTotals(userId, result[1], result[2]);
+        return (byte) result[0];
+    }
+
+    /**
+     * Read a user, change it in Java, and write back the fields addCredit and
+     * reportQuotaUsage change with an updateOne that only matches if the
+     * version is still the one we read. If it isn't someone else got there
+     * first, so we read it again and have another go, up to
+     * MAX_OCC_ATTEMPTS times.
+     *
+     * @param collection users
+     * @param userId     user id
+     * @param change     what to do to the user. It may run more than once, on
+     *                   a fresh copy each time.
+     * @param gaveUp     what to return if we run out of attempts
+     * @return what change returned the time it worked, null if there is no
+     * such user, or gaveUp
+     */
+    static <T> T updateWithOCC(MongoCollection<UserTable> collection, long userId, Function<UserTable, T> change,
+                               T gaveUp) {
+
+        for (int attempt = 1; ; attempt++) {
+
+            UserTable ut = collection.find(eq(userId)).projection(CHARGING_PROJECTION).first();
+
+            if (ut == null) {
+                return null;
+            }
+
+            final long expectedVersion = ut.version;
+            final T result = change.apply(ut);
+
+            UpdateResult updateResult = collection.updateOne(getOCCFilter(userId, expectedVersion), getChargingUpdate(ut));
+
+            if (reportOCCAttempt(attempt, updateResult.getMatchedCount() > 0)) {
+                return result;
+            } else if (attempt >= ChargingMode.MAX_OCC_ATTEMPTS) {
+                return gaveUp;
+            }
+        }
+    }
+
+    /**
+     * Keep track of how OCC is going. Retries per successful write go in the
+     * OCC_RETRIES histogram, and each version mismatch counts as an
+     * OCC_CONFLICT. Running out of attempts counts as OCC_GAVE_UP.
+     *
+     * @param attempt 1 for the first try
+     * @param written true if our update matched
+     * @return written
+     */
+    static boolean reportOCCAttempt(int attempt, boolean written) {
+
+        if (written) {
+            shc.report(OCC_RETRIES, attempt - 1, "OCC retries", ChargingMode.MAX_OCC_ATTEMPTS);
+            return true;
+        }
+
+        shc.incCounter(OCC_CONFLICT);
+
+        if (attempt >= ChargingMode.MAX_OCC_ATTEMPTS) {
+            shc.incCounter(OCC_GAVE_UP);
+        }
+
+        return false;
+    }
+
+    /**
+     * @param userId  user id
+     * @param version version we read
+     * @return a filter that only matches the user if nobody has changed their
+     * version since we read it. Documents from before we had versions don't
+     * have one, which is the same as version 0.
+     */
+    static Bson getOCCFilter(long userId, long version) {
+
+        if (version == 0) {
+            return and(eq(userId), in("version", 0L, null));
+        }
+
+        return and(eq(userId), eq("version", version));
+    }
+
+    private static final UserTableCodec USER_TABLE_CODEC = new UserTableCodec();
+
+    /**
+     * Charging reads don't need the user's payload, which is most of the
+     * document, so we don't fetch or decode it. This is safe because
+     * getChargingUpdate never writes it back.
+     */
+    static final Bson CHARGING_PROJECTION = Projections.exclude("userDataObject");
+
+    /**
+     * @param ut a user we've changed
+     * @return a $set of the fields addCredit and reportQuotaUsage change,
+     * including the new version. We leave userDataObject and the KV lock alone
+     * so we don't undo KV updates that happened in the meantime. TRANSACTION
+     * mode uses this too, instead of replacing the whole document.
+     */
+    static Bson getChargingUpdate(UserTable ut) {
+
+        BsonDocument chargingFields = new BsonDocument();
+        BsonDocumentWriter writer = new BsonDocumentWriter(chargingFields);
+
+        writer.writeStartDocument();
+        USER_TABLE_CODEC.encodeChargingFields(writer, ut, EncoderContext.builder().build());
+        writer.writeEndDocument();
+
+        return new BsonDocument("$set", chargingFields);
+    }
+
+    public static UserTable addCredit(UserTable theUserTable, long amount) {
+        return addCredit(theUserTable, amount, getAddCreditTxnId(amount));
+    }
+
+    /**
+     * Add credit under a transaction id we've already picked. If we have an
+     * idempotencyStore it has already checked txnId, so we don't keep it in
+     * userRecentTransactions.
+     */
+    static UserTable addCredit(UserTable theUserTable, long amount, String txnId) {
+
+        theUserTable.addCredit(amount, txnId);
+
+        if (idempotencyStore != null) {
+            theUserTable.getUserRecentTransactions().clear();
+        }
+
+        return theUserTable;
+
+    }
+
+    /**
+     * We declare victory if we got >= 90% of requested TPS...
      *
      * @param tpMs target transactions per millisecond
      * @param tps  observed TPS
+     * @return true if within 90% of targeted TPS
      */
-    private static void reportRunLatencyStats(int tpMs, double tps) {
+    public static boolean isWithin90Percent(double tpMs, double tps) {
+        return tps / (tpMs * 1000) > .9;
+    }
+
+    /**
+     * Turn latency stats into a grepable string
+     *
+     * @param tpMs            target transactions per millisecond
+     * @param tps             observed TPS
+     * @param keyDistribution how we chose users
+     */
+    private static void reportRunLatencyStats(double tpMs, double tps, String keyDistribution) {
         StringBuffer oneLineSummary = new StringBuffer("GREPABLE SUMMARY:");
 
-        oneLineSummary.append(tpMs);
+        if (tpMs == Math.rint(tpMs)) {
+            oneLineSummary.append((long) tpMs);
+        } else {
+            oneLineSummary.append(tpMs);
+        }
         oneLineSummary.append(':');
 
         oneLineSummary.append(tps);
@@ -876,11 +2455,75 @@ public abstract class BaseChargingDemo {
 
         SafeHistogramCache.getProcPercentiles(shc, oneLineSummary, KV_GET);
 
+        // Same again, but measured from when each request should have started...
+        SafeHistogramCache.getProcPercentiles(shc, oneLineSummary, REPORT_QUOTA_USAGE + SafeHistogramCache.INTENDED_SUFFIX);
+
+        SafeHistogramCache.getProcPercentiles(shc, oneLineSummary, KV_PUT + SafeHistogramCache.INTENDED_SUFFIX);
+
+        SafeHistogramCache.getProcPercentiles(shc, oneLineSummary, KV_GET + SafeHistogramCache.INTENDED_SUFFIX);
+
+        oneLineSummary.append(keyDistribution);
+        oneLineSummary.append(':');
+
         msg(oneLineSummary.toString());
 
+        reportIntendedVersusActual(ADD_CREDIT);
+        reportIntendedVersusActual(REPORT_QUOTA_USAGE);
+        reportIntendedVersusActual(KV_GET);
+        reportIntendedVersusActual(KV_PUT);
+        reportIntendedVersusActual(POINT_READ);
+        reportKVPutBytesPerOp();
+
+        if (shc.get(KV_GET).hasReports()) {
+            msg(lockLease + ", " + shc.getCounter(LockLease.LOCK_LEASE_STOLEN) + " leases stolen");
+        }
+
+        LatencyHistogram occRetries = shc.get(OCC_RETRIES);
+
+        if (occRetries.hasReports()) {
+
+            final long occConflicts = shc.getCounter(OCC_CONFLICT);
+            final long occAttempts = occRetries.getReports() + occConflicts;
+
+            msg("OCC: " + occRetries.getReports() + " writes, " + occConflicts + " conflicts ("
+                    + (occConflicts * 100 / occAttempts) + "% of attempts), "
+                    + shc.getCounter(OCC_GAVE_UP) + " gave up, retries avg "
+                    + String.format("%.2f", occRetries.getLatencyAverage()) + " p99 " + occRetries.getLatencyPct(99)
+                    + " max " + occRetries.getMaxUsedSize());
+        }
+
+        if (kvOptimisticWrites) {
+            msg(shc.getCounter(KV_OPTIMISTIC_WRITE) + " optimistic writes, "
+                    + shc.getCounter(KV_OPTIMISTIC_CONFLICT) + " found the user locked and fell back to locking");
+        }
+
         msg(shc.toString());
     }
 
+    /**
+     * Print latency measured from when requests actually started next to
+     * latency measured from when they were meant to start. A big gap means
+     * requests were queueing because the server couldn't keep up.
+     *
+     * @param type what we are measuring
+     */
+    private static void reportIntendedVersusActual(String type) {
+
+        LatencyHistogram actual = shc.get(type);
+
+        if (actual.hasReports()) {
+
+            LatencyHistogram intended = shc.get(type + SafeHistogramCache.INTENDED_SUFFIX);
+
+            msg(type + " latency ms (actual start / intended start): avg "
+                    + (int) actual.getLatencyAverage() + "/" + (int) intended.getLatencyAverage()
+                    + " p50 " + actual.getLatencyPct(50) + "/" + intended.getLatencyPct(50)
+                    + " p99 " + actual.getLatencyPct(99) + "/" + intended.getLatencyPct(99)
+                    + " p99.9 " + actual.getLatencyPct(99.9) + "/" + intended.getLatencyPct(99.9)
+                    + " max " + actual.getMaxUsedSize() + "/" + intended.getMaxUsedSize());
+        }
+    }
+
     /**
      * Get Linux process ID - used for pseudo unique ids
      *
@@ -897,7 +2540,60 @@ public abstract class BaseChargingDemo {
      * @return a random loyalty card number between 0 and 1 million
      */
     private static long getNewLoyaltyCardNumber(Random r) {
-        return System.currentTimeMillis() % 1000000;
+        return r.nextInt(1000000);
+    }
+
+    /**
+     * get RESERVED_CREDIT_PARTITIONS env variable if set
+     *
+     * @return how many ranges to add up reserved credit in, default 1
+     */
+    public static int getReservedCreditPartitionsIfSet() {
+
+        int partitions = 1;
+
+        String partitionsEnv = System.getenv(RESERVED_CREDIT_PARTITIONS);
+
+        if (partitionsEnv != null && !partitionsEnv.isEmpty()) {
+            msg("RESERVED_CREDIT_PARTITIONS is '" + partitionsEnv + "'");
+            partitions = Integer.parseInt(partitionsEnv);
+        }
+
+        return partitions;
+    }
+
+    /**
+     * get BINARY_PAYLOAD env variable if set
+     *
+     * @return true if payloads should be stored as BSON binary instead of hex
+     */
+    public static boolean getBinaryPayloadIfSet() {
+
+        String binaryPayloadEnv = System.getenv(BINARY_PAYLOAD);
+
+        if (binaryPayloadEnv != null && !binaryPayloadEnv.isEmpty()) {
+            msg("BINARY_PAYLOAD is '" + binaryPayloadEnv + "'");
+            return binaryPayloadEnv.equalsIgnoreCase("true");
+        }
+
+        return false;
+    }
+
+    /**
+     * get KV_OPTIMISTIC_WRITES env variable if set
+     *
+     * @return true if KV updates of unlocked users should skip the lock
+     */
+    public static boolean getKVOptimisticWritesIfSet() {
+
+        String optimisticEnv = System.getenv(KV_OPTIMISTIC_WRITES);
+
+        if (optimisticEnv != null && !optimisticEnv.isEmpty()) {
+            msg("KV_OPTIMISTIC_WRITES is '" + optimisticEnv + "'");
+            return optimisticEnv.equalsIgnoreCase("true");
+        }
+
+        return false;
     }
 
     /**
@@ -919,4 +2615,23 @@ public abstract class BaseChargingDemo {
         return extraMs;
     }
 
+    /**
+     * get THREADS env variable if set
+     *
+     * @return how many worker threads to use, default 1
+     */
+    public static int getThreadCountIfSet() {
+
+        int threadCount = 1;
+
+        String threadCountEnv = System.getenv(THREADS);
+
+        if (threadCountEnv != null && !threadCountEnv.isEmpty()) {
+            msg("THREADS is '" + threadCountEnv + "'");
+            threadCount = Math.max(1, Integer.parseInt(threadCountEnv));
+        }
+
+        return threadCount;
+    }
+
 }
@@ -40,8 +40,8 @@ public class ChargingDemoKVStore extends BaseChargingDemo {
         // How many users
         int userCount = Integer.parseInt(args[1]);
 
-        // Target transactions per millisecond.
-        int tpMs = Integer.parseInt(args[2]);
+        // Target transactions per millisecond. Can be fractional.
+        double tpMs = Double.parseDouble(args[2]);
 
         // Runtime for TRANSACTIONS in seconds.
         int durationSeconds = Integer.parseInt(args[3]);
@@ -57,18 +57,48 @@ public class ChargingDemoKVStore extends BaseChargingDemo {
         // Extra delay for testing really slow hardware
         int extraMs = getExtraMsIfSet();
 
+        // Store payloads as BSON binary instead of hex
+        binaryPayload = getBinaryPayloadIfSet();
+
+        // How long KV locks last
+        lockLease = LockLease.getLockLeaseIfSet();
+
+        // Skip the lock when nobody else has it
+        kvOptimisticWrites = getKVOptimisticWritesIfSet();
+
         try {
             // A VoltDB Client object maintains multiple connections to all the
             // servers in the cluster.
-            MongoClient mainClient = connectMongoDB(hostlist);
+            final MongoClient mainClient = connectMongoDB(hostlist);
+            final com.mongodb.reactivestreams.client.MongoClient asyncClient = connectMongoDBAsyncIfNeeded(hostlist);
+
+            boolean ok;
+
+            if (ThroughputSearch.isSearchRequested()) {
 
-            unlockAllRecords(mainClient);
-            boolean ok = runKVBenchmark(userCount, tpMs, durationSeconds, globalQueryFreqSeconds, jsonsize, mainClient,
-                    deltaProportion, extraMs);
+                // tpms is where we start, durationseconds is how long each stage lasts
+                ThroughputSearch search = ThroughputSearch.getSearch(tpMs, KV_GET, KV_PUT);
+                ok = search.search(stageTpMs -> {
+                    unlockAllRecords(mainClient);
+                    return runKVBenchmark(userCount, stageTpMs, durationSeconds, globalQueryFreqSeconds, jsonsize,
+                            mainClient, asyncClient, deltaProportion, extraMs);
+                }, tpMs) > 0;
+
+            } else {
+
+                unlockAllRecords(mainClient);
+                double tps = runKVBenchmark(userCount, tpMs, durationSeconds, globalQueryFreqSeconds, jsonsize, mainClient,
+                        asyncClient, deltaProportion, extraMs);
+                ok = isWithin90Percent(tpMs, tps);
+            }
 
             msg("Closing connection...");
             mainClient.close();
 
+            if (asyncClient != null) {
+                asyncClient.close();
+            }
+
             if (ok) {
                 System.exit(0);
             }
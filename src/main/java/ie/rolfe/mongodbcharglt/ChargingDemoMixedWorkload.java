@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt;
+
+import com.mongodb.client.MongoClient;
+import ie.rolfe.mongodbcharglt.workload.TraceReader;
+import ie.rolfe.mongodbcharglt.workload.TraceWriter;
+import ie.rolfe.mongodbcharglt.workload.WorkloadMix;
+
+import java.util.Arrays;
+
+/**
+ * Runs charging, KV and read traffic together, in the proportions given by
+ * WORKLOAD_MIX. Runs can be recorded with TRACE_RECORD and replayed with
+ * TRACE_REPLAY.
+ */
+public class ChargingDemoMixedWorkload extends BaseChargingDemo {
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+
+        msg("Parameters:" + Arrays.toString(args));
+
+        if (args.length != 6) {
+            msg("Usage: hostnames recordcount tpms durationseconds queryseconds jsonsize");
+            System.exit(1);
+        }
+
+        // Comma delimited list of hosts...
+        String hostlist = args[0];
+
+        // How many users
+        int userCount = Integer.parseInt(args[1]);
+
+        // Target transactions per millisecond. Can be fractional.
+        double tpMs = Double.parseDouble(args[2]);
+
+        // Runtime for TRANSACTIONS in seconds.
+        int durationSeconds = Integer.parseInt(args[3]);
+
+        // How often we do global queries...
+        int globalQueryFreqSeconds = Integer.parseInt(args[4]);
+
+        // Size of payload for KV_FULL_UPDATE
+        int jsonsize = Integer.parseInt(args[5]);
+
+        // What we run, and how often
+        WorkloadMix mix = WorkloadMix.getWorkloadMixIfSet();
+        msg("Workload mix is " + mix);
+
+        // Extra delay for testing really slow hardware
+        int extraMs = getExtraMsIfSet();
+
+        // Store payloads as BSON binary instead of hex
+        binaryPayload = getBinaryPayloadIfSet();
+
+        // How long KV locks last
+        lockLease = LockLease.getLockLeaseIfSet();
+
+        // Skip the lock when nobody else has it
+        kvOptimisticWrites = getKVOptimisticWritesIfSet();
+
+        try {
+            final MongoClient mainClient = connectMongoDB(hostlist);
+            final com.mongodb.reactivestreams.client.MongoClient asyncClient = connectMongoDBAsyncIfNeeded(hostlist);
+            globalTotals = GlobalTotals.getGlobalTotalsIfSet(mainClient);
+            idempotencyStore = IdempotencyStore.getIdempotencyStoreIfSet(mainClient);
+
+            boolean ok;
+
+            if (ThroughputSearch.isSearchRequested()) {
+
+                msg("TRACE_RECORD and TRACE_REPLAY are ignored when searching");
+
+                // tpms is where we start, durationseconds is how long each stage lasts
+                ThroughputSearch search = ThroughputSearch.getSearch(tpMs, ADD_CREDIT, REPORT_QUOTA_USAGE, KV_GET,
+                        KV_PUT, POINT_READ);
+                ok = search.search(stageTpMs -> {
+                    unlockAllRecords(mainClient);
+                    return runMixedWorkloadBenchmark(userCount, stageTpMs, durationSeconds, globalQueryFreqSeconds,
+                            jsonsize, mainClient, asyncClient, mix, null, null, 1, extraMs);
+                }, tpMs) > 0;
+
+            } else {
+
+                final TraceReader traceReader = TraceReader.getTraceReaderIfSet();
+                final TraceWriter traceWriter = traceReader == null ? TraceWriter.getTraceWriterIfSet(userCount, tpMs) : null;
+
+                double replaySpeed = 1;
+                double targetTpMs = tpMs;
+
+                if (traceReader != null) {
+                    replaySpeed = TraceReader.getReplaySpeedIfSet();
+                    targetTpMs = traceReader.getTpMs() * replaySpeed;
+                    msg("Replaying " + traceReader.getRecordCount() + " operations recorded at " + traceReader.getTpMs()
+                            + " tpms. tpms and durationseconds are ignored");
+                }
+
+                unlockAllRecords(mainClient);
+                double tps = runMixedWorkloadBenchmark(userCount, targetTpMs, durationSeconds, globalQueryFreqSeconds,
+                        jsonsize, mainClient, asyncClient, mix, traceWriter, traceReader, replaySpeed, extraMs);
+                ok = isWithin90Percent(targetTpMs, tps);
+
+                if (traceWriter != null) {
+                    traceWriter.close();
+                }
+
+                if (traceReader != null) {
+                    traceReader.close();
+                }
+            }
+
+            if (globalTotals != null) {
+                globalTotals.close();
+            }
+
+            msg("Closing connection...");
+            mainClient.close();
+
+            if (asyncClient != null) {
+                asyncClient.close();
+            }
+
+            if (ok) {
+                System.exit(0);
+            }
+
+            msg(UNABLE_TO_MEET_REQUESTED_TPS);
+            System.exit(1);
+
+        } catch (Exception e) {
+            msg(e.getMessage());
+        }
+
+    }
+
+}
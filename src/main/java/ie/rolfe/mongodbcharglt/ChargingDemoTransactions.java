@@ -15,7 +15,6 @@
 
 package ie.rolfe.mongodbcharglt;
 
-import com.google.gson.Gson;
 import com.mongodb.client.MongoClient;
 
 import java.util.Arrays;
@@ -40,8 +39,8 @@ public class ChargingDemoTransactions extends BaseChargingDemo {
         // How many users
         int userCount = Integer.parseInt(args[1]);
 
-        // Target transactions per millisecond.
-        int tpMs = Integer.parseInt(args[2]);
+        // Target transactions per millisecond. Can be fractional.
+        double tpMs = Double.parseDouble(args[2]);
 
         // Runtime for TRANSACTIONS in seconds.
         int durationSeconds = Integer.parseInt(args[3]);
@@ -53,17 +52,42 @@ public class ChargingDemoTransactions extends BaseChargingDemo {
         int extraMs = getExtraMsIfSet();
 
         try {
-            MongoClient mainClient = connectMongoDB(hostlist);
-            MongoClient otherClient = connectMongoDB(hostlist);
+            final MongoClient mainClient = connectMongoDB(hostlist);
+            final MongoClient otherClient = connectMongoDB(hostlist);
+            final com.mongodb.reactivestreams.client.MongoClient asyncClient = connectMongoDBAsyncIfNeeded(hostlist);
 
-            clearUnfinishedTransactions(mainClient, userCount, new Gson());
+            clearUnfinishedTransactions(mainClient, userCount);
+            globalTotals = GlobalTotals.getGlobalTotalsIfSet(mainClient);
+            idempotencyStore = IdempotencyStore.getIdempotencyStoreIfSet(mainClient);
 
-            boolean ok = runTransactionBenchmark(userCount, tpMs, durationSeconds, globalQueryFreqSeconds, mainClient, otherClient, extraMs);
+            boolean ok;
+
+            if (ThroughputSearch.isSearchRequested()) {
+
+                // tpms is where we start, durationseconds is how long each stage lasts
+                ThroughputSearch search = ThroughputSearch.getSearch(tpMs, REPORT_QUOTA_USAGE, ADD_CREDIT);
+                ok = search.search(stageTpMs -> runTransactionBenchmark(userCount, stageTpMs, durationSeconds,
+                        globalQueryFreqSeconds, mainClient, otherClient, asyncClient, extraMs), tpMs) > 0;
+
+            } else {
+
+                double tps = runTransactionBenchmark(userCount, tpMs, durationSeconds, globalQueryFreqSeconds, mainClient,
+                        otherClient, asyncClient, extraMs);
+                ok = isWithin90Percent(tpMs, tps);
+            }
+
+            if (globalTotals != null) {
+                globalTotals.close();
+            }
 
             msg("Closing connection...");
             mainClient.close();
             otherClient.close();
 
+            if (asyncClient != null) {
+                asyncClient.close();
+            }
+
             if (ok) {
                 System.exit(0);
             }
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt;
+
+/**
+ * How charging operations talk to the server.
+ */
+public enum ChargingMode {
+
+    /**
+     * Read the user, change it in Java and replace it, all inside a majority
+     * transaction. This is what the demo has always done.
+     */
+    TRANSACTION,
+
+    /**
+     * One conditional update using update operators, or for reportQuotaUsage an
+     * update pipeline, with no transaction.
+     */
+    ATOMIC,
+
+    /**
+     * Read the user and change it in Java, the same as TRANSACTION, but with
+     * no transaction. The changes are written back with an updateOne that only
+     * matches if the user's version hasn't changed since we read it. If it
+     * has we read it again and retry, up to MAX_OCC_ATTEMPTS times.
+     */
+    OCC;
+
+    public static final int MAX_OCC_ATTEMPTS = 5;
+
+    public static final String CHARGING_MODE = "CHARGING_MODE";
+
+    /**
+     * get CHARGING_MODE env variable if set
+     *
+     * @return a ChargingMode, TRANSACTION by default
+     */
+    public static ChargingMode getChargingModeIfSet() {
+
+        String chargingModeEnv = System.getenv(CHARGING_MODE);
+
+        if (chargingModeEnv != null && !chargingModeEnv.isEmpty()) {
+            BaseChargingDemo.msg("CHARGING_MODE is '" + chargingModeEnv + "'");
+            return valueOf(chargingModeEnv.trim().toUpperCase());
+        }
+
+        return TRANSACTION;
+    }
+}
@@ -46,11 +46,12 @@ public class CreateChargingDemoData extends BaseChargingDemo {
         // How many users
         int userCount = Integer.parseInt(args[1]);
 
-        // Target transactions per millisecond.
-        int tpMs = Integer.parseInt(args[2]);
+        // Target transactions per millisecond. Can be fractional.
+        double tpMs = Double.parseDouble(args[2]);
 
         // How long our arbitrary JSON payload will be.
         int loblength = 120;
+        binaryPayload = getBinaryPayloadIfSet();
         final ExtraUserData ourJson = getExtraUserDataAsObject(loblength, gson, r);
 
         // Default credit users are 'born' with
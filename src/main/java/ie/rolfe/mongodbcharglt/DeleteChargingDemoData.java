@@ -41,8 +41,8 @@ public class DeleteChargingDemoData extends BaseChargingDemo {
         // Target transactions per millisecond.
         int recordCount = Integer.parseInt(args[1]);
 
-        // Target transactions per millisecond.
-        int tpMs = Integer.parseInt(args[2]);
+        // Target transactions per millisecond. Can be fractional.
+        double tpMs = Double.parseDouble(args[2]);
 
         try {
             try {
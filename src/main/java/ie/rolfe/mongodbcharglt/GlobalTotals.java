@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+
+/**
+ * Keeps system wide balance and reserved credit totals in a small collection,
+ * so "how much credit is reserved?" is a read of a few documents instead of a
+ * pass over every user. Totals are split across GLOBAL_TOTALS_STRIPES
+ * documents by user id, so no single document is hot. Charging operations
+ * record their deltas here once they have committed; we add them up in memory
+ * and $inc the stripes with one bulkWrite every FLUSH_INTERVAL_MS.
+ */
+public class GlobalTotals {
+
+    public static final String GLOBAL_TOTALS_STRIPES = "GLOBAL_TOTALS_STRIPES";
+    public static final String GLOBAL_TOTALS_REBUILD = "GLOBAL_TOTALS_REBUILD";
+    public static final String COUNT_USAGE_TOTAL_BY_STRIPES = "COUNT_USAGE_TOTAL_BY_STRIPES";
+    public static final String GLOBAL_TOTALS_FLUSH = "GLOBAL_TOTALS_FLUSH";
+    static final String CHARGLT_TOTALS = "charglt_totals";
+    static final long FLUSH_INTERVAL_MS = 100;
+
+    /**
+     * Where the stripes live. null in tests.
+     */
+    final MongoCollection<Document> collection;
+
+    /**
+     * Balance changes not yet written, one per stripe.
+     */
+    final LongAdder[] balanceDeltas;
+
+    /**
+     * Reserved credit changes not yet written, one per stripe.
+     */
+    final LongAdder[] reservedDeltas;
+
+    ScheduledExecutorService flusher = null;
+
+    GlobalTotals(MongoCollection<Document> collection, int stripes) {
+
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be >= 1, not " + stripes);
+        }
+
+        this.collection = collection;
+        balanceDeltas = new LongAdder[stripes];
+        reservedDeltas = new LongAdder[stripes];
+
+        for (int i = 0; i < stripes; i++) {
+            balanceDeltas[i] = new LongAdder();
+            reservedDeltas[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * get GLOBAL_TOTALS_STRIPES env variable if set, build the stripes from
+     * the users collection if they aren't there yet and start flushing.
+     *
+     * @param mongoClient
+     * @return a GlobalTotals, or null if GLOBAL_TOTALS_STRIPES isn't set
+     */
+    public static GlobalTotals getGlobalTotalsIfSet(MongoClient mongoClient) {
+
+        String stripesEnv = System.getenv(GLOBAL_TOTALS_STRIPES);
+
+        if (stripesEnv == null || stripesEnv.isEmpty()) {
+            return null;
+        }
+
+        BaseChargingDemo.msg("GLOBAL_TOTALS_STRIPES is '" + stripesEnv + "'");
+
+        GlobalTotals globalTotals = new GlobalTotals(mongoClient.getDatabase(BaseChargingDemo.CHARGLT_DATABASE)
+                .getCollection(CHARGLT_TOTALS), Integer.parseInt(stripesEnv));
+
+        // Other load generators may already be adding to the stripes, so only
+        // start again from scratch if there are none or we're told to...
+        if (getGlobalTotalsRebuildIfSet() || globalTotals.collection.countDocuments() == 0) {
+            globalTotals.rebuild(mongoClient.getDatabase(BaseChargingDemo.CHARGLT_DATABASE)
+                    .getCollection(BaseChargingDemo.CHARGLT_USERS));
+        } else {
+            BaseChargingDemo.msg("Using existing " + CHARGLT_TOTALS);
+        }
+
+        globalTotals.start();
+
+        return globalTotals;
+    }
+
+    /**
+     * get GLOBAL_TOTALS_REBUILD env variable if set
+     *
+     * @return true if the stripes should be rebuilt even if they exist
+     */
+    static boolean getGlobalTotalsRebuildIfSet() {
+
+        String rebuildEnv = System.getenv(GLOBAL_TOTALS_REBUILD);
+
+        if (rebuildEnv != null && !rebuildEnv.isEmpty()) {
+            BaseChargingDemo.msg("GLOBAL_TOTALS_REBUILD is '" + rebuildEnv + "'");
+            return rebuildEnv.equalsIgnoreCase("true");
+        }
+
+        return false;
+    }
+
+    /**
+     * Work out the totals from scratch and put them in stripe 0, with every
+     * other stripe starting at zero. Only safe when nothing else is changing
+     * users, which is why we only do it when asked or when there are no
+     * stripes yet.
+     *
+     * @param users CHARGLT_USERS
+     */
+    void rebuild(MongoCollection<Document> users) {
+
+        BaseChargingDemo.msg("Rebuilding " + CHARGLT_TOTALS + "...");
+
+        Document totals = users.aggregate(Arrays.asList(Aggregates.group(null,
+                Accumulators.sum("balance", "$balance"),
+                Accumulators.sum("reserved", BaseChargingDemo.getReservedCreditExpression())))).first();
+
+        collection.drop();
+
+        ArrayList<Document> stripes = new ArrayList<>(balanceDeltas.length);
+
+        for (int i = 0; i < balanceDeltas.length; i++) {
+            stripes.add(new Document("_id", i).append("balance", 0L).append("reserved", 0L));
+        }
+
+        if (totals != null) {
+            stripes.get(0).append("balance", ((Number) totals.get("balance")).longValue())
+                    .append("reserved", ((Number) totals.get("reserved")).longValue());
+        }
+
+        collection.insertMany(stripes);
+
+        BaseChargingDemo.msg("..." + stripes.get(0));
+    }
+
+    void start() {
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Note a change that has committed.
+     *
+     * @param userId        whose balance or reservations changed
+     * @param balanceDelta  change in balance
+     * @param reservedDelta change in reserved credit
+     */
+    public void record(long userId, long balanceDelta, long reservedDelta) {
+
+        final int stripe = getStripe(userId);
+
+        if (balanceDelta != 0) {
+            balanceDeltas[stripe].add(balanceDelta);
+        }
+
+        if (reservedDelta != 0) {
+            reservedDeltas[stripe].add(reservedDelta);
+        }
+    }
+
+    int getStripe(long userId) {
+        return (int) Math.floorMod(userId, (long) balanceDeltas.length);
+    }
+
+    /**
+     * Take everything recorded so far, leaving the adders at zero.
+     *
+     * @param balance  filled in with the balance change for each stripe
+     * @param reserved filled in with the reserved credit change for each stripe
+     */
+    void drain(long[] balance, long[] reserved) {
+
+        for (int i = 0; i < balanceDeltas.length; i++) {
+            balance[i] = balanceDeltas[i].sumThenReset();
+            reserved[i] = reservedDeltas[i].sumThenReset();
+        }
+    }
+
+    /**
+     * @param balance  balance change for each stripe
+     * @param reserved reserved credit change for each stripe
+     * @return the stripes that have changed, in the order getStripeUpdates
+     * writes them
+     */
+    static int[] getChangedStripes(long[] balance, long[] reserved) {
+
+        int changedCount = 0;
+        int[] changed = new int[balance.length];
+
+        for (int i = 0; i < balance.length; i++) {
+            if (balance[i] != 0 || reserved[i] != 0) {
+                changed[changedCount++] = i;
+            }
+        }
+
+        return Arrays.copyOf(changed, changedCount);
+    }
+
+    /**
+     * @param balance  balance change for each stripe
+     * @param reserved reserved credit change for each stripe
+     * @return one upserting $inc per stripe that has changed
+     */
+    static List<UpdateOneModel<Document>> getStripeUpdates(long[] balance, long[] reserved) {
+
+        ArrayList<UpdateOneModel<Document>> updates = new ArrayList<>();
+        UpdateOptions upsert = new UpdateOptions().upsert(true);
+
+        for (int i : getChangedStripes(balance, reserved)) {
+            updates.add(new UpdateOneModel<>(eq(i),
+                    combine(inc("balance", balance[i]), inc("reserved", reserved[i])), upsert));
+        }
+
+        return updates;
+    }
+
+    /**
+     * Write whatever has been recorded. If the write fails the deltas that
+     * didn't make it are put back so the next flush tries again.
+     */
+    synchronized void flush() {
+
+        final long[] balance = new long[balanceDeltas.length];
+        final long[] reserved = new long[reservedDeltas.length];
+
+        drain(balance, reserved);
+
+        List<UpdateOneModel<Document>> updates = getStripeUpdates(balance, reserved);
+
+        if (updates.isEmpty()) {
+            return;
+        }
+
+        final long startMs = System.currentTimeMillis();
+
+        try {
+            collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+            BaseChargingDemo.shc.reportLatency(GLOBAL_TOTALS_FLUSH, startMs, "Global totals flush", 2000);
+        } catch (Exception e) {
+            BaseChargingDemo.msg("Unable to flush " + CHARGLT_TOTALS + ": " + e.getMessage());
+            putBack(balance, reserved, e);
+        }
+    }
+
+    /**
+     * Put back the deltas a failed flush didn't write. An unordered bulkWrite
+     * that throws MongoBulkWriteException has applied every update except the
+     * ones in getWriteErrors(), so putting those back would count them
+     * twice...
+     *
+     * @param balance  balance change for each stripe we tried to write
+     * @param reserved reserved credit change for each stripe we tried to write
+     * @param e        why the flush failed
+     */
+    void putBack(long[] balance, long[] reserved, Exception e) {
+
+        if (e instanceof MongoBulkWriteException) {
+
+            final int[] changed = getChangedStripes(balance, reserved);
+
+            for (BulkWriteError error : ((MongoBulkWriteException) e).getWriteErrors()) {
+                final int stripe = changed[error.getIndex()];
+                balanceDeltas[stripe].add(balance[stripe]);
+                reservedDeltas[stripe].add(reserved[stripe]);
+            }
+
+        } else {
+
+            for (int i = 0; i < balance.length; i++) {
+                balanceDeltas[i].add(balance[i]);
+                reservedDeltas[i].add(reserved[i]);
+            }
+        }
+    }
+
+    /**
+     * Read every stripe and add them up. Flushes first so our own changes are
+     * included.
+     *
+     * @return balance and reserved credit across all users
+     */
+    public long[] getTotals() {
+
+        flush();
+
+        long balance = 0;
+        long reserved = 0;
+
+        for (Document stripe : collection.find()) {
+            balance += ((Number) stripe.get("balance")).longValue();
+            reserved += ((Number) stripe.get("reserved")).longValue();
+        }
+
+        return new long[]{balance, reserved};
+    }
+
+    /**
+     * Stop flushing and write anything left over.
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        flush();
+    }
+
+    @Override
+    public String toString() {
+        return "GlobalTotals [stripes=" + balanceDeltas.length + "]";
+    }
+}
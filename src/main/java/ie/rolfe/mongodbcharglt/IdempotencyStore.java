@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import ie.rolfe.mongodbcharglt.documents.UserTable;
+import org.bson.Document;
+
+import java.util.Date;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the ids of recent charging transactions in their own collection
+ * instead of in each user's userRecentTransactions. Each id is inserted as the
+ * _id of a small document, so the unique _id index spots duplicates, and a TTL
+ * index on createdAt removes them after UserTable.TX_KEEP_MS. Ids are only
+ * unique per user, so the user id is part of the key.
+ */
+public class IdempotencyStore {
+
+    public static final String IDEMPOTENCY_STORE = "IDEMPOTENCY_STORE";
+    public static final String DUPLICATE_TXN = "DUPLICATE_TXN";
+    static final String CHARGLT_TXN_KEYS = "CHARGLT_TXN_KEYS";
+    static final String CREATED_AT = "createdAt";
+
+    final MongoCollection<Document> collection;
+
+    IdempotencyStore(MongoCollection<Document> collection) {
+        this.collection = collection;
+    }
+
+    /**
+     * get IDEMPOTENCY_STORE env variable and, if it's 'true', make sure the
+     * collection and its TTL index exist.
+     *
+     * @param mongoClient
+     * @return an IdempotencyStore, or null if IDEMPOTENCY_STORE isn't 'true'
+     */
+    public static IdempotencyStore getIdempotencyStoreIfSet(MongoClient mongoClient) {
+
+        String storeEnv = System.getenv(IDEMPOTENCY_STORE);
+
+        if (storeEnv == null || !storeEnv.equalsIgnoreCase("true")) {
+            return null;
+        }
+
+        BaseChargingDemo.msg("IDEMPOTENCY_STORE is '" + storeEnv + "'");
+
+        IdempotencyStore store = new IdempotencyStore(getCollection(mongoClient));
+
+        store.collection.createIndex(Indexes.ascending(CREATED_AT),
+                new IndexOptions().expireAfter(UserTable.TX_KEEP_MS / 1000, TimeUnit.SECONDS));
+
+        return store;
+    }
+
+    static MongoCollection<Document> getCollection(MongoClient mongoClient) {
+        return mongoClient.getDatabase(BaseChargingDemo.CHARGLT_DATABASE).getCollection(CHARGLT_TXN_KEYS);
+    }
+
+    static com.mongodb.reactivestreams.client.MongoCollection<Document> getCollection(
+            com.mongodb.reactivestreams.client.MongoClient asyncClient) {
+        return asyncClient.getDatabase(BaseChargingDemo.CHARGLT_DATABASE).getCollection(CHARGLT_TXN_KEYS);
+    }
+
+    /**
+     * @param userId user id
+     * @param txnId  transaction id
+     * @return the document we insert to claim txnId
+     */
+    static Document getKey(long userId, String txnId) {
+        return new Document("_id", userId + "/" + txnId).append("userId", userId).append(CREATED_AT, new Date());
+    }
+
+    /**
+     * Claim txnId inside a transaction. If it's already been claimed this
+     * throws a duplicate key error, which aborts the transaction.
+     *
+     * @param session transaction we are in
+     * @param userId  user id
+     * @param txnId   transaction id
+     */
+    public void claim(ClientSession session, long userId, String txnId) {
+        collection.insertOne(session, getKey(userId, txnId));
+    }
+
+    /**
+     * Claim txnId on its own.
+     *
+     * @param userId user id
+     * @param txnId  transaction id
+     * @return true if it was new, false if it's a duplicate
+     */
+    public boolean claim(long userId, String txnId) {
+
+        try {
+            collection.insertOne(getKey(userId, txnId));
+            return true;
+        } catch (MongoWriteException e) {
+            if (isDuplicate(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Give up a claim, because the change it was for didn't happen.
+     *
+     * @param userId user id
+     * @param txnId  transaction id
+     */
+    public void release(long userId, String txnId) {
+        collection.deleteOne(new Document("_id", userId + "/" + txnId));
+    }
+
+    /**
+     * @param t something that went wrong, possibly wrapped by a
+     *          CompletableFuture
+     * @return true if it's a duplicate key error, which means the transaction
+     * already happened
+     */
+    public static boolean isDuplicate(Throwable t) {
+
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+
+        return t instanceof MongoWriteException
+                && ((MongoWriteException) t).getError().getCategory() == ErrorCategory.DUPLICATE_KEY;
+    }
+
+    @Override
+    public String toString() {
+        return "IdempotencyStore [" + CHARGLT_TXN_KEYS + "]";
+    }
+}
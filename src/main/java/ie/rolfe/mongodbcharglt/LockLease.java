@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt;
+
+import org.voltdb.voltutil.stats.LatencyHistogram;
+
+/**
+ * How long a KV soft lock lasts. The server works out when it expires using
+ * $$NOW, so this is a length, not a time. It's either a fixed number of ms or,
+ * with LOCK_LEASE_MS=adaptive[:minMs[:maxMs]], ADAPTIVE_MULTIPLIER times the
+ * p99 KV_PUT latency we've seen so far, kept between minMs and maxMs.
+ */
+public class LockLease {
+
+    public static final String LOCK_LEASE_MS = "LOCK_LEASE_MS";
+    public static final String LOCK_LEASE_STOLEN = "LOCK_LEASE_STOLEN";
+    static final String ADAPTIVE = "adaptive";
+    static final int ADAPTIVE_MULTIPLIER = 4;
+    static final int DEFAULT_MAX_MS = 1000;
+    static final long RECALCULATE_INTERVAL_MS = 1000;
+
+    final boolean adaptive;
+    final int minMs;
+    final int maxMs;
+
+    volatile int leaseMs;
+    volatile long lastCalculatedMs = 0;
+
+    /**
+     * A lease that's always fixedMs long.
+     */
+    LockLease(int fixedMs) {
+        this(false, fixedMs, fixedMs);
+    }
+
+    LockLease(boolean adaptive, int minMs, int maxMs) {
+
+        if (minMs < 1 || maxMs < minMs) {
+            throw new IllegalArgumentException("Need 1 <= minMs <= maxMs, not " + minMs + " and " + maxMs);
+        }
+
+        this.adaptive = adaptive;
+        this.minMs = minMs;
+        this.maxMs = maxMs;
+        leaseMs = minMs;
+    }
+
+    /**
+     * get LOCK_LEASE_MS env variable if set
+     *
+     * @return a LockLease. The default is a fixed ReferenceData.LOCK_TIMEOUT_MS
+     */
+    public static LockLease getLockLeaseIfSet() {
+
+        String leaseEnv = System.getenv(LOCK_LEASE_MS);
+
+        if (leaseEnv == null || leaseEnv.isEmpty()) {
+            return new LockLease(ReferenceData.LOCK_TIMEOUT_MS);
+        }
+
+        BaseChargingDemo.msg("LOCK_LEASE_MS is '" + leaseEnv + "'");
+
+        return getLockLease(leaseEnv);
+    }
+
+    /**
+     * @param spec either a number of ms or adaptive[:minMs[:maxMs]]
+     * @return a LockLease
+     */
+    static LockLease getLockLease(String spec) {
+
+        String[] parts = spec.trim().split(":");
+
+        if (!parts[0].equalsIgnoreCase(ADAPTIVE)) {
+            return new LockLease(Integer.parseInt(parts[0]));
+        }
+
+        int minMs = parts.length > 1 ? Integer.parseInt(parts[1]) : ReferenceData.LOCK_TIMEOUT_MS;
+        int maxMs = parts.length > 2 ? Integer.parseInt(parts[2]) : Math.max(minMs, DEFAULT_MAX_MS);
+
+        return new LockLease(true, minMs, maxMs);
+    }
+
+    /**
+     * @return how long a new lock should last, in ms
+     */
+    public int getLeaseMs() {
+
+        if (adaptive) {
+
+            final long nowMs = System.currentTimeMillis();
+
+            if (lastCalculatedMs + RECALCULATE_INTERVAL_MS < nowMs) {
+                lastCalculatedMs = nowMs;
+                recalculate(BaseChargingDemo.shc.get(BaseChargingDemo.KV_PUT));
+            }
+        }
+
+        return leaseMs;
+    }
+
+    /**
+     * Base the lease on how long KV puts are taking. If there aren't any yet
+     * we stick with what we have.
+     *
+     * @param kvPutLatency KV_PUT latencies in ms
+     */
+    void recalculate(LatencyHistogram kvPutLatency) {
+
+        if (kvPutLatency.hasReports()) {
+            final int p99 = Math.max(1, kvPutLatency.getLatencyPct(99));
+            leaseMs = Math.min(maxMs, Math.max(minMs, p99 * ADAPTIVE_MULTIPLIER));
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        if (adaptive) {
+            return "LockLease [adaptive, " + minMs + "-" + maxMs + "ms, currently " + leaseMs + "ms]";
+        }
+
+        return "LockLease [" + leaseMs + "ms]";
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open loop pacing. Request n is meant to start at startNs + n * intervalNs,
+ * regardless of how long earlier requests took. If we fall behind we don't sleep
+ * until we've caught up, so a slow server doesn't quietly lower the offered load.
+ * Rates can be fractional, so 0.25 means one request every 4 ms.
+ */
+public class OpenLoopScheduler {
+
+    /**
+     * When request 0 was meant to start.
+     */
+    final long startNs;
+
+    /**
+     * Nanoseconds between requests.
+     */
+    final double intervalNs;
+
+    /**
+     * How many requests we have handed out so far.
+     */
+    long requestCount = 0;
+
+    /**
+     * Create a scheduler that starts now.
+     *
+     * @param tpMs requests per millisecond. Must be > 0.
+     */
+    public OpenLoopScheduler(double tpMs) {
+        this(tpMs, System.nanoTime());
+    }
+
+    /**
+     * Create a scheduler.
+     *
+     * @param tpMs    requests per millisecond. Must be > 0.
+     * @param startNs System.nanoTime() at which request 0 should start
+     */
+    public OpenLoopScheduler(double tpMs, long startNs) {
+
+        if (!(tpMs > 0)) {
+            throw new IllegalArgumentException("tpMs must be > 0, not " + tpMs);
+        }
+
+        this.startNs = startNs;
+        this.intervalNs = 1000000d / tpMs;
+    }
+
+    /**
+     * @return when the next request should start, in System.nanoTime() terms
+     */
+    public long getNextIntendedStartNs() {
+        return startNs + (long) (requestCount * intervalNs);
+    }
+
+    /**
+     * Wait until the next request is due, without spinning.
+     *
+     * @return when the request was meant to start, in System.nanoTime() terms.
+     * This may be in the past if we are running behind.
+     * @throws InterruptedException
+     */
+    public long awaitNext() throws InterruptedException {
+
+        final long intendedStartNs = getNextIntendedStartNs();
+        requestCount++;
+
+        awaitNanoTime(intendedStartNs);
+
+        return intendedStartNs;
+    }
+
+    /**
+     * Wait until System.nanoTime() reaches intendedStartNs, without spinning.
+     * Returns immediately if it already has.
+     *
+     * @param intendedStartNs when we want to start
+     * @throws InterruptedException
+     */
+    public static void awaitNanoTime(long intendedStartNs) throws InterruptedException {
+
+        long remainingNs;
+
+        while ((remainingNs = intendedStartNs - System.nanoTime()) > 0) {
+
+            LockSupport.parkNanos(remainingNs);
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * @return how many requests we have handed out so far
+     */
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return how far behind schedule we are right now, in nanoseconds, or zero
+     * if we are on time.
+     */
+    public long getLagNs() {
+        return Math.max(0, System.nanoTime() - getNextIntendedStartNs());
+    }
+
+    /**
+     * Older versions of this code used EXTRA_MS to sleep an extra amount every
+     * time tpMs requests had been sent. Turn that into the equivalent rate.
+     *
+     * @param tpMs    requested transactions per millisecond
+     * @param extraMs EXTRA_MS
+     * @return the rate we should actually aim for
+     */
+    public static double getEffectiveTpMs(double tpMs, int extraMs) {
+
+        if (extraMs > 0) {
+            return tpMs / (1 + extraMs);
+        }
+
+        return tpMs;
+    }
+
+    @Override
+    public String toString() {
+        return "OpenLoopScheduler [intervalNs=" + intervalNs + ", requestCount=" + requestCount + "]";
+    }
+}
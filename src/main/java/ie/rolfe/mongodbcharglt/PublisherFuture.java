@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Minimal bridge from a reactive streams Publisher to a CompletableFuture, so
+ * we can chain driver calls without pulling in a reactive library.
+ *
+ * @param <T> what the publisher produces
+ */
+public class PublisherFuture<T> implements Subscriber<T> {
+
+    final CompletableFuture<T> future = new CompletableFuture<>();
+
+    T firstResult = null;
+
+    /**
+     * Subscribe to a publisher that produces at most one interesting result.
+     *
+     * @param publisher e.g. find().first(), replaceOne() or commitTransaction()
+     * @return a future that completes with the first result, or null if there
+     * wasn't one
+     */
+    public static <T> CompletableFuture<T> first(Publisher<T> publisher) {
+        PublisherFuture<T> subscriber = new PublisherFuture<>();
+        publisher.subscribe(subscriber);
+        return subscriber.future;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(T t) {
+        if (firstResult == null) {
+            firstResult = t;
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        future.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        future.complete(firstResult);
+    }
+}
@@ -31,6 +31,7 @@ public class ReferenceData {
     public static final byte STATUS_RECORD_ALREADY_SOFTLOCKED = 53;
     public static final byte STATUS_RECORD_HAS_BEEN_SOFTLOCKED = 54;
     public static final byte STATUS_CREDIT_ADDED = 56;
+    public static final byte STATUS_TOO_MANY_CONFLICTS = 57;
 
     public static final int LOCK_TIMEOUT_MS = 50;
 
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Decides how the benchmark loops run a request. By default requests run
+ * synchronously on the calling thread. If VIRTUAL_THREADS is set each request
+ * runs on its own JDK virtual thread, so the blocking driver calls overlap, with
+ * at most VIRTUAL_THREADS requests in flight at once. If ASYNC_IN_FLIGHT is set
+ * requests use the reactive streams driver and complete via callbacks, with at
+ * most ASYNC_IN_FLIGHT requests outstanding.
+ */
+public class RequestDispatcher {
+
+    public static final String VIRTUAL_THREADS = "VIRTUAL_THREADS";
+    public static final String ASYNC_IN_FLIGHT = "ASYNC_IN_FLIGHT";
+
+    /**
+     * How many requests can be in flight at once. 1 means synchronous.
+     */
+    final int maxConcurrency;
+
+    /**
+     * Virtual thread executor, or null if we are synchronous.
+     */
+    final ExecutorService executor;
+
+    /**
+     * True if requests are asynchronous driver calls.
+     */
+    final boolean async;
+
+    /**
+     * One permit per request we are allowed to have in flight.
+     */
+    final Semaphore permits;
+
+    /**
+     * Create a dispatcher.
+     *
+     * @param maxConcurrency how many requests can be in flight. <= 1 means run
+     *                       everything synchronously.
+     */
+    public RequestDispatcher(int maxConcurrency) {
+        this(Math.max(1, maxConcurrency), maxConcurrency > 1 ? Executors.newVirtualThreadPerTaskExecutor() : null, false);
+    }
+
+    private RequestDispatcher(int maxConcurrency, ExecutorService executor, boolean async) {
+        this.maxConcurrency = maxConcurrency;
+        this.executor = executor;
+        this.async = async;
+        permits = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * Create a dispatcher for asynchronous requests.
+     *
+     * @param maxInFlight how many requests can be outstanding
+     * @return a RequestDispatcher
+     */
+    public static RequestDispatcher asynchronous(int maxInFlight) {
+        return new RequestDispatcher(Math.max(1, maxInFlight), null, true);
+    }
+
+    /**
+     * @return true if ASYNC_IN_FLIGHT is set, so we'll need a reactive client
+     */
+    public static boolean isAsyncRequested() {
+        String asyncEnv = System.getenv(ASYNC_IN_FLIGHT);
+        return asyncEnv != null && !asyncEnv.isEmpty() && Integer.parseInt(asyncEnv) > 0;
+    }
+
+    /**
+     * get ASYNC_IN_FLIGHT or VIRTUAL_THREADS env variable if set and create a
+     * dispatcher
+     *
+     * @return a RequestDispatcher
+     */
+    public static RequestDispatcher getDispatcher() {
+
+        if (isAsyncRequested()) {
+            String asyncEnv = System.getenv(ASYNC_IN_FLIGHT);
+            BaseChargingDemo.msg("ASYNC_IN_FLIGHT is '" + asyncEnv + "'");
+            return asynchronous(Integer.parseInt(asyncEnv));
+        }
+
+        int maxConcurrency = 1;
+
+        String virtualThreadsEnv = System.getenv(VIRTUAL_THREADS);
+
+        if (virtualThreadsEnv != null && !virtualThreadsEnv.isEmpty()) {
+            BaseChargingDemo.msg("VIRTUAL_THREADS is '" + virtualThreadsEnv + "'");
+            maxConcurrency = Integer.parseInt(virtualThreadsEnv);
+        }
+
+        return new RequestDispatcher(maxConcurrency);
+    }
+
+    /**
+     * Run a request, either now or on a virtual thread. If we already have
+     * maxConcurrency requests in flight we block until one finishes.
+     *
+     * @param request what to do
+     * @throws InterruptedException
+     */
+    public void dispatch(Runnable request) throws InterruptedException {
+
+        if (executor == null) {
+            request.run();
+            return;
+        }
+
+        permits.acquire();
+
+        try {
+            executor.execute(() -> {
+                try {
+                    request.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Start an asynchronous request. If we already have maxConcurrency requests
+     * outstanding we block until one completes.
+     *
+     * @param request starts a request and returns a future that completes when
+     *                it's done
+     * @throws InterruptedException
+     */
+    public void dispatchAsync(Supplier<CompletableFuture<?>> request) throws InterruptedException {
+
+        permits.acquire();
+
+        CompletableFuture<?> future;
+
+        try {
+            future = request.get();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+
+        future.whenComplete((result, t) -> permits.release());
+    }
+
+    /**
+     * Wait for everything in flight to finish.
+     *
+     * @throws InterruptedException
+     */
+    public void drain() throws InterruptedException {
+        permits.acquire(maxConcurrency);
+        permits.release(maxConcurrency);
+    }
+
+    /**
+     * Wait for everything in flight to finish and then stop.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+
+        drain();
+
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return true if requests run on virtual threads
+     */
+    public boolean isVirtual() {
+        return executor != null;
+    }
+
+    /**
+     * @return true if requests are asynchronous driver calls
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * @return how many requests can be in flight at once
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Override
+    public String toString() {
+        if (isAsync()) {
+            return "asynchronously, max in flight " + maxConcurrency;
+        }
+        if (isVirtual()) {
+            return "virtual threads, max concurrency " + maxConcurrency;
+        }
+        return "synchronous";
+    }
+}
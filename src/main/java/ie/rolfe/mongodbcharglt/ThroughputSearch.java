@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt;
+
+import org.voltdb.voltutil.stats.LatencyHistogram;
+import org.voltdb.voltutil.stats.SafeHistogramCache;
+
+import java.util.ArrayList;
+
+/**
+ * Finds the highest tpMs we can sustain in a single JVM. We double the offered
+ * load until a stage fails, then binary search between the last stage that
+ * passed and the first one that didn't. A stage passes if we got >= 90% of the
+ * requested TPS and the p99 latency, measured from when requests were meant to
+ * start, is within the SLO.
+ */
+public class ThroughputSearch {
+
+    public static final String SEARCH_SLO_P99_MS = "SEARCH_SLO_P99_MS";
+    public static final String SEARCH_MAX_TPMS = "SEARCH_MAX_TPMS";
+    public static final String SEARCH_BINARY_STEPS = "SEARCH_BINARY_STEPS";
+
+    /**
+     * Runs the benchmark for one stage.
+     */
+    public interface Stage {
+
+        /**
+         * @param tpMs offered load for this stage
+         * @return observed transactions per second
+         * @throws InterruptedException
+         */
+        double run(double tpMs) throws InterruptedException;
+    }
+
+    /**
+     * What happened in one stage.
+     */
+    static class StageResult {
+        final double tpMs;
+        final double tps;
+        final int p99Ms;
+        final int p99FromIntendedMs;
+        final boolean passed;
+
+        StageResult(double tpMs, double tps, int p99Ms, int p99FromIntendedMs, boolean passed) {
+            this.tpMs = tpMs;
+            this.tps = tps;
+            this.p99Ms = p99Ms;
+            this.p99FromIntendedMs = p99FromIntendedMs;
+            this.passed = passed;
+        }
+    }
+
+    /**
+     * Highest acceptable p99 latency in ms.
+     */
+    final int sloP99Ms;
+
+    /**
+     * We won't offer more than this.
+     */
+    final double maxTpMs;
+
+    /**
+     * How many binary search stages we run after the doubling phase.
+     */
+    final int binarySteps;
+
+    /**
+     * Histograms whose p99 must be within the SLO.
+     */
+    final String[] latencyTypes;
+
+    final ArrayList<StageResult> results = new ArrayList<>();
+
+    public ThroughputSearch(int sloP99Ms, double maxTpMs, int binarySteps, String... latencyTypes) {
+        this.sloP99Ms = sloP99Ms;
+        this.maxTpMs = maxTpMs;
+        this.binarySteps = binarySteps;
+        this.latencyTypes = latencyTypes;
+    }
+
+    /**
+     * @return true if SEARCH_SLO_P99_MS is set
+     */
+    public static boolean isSearchRequested() {
+        String sloEnv = System.getenv(SEARCH_SLO_P99_MS);
+        return sloEnv != null && !sloEnv.isEmpty();
+    }
+
+    /**
+     * Create a search using SEARCH_SLO_P99_MS, SEARCH_MAX_TPMS and
+     * SEARCH_BINARY_STEPS.
+     *
+     * @param startTpMs    where we start. SEARCH_MAX_TPMS defaults to 1024 times
+     *                     this.
+     * @param latencyTypes histograms whose p99 must be within the SLO
+     * @return a ThroughputSearch
+     */
+    public static ThroughputSearch getSearch(double startTpMs, String... latencyTypes) {
+
+        int sloP99Ms = Integer.parseInt(System.getenv(SEARCH_SLO_P99_MS));
+        BaseChargingDemo.msg("SEARCH_SLO_P99_MS is '" + sloP99Ms + "'");
+
+        double maxTpMs = startTpMs * 1024;
+        String maxTpMsEnv = System.getenv(SEARCH_MAX_TPMS);
+
+        if (maxTpMsEnv != null && !maxTpMsEnv.isEmpty()) {
+            BaseChargingDemo.msg("SEARCH_MAX_TPMS is '" + maxTpMsEnv + "'");
+            maxTpMs = Double.parseDouble(maxTpMsEnv);
+        }
+
+        int binarySteps = 4;
+        String binaryStepsEnv = System.getenv(SEARCH_BINARY_STEPS);
+
+        if (binaryStepsEnv != null && !binaryStepsEnv.isEmpty()) {
+            BaseChargingDemo.msg("SEARCH_BINARY_STEPS is '" + binaryStepsEnv + "'");
+            binarySteps = Integer.parseInt(binaryStepsEnv);
+        }
+
+        return new ThroughputSearch(sloP99Ms, maxTpMs, binarySteps, latencyTypes);
+    }
+
+    /**
+     * Run the search.
+     *
+     * @param stage     runs the benchmark at a given tpMs
+     * @param startTpMs where we start
+     * @return the highest tpMs that passed, or 0 if none did
+     * @throws InterruptedException
+     */
+    public double search(Stage stage, double startTpMs) throws InterruptedException {
+
+        double lastPass = 0;
+        double firstFail = 0;
+        double tpMs = startTpMs;
+
+        // Double until we fail or hit the ceiling...
+        while (tpMs <= maxTpMs) {
+
+            if (runStage(stage, tpMs)) {
+                lastPass = tpMs;
+                tpMs = tpMs * 2;
+            } else {
+                firstFail = tpMs;
+                break;
+            }
+        }
+
+        // Then narrow it down...
+        if (firstFail > 0) {
+            for (int i = 0; i < binarySteps; i++) {
+
+                tpMs = (lastPass + firstFail) / 2;
+
+                if (runStage(stage, tpMs)) {
+                    lastPass = tpMs;
+                } else {
+                    firstFail = tpMs;
+                }
+            }
+        }
+
+        reportResults(lastPass);
+
+        return lastPass;
+    }
+
+    /**
+     * Run one stage with a clean set of histograms and decide if it passed.
+     */
+    boolean runStage(Stage stage, double tpMs) throws InterruptedException {
+
+        BaseChargingDemo.msg("Search stage " + (results.size() + 1) + ": offering " + tpMs + " tpMs");
+
+        SafeHistogramCache shc = SafeHistogramCache.getInstance();
+        shc.reset();
+
+        final double tps = stage.run(tpMs);
+
+        int p99Ms = 0;
+        int p99FromIntendedMs = 0;
+
+        for (String latencyType : latencyTypes) {
+
+            LatencyHistogram actual = shc.get(latencyType);
+
+            if (actual.hasReports()) {
+                p99Ms = Math.max(p99Ms, actual.getLatencyPct(99));
+                p99FromIntendedMs = Math.max(p99FromIntendedMs,
+                        shc.get(latencyType + SafeHistogramCache.INTENDED_SUFFIX).getLatencyPct(99));
+            }
+        }
+
+        final boolean passed = BaseChargingDemo.isWithin90Percent(tpMs, tps) && p99FromIntendedMs <= sloP99Ms;
+
+        results.add(new StageResult(tpMs, tps, p99Ms, p99FromIntendedMs, passed));
+
+        BaseChargingDemo.msg("Search stage " + results.size() + ": " + (passed ? "PASSED" : "FAILED"));
+
+        return passed;
+    }
+
+    /**
+     * Print every stage as one table.
+     */
+    void reportResults(double kneeTpMs) {
+
+        StringBuffer table = new StringBuffer("THROUGHPUT SEARCH RESULTS (p99 SLO " + sloP99Ms + " ms):");
+        table.append(System.lineSeparator());
+        table.append(String.format("%16s %16s %12s %20s %8s", "offered tpMs", "achieved TPS", "p99 ms",
+                "p99 from intended", "result"));
+
+        for (StageResult result : results) {
+            table.append(System.lineSeparator());
+            table.append(String.format("%16.3f %16.0f %12d %20d %8s", result.tpMs, result.tps, result.p99Ms,
+                    result.p99FromIntendedMs, result.passed ? "PASS" : "FAIL"));
+        }
+
+        table.append(System.lineSeparator());
+        table.append("GREPABLE KNEE:" + kneeTpMs);
+
+        BaseChargingDemo.msg(table.toString());
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt;
+
+import com.mongodb.client.MongoClient;
+import ie.rolfe.mongodbcharglt.workload.KeyGenerator;
+
+import java.util.Random;
+
+/**
+ * One thread's worth of the transaction benchmark. All workers draw users from
+ * one shared KeyGenerator over every user, so the key distribution is the same
+ * however many threads there are, and each paces itself against its own share
+ * of the requested transactions per millisecond. A user is only worked on by
+ * one worker at a time: whoever wins UserTransactionState.tryStartTran.
+ */
+public class TransactionBenchmarkWorker implements Runnable {
+
+    /**
+     * Client records for all users, shared with the other workers.
+     */
+    final UserTransactionState[] users;
+
+    /**
+     * Our share of the target transactions per millisecond.
+     */
+    final double tpMs;
+
+    /**
+     * Picks users. Shared with the other workers.
+     */
+    final KeyGenerator keyGenerator;
+
+    /**
+     * When we stop.
+     */
+    final long endtimeMs;
+
+    final MongoClient mainClient;
+
+    /**
+     * Reactive client, used if our dispatcher is asynchronous.
+     */
+    final com.mongodb.reactivestreams.client.MongoClient asyncClient;
+
+    /**
+     * Decides whether requests run on this thread or on virtual threads.
+     */
+    final RequestDispatcher dispatcher;
+
+    /**
+     * How charging operations talk to the server.
+     */
+    final ChargingMode chargingMode;
+
+    /**
+     * Used to make transaction ids unique across processes and threads.
+     */
+    final String txnIdPrefix;
+
+    final int workerId;
+
+    long tranCount = 0;
+    long inFlightCount = 0;
+    long addCreditCount = 0;
+    long reportUsageCount = 0;
+
+    public TransactionBenchmarkWorker(UserTransactionState[] users, double tpMs, KeyGenerator keyGenerator,
+                                      long endtimeMs, MongoClient mainClient,
+                                      com.mongodb.reactivestreams.client.MongoClient asyncClient,
+                                      RequestDispatcher dispatcher, ChargingMode chargingMode, long pid,
+                                      int workerId) {
+        this.users = users;
+        this.tpMs = tpMs;
+        this.keyGenerator = keyGenerator;
+        this.endtimeMs = endtimeMs;
+        this.mainClient = mainClient;
+        this.asyncClient = asyncClient;
+        this.dispatcher = dispatcher;
+        this.chargingMode = chargingMode;
+        this.txnIdPrefix = "ReportQuotaUsage_" + pid + "_" + workerId + "_";
+        this.workerId = workerId;
+    }
+
+    @Override
+    public void run() {
+
+        Random r = new Random();
+
+        OpenLoopScheduler scheduler = new OpenLoopScheduler(tpMs);
+
+        while (endtimeMs > System.currentTimeMillis()) {
+
+            final long intendedStartNs;
+
+            try {
+                intendedStartNs = scheduler.awaitNext();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            final UserTransactionState user = users[keyGenerator.nextKey()];
+
+            if (!user.tryStartTran()) {
+                inFlightCount++;
+            } else {
+
+                try {
+                    if (user.spendableBalance < 1000) {
+
+                        addCreditCount++;
+
+                        final int extraCredit = r.nextInt(1000) + 1000;
+
+                        BaseChargingDemo.dispatchAddCredit(dispatcher, mainClient, asyncClient, user, extraCredit,
+                                BaseChargingDemo.getAddCreditTxnId(extraCredit), intendedStartNs, chargingMode);
+
+                    } else {
+
+                        reportUsageCount++;
+
+                        final int unitsUsed = (int) (user.currentlyReserved * 0.9);
+                        final int unitsWanted = r.nextInt(100);
+                        final String txnId = txnIdPrefix + reportUsageCount + "_" + System.currentTimeMillis();
+
+                        BaseChargingDemo.dispatchReportQuotaUsage(dispatcher, mainClient, asyncClient, user,
+                                unitsUsed, unitsWanted, user.sessionId, txnId, intendedStartNs, chargingMode);
+
+                    }
+                } catch (InterruptedException e) {
+                    user.endTran();
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            if (tranCount++ % 100000 == 0) {
+                BaseChargingDemo.msg("On transaction #" + tranCount + " (worker " + workerId + ")");
+            }
+
+        }
+
+    }
+
+}
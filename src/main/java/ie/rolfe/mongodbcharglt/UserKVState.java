@@ -30,7 +30,7 @@ public class UserKVState {
      * Unique ID given to  that we use to prove that we are the owner of
      * this lock.
      */
-    long lockId = Long.MIN_VALUE;
+    volatile long lockId = Long.MIN_VALUE;
 
     /**
      * ID of user.
@@ -40,17 +40,29 @@ public class UserKVState {
     /**
      * Where we are in the update cycle..
      */
-    int userState = STATUS_UNLOCKED;
+    volatile int userState = STATUS_UNLOCKED;
 
     /**
-     * When a transaction started, or zero if there isn't one.
+     * When a transaction started, or zero if there isn't one. Volatile because
+     * the transaction may finish on a different thread.
      */
-    long txStartMicros = 0;
+    volatile long txStartMicros = 0;
+
+    /**
+     * System.nanoTime() when a transaction started, for latency reporting.
+     */
+    long txStartNs = 0;
+
+    /**
+     * System.nanoTime() when our pacing scheduler meant the transaction to
+     * start.
+     */
+    long intendedStartNs = 0;
 
     /**
      * Last time record was known to be locked by someone else...
      */
-    long otherLockTimeMs = 0;
+    volatile long otherLockTimeMs = 0;
 
     /**
      * Times record was locked by another session
@@ -79,8 +91,20 @@ public class UserKVState {
      * Report start of transaction.
      */
     public void startTran() {
+        startTran(System.nanoTime());
+    }
 
-        txStartMicros = System.nanoTime() / 1000;
+    /**
+     * Report start of transaction.
+     *
+     * @param intendedStartNs System.nanoTime() when the transaction was meant to
+     *                        start
+     */
+    public void startTran(long intendedStartNs) {
+
+        this.intendedStartNs = intendedStartNs;
+        txStartNs = System.nanoTime();
+        txStartMicros = txStartNs / 1000;
     }
 
     /**
@@ -94,53 +118,71 @@ public class UserKVState {
     public int getUserStatus() {
         return userState;
     }
-//TODO
-//    @Override
-//    public void clientCallback(ClientResponse arg0) throws Exception {
-//
-//        if (arg0.getStatus() == ClientResponse.SUCCESS) {
-//
-//            byte statusByte = arg0.getAppStatus();
-//
-//            if (userState == STATUS_UNLOCKED) {
-//                BaseChargingDemo.msg("UserKVState.clientCallback: got app status of " + arg0.getAppStatusString());
-//            } else if (userState == STATUS_TRYING_TO_LOCK) {
-//
-//                shc.reportLatencyMicros(BaseChargingDemo.KV_GET, txStartMicros, BaseChargingDemo.KV_GET,
-//                        BaseChargingDemo.HISTOGRAM_SIZE_MS, 1);
-//
-//                if (statusByte == ReferenceData.STATUS_RECORD_HAS_BEEN_SOFTLOCKED) {
-//
-//                    userState = STATUS_LOCKED;
-//                    lockId = arg0.getAppStatusString();
-//
-//                } else if (statusByte == ReferenceData.STATUS_RECORD_ALREADY_SOFTLOCKED) {
-//
-//                    userState = STATUS_LOCKED_BY_SOMEONE_ELSE;
-//                    lockId = "";
-//                    lockedBySomeoneElseCount++;
-//                    otherLockTimeMs = System.currentTimeMillis();
-//
-//                } else {
-//                    userState = STATUS_UNLOCKED;
-//                }
-//            } else if (userState == STATUS_UPDATING) {
-//
-//                shc.reportLatencyMicros(BaseChargingDemo.KV_PUT, txStartMicros, BaseChargingDemo.KV_PUT,
-//                        BaseChargingDemo.HISTOGRAM_SIZE_MS, 1);
-//
-//                lockId = "";
-//                userState = STATUS_UNLOCKED;
-//
-//            }
-//
-//        } else {
-//            BaseChargingDemo.msg("UserKVState.clientCallback: got status of " + arg0.getStatusString());
-//        }
-//
-//        // End transaction
-//        txStartMicros = 0;
-//    }
+    /**
+     * Called when an asynchronous request for this user completes. Moves us
+     * through STATUS_TRYING_TO_LOCK -> STATUS_LOCKED -> STATUS_UPDATING ->
+     * STATUS_UNLOCKED and ends the transaction.
+     *
+     * @param statusByte one of the ReferenceData status codes
+     * @param newLockId  the lock we now hold, if statusByte is
+     *                   STATUS_RECORD_HAS_BEEN_SOFTLOCKED
+     */
+    public void clientCallback(byte statusByte, long newLockId) {
+
+        if (userState == STATUS_UNLOCKED) {
+            BaseChargingDemo.msg("UserKVState.clientCallback: got app status of " + statusByte);
+        } else if (userState == STATUS_TRYING_TO_LOCK) {
+
+            shc.reportLatencyWithIntended(BaseChargingDemo.KV_GET, intendedStartNs, txStartNs, "KV Get time", 2000);
+
+            if (statusByte == ReferenceData.STATUS_RECORD_HAS_BEEN_SOFTLOCKED) {
+
+                lockId = newLockId;
+                userState = STATUS_LOCKED;
+
+            } else if (statusByte == ReferenceData.STATUS_RECORD_ALREADY_SOFTLOCKED) {
+
+                setLockedBySomeoneElse();
+
+            } else {
+                lockId = Long.MIN_VALUE;
+                userState = STATUS_UNLOCKED;
+            }
+        } else if (userState == STATUS_UPDATING) {
+
+            shc.reportLatencyWithIntended(BaseChargingDemo.KV_PUT, intendedStartNs, txStartNs, "KV Put Time", 2000);
+
+            if (statusByte == ReferenceData.STATUS_RECORD_ALREADY_SOFTLOCKED) {
+
+                setLockedBySomeoneElse();
+
+            } else {
+                lockId = Long.MIN_VALUE;
+                userState = STATUS_UNLOCKED;
+            }
+
+        }
+
+        // End transaction
+        txStartMicros = 0;
+    }
+
+    /**
+     * Called when an asynchronous request for this user fails. We forget any
+     * lock we thought we had and end the transaction.
+     *
+     * @param t what went wrong
+     */
+    public void clientCallbackFailed(Throwable t) {
+
+        BaseChargingDemo.msg("UserKVState.clientCallbackFailed: " + id + ": " + t.getMessage());
+
+        lockId = Long.MIN_VALUE;
+        userState = STATUS_UNLOCKED;
+
+        // End transaction
+        txStartMicros = 0;
+    }
 
     /**
      * @return the lockId
@@ -163,6 +205,17 @@ public class UserKVState {
         }
     }
 
+    /**
+     * Note that someone else has the lock. We won't try again until their
+     * lease could have run out.
+     */
+    public void setLockedBySomeoneElse() {
+        lockId = Long.MIN_VALUE;
+        lockedBySomeoneElseCount++;
+        otherLockTimeMs = System.currentTimeMillis();
+        userState = STATUS_LOCKED_BY_SOMEONE_ELSE;
+    }
+
     @Override
     public String toString() {
         String builder = "UserKVState [lockId=" +
@@ -193,6 +246,14 @@ public class UserKVState {
         return otherLockTimeMs;
     }
 
+    /**
+     * @return System.nanoTime() when our pacing scheduler meant the current
+     * transaction to start
+     */
+    public long getIntendedStartNs() {
+        return intendedStartNs;
+    }
+
     public void endTran() {
         txStartMicros = 0;
     }
@@ -15,6 +15,7 @@
 
 package ie.rolfe.mongodbcharglt;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Class to keep track of how many transactions a given user has. It also keeps
@@ -34,9 +35,13 @@ public class UserTransactionState {
     public long sessionId = Long.MIN_VALUE;
 
     /**
-     * When a transaction started, or zero if there isn't one.
+     * When a transaction started, or zero if there isn't one. Volatile because
+     * the transaction may finish on a different thread.
      */
-    public long txStartMs = 0;
+    public volatile long txStartMs = 0;
+
+    private static final AtomicLongFieldUpdater<UserTransactionState> TX_START_MS =
+            AtomicLongFieldUpdater.newUpdater(UserTransactionState.class, "txStartMs");
 
     /**
      * Balance. Long.MAX_VALUE means we don't know...
@@ -66,6 +71,16 @@ public class UserTransactionState {
         txStartMs = System.currentTimeMillis();
     }
 
+    /**
+     * Start a transaction unless one is already in flight. Safe to call from
+     * more than one thread: only one of them wins.
+     *
+     * @return true if we started one
+     */
+    public boolean tryStartTran() {
+        return TX_START_MS.compareAndSet(this, 0, System.currentTimeMillis());
+    }
+
     /**
      * @return the txInFlight
      */
@@ -8,6 +8,11 @@
 
 package ie.rolfe.mongodbcharglt.documents;
 
+import org.bson.BsonInvalidOperationException;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -29,7 +34,6 @@ public class AbstractBaseTable {
     }
 
     public static Date getDate(org.bson.Document document, String key) {
-        SimpleDateFormat sdf = new SimpleDateFormat("MMM dd, yyyy, HH:mm:ss a", Locale.ENGLISH);
         Object tempObject = document.get(key);
 
         if (tempObject == null) {
@@ -38,13 +42,102 @@ public class AbstractBaseTable {
             return (Date) tempObject;
         }
 
+        return parseLegacyDate(tempObject.toString());
+    }
+
+    /**
+     * Documents written via Gson store dates as text.
+     *
+     * @param dateString a date the way Gson wrote it
+     * @return a Date
+     */
+    public static Date parseLegacyDate(String dateString) {
+        SimpleDateFormat sdf = new SimpleDateFormat("MMM dd, yyyy, hh:mm:ss a", Locale.ENGLISH);
+
         Date dateTime = null;
 
         try {
-            dateTime = sdf.parse(tempObject.toString());
+            // Newer JDKs put a narrow no-break space before AM/PM...
+            dateTime = sdf.parse(dateString.replace('\u202F', ' '));
         } catch (ParseException e) {
             throw new RuntimeException(e);
         }
         return dateTime;
     }
+
+    /**
+     * Read a long, coping with however it was stored.
+     *
+     * @param reader positioned at a value
+     * @return the value, or Long.MIN_VALUE if it's null
+     */
+    public static long readLong(BsonReader reader) {
+
+        switch (reader.getCurrentBsonType()) {
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return reader.readInt64();
+            case DOUBLE:
+                return (long) reader.readDouble();
+            case NULL:
+                reader.readNull();
+                return Long.MIN_VALUE;
+            default:
+                throw new BsonInvalidOperationException("Expected a number, not " + reader.getCurrentBsonType());
+        }
+    }
+
+    /**
+     * Read a date, coping with dates Gson wrote as text.
+     *
+     * @param reader positioned at a value
+     * @return the value, or null
+     */
+    public static Date readDate(BsonReader reader) {
+
+        switch (reader.getCurrentBsonType()) {
+            case DATE_TIME:
+                return new Date(reader.readDateTime());
+            case STRING:
+                return parseLegacyDate(reader.readString());
+            case NULL:
+                reader.readNull();
+                return null;
+            default:
+                throw new BsonInvalidOperationException("Expected a date, not " + reader.getCurrentBsonType());
+        }
+    }
+
+    /**
+     * @param reader positioned at a value
+     * @return a String, or null
+     */
+    public static String readString(BsonReader reader) {
+
+        if (reader.getCurrentBsonType() == BsonType.NULL) {
+            reader.readNull();
+            return null;
+        }
+
+        return reader.readString();
+    }
+
+    /**
+     * Write a date if we have one. Like Gson, we leave nulls out.
+     */
+    public static void writeDate(BsonWriter writer, String name, Date date) {
+        if (date != null) {
+            writer.writeDateTime(name, date.getTime());
+        }
+    }
+
+    /**
+     * Write a String if we have one. Like Gson, we leave nulls out.
+     */
+    public static void writeString(BsonWriter writer, String name, String value) {
+        if (value != null) {
+            writer.writeString(name, value);
+        }
+    }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.documents;
+
+
+import com.mongodb.MongoClientSettings;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * Provides codecs for UserTable and the classes inside it, so collections can be
+ * typed as MongoCollection&lt;UserTable&gt;.
+ */
+public class ChargingCodecProvider implements CodecProvider {
+
+    /**
+     * The driver's default codecs plus ours.
+     */
+    public static final CodecRegistry CODEC_REGISTRY = CodecRegistries.fromRegistries(
+            MongoClientSettings.getDefaultCodecRegistry(),
+            CodecRegistries.fromProviders(new ChargingCodecProvider()));
+
+    final UserTableCodec userTableCodec = new UserTableCodec();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+
+        if (clazz == UserTable.class) {
+            return (Codec<T>) userTableCodec;
+        } else if (clazz == UserUsageTable.class) {
+            return (Codec<T>) userTableCodec.userUsageTableCodec;
+        } else if (clazz == UserRecentTransactions.class) {
+            return (Codec<T>) userTableCodec.userRecentTransactionsCodec;
+        } else if (clazz == ExtraUserData.class) {
+            return (Codec<T>) userTableCodec.extraUserDataCodec;
+        }
+
+        return null;
+    }
+}
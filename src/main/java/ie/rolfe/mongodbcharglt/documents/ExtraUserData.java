@@ -17,6 +17,7 @@ package ie.rolfe.mongodbcharglt.documents;
 
 
 import org.bson.Document;
+import org.bson.types.Binary;
 
 /**
  * Class that gets stored as JSON data.
@@ -28,6 +29,12 @@ public class ExtraUserData extends AbstractBaseTable {
 
     public String mysteriousHexPayload;
 
+    /**
+     * Used instead of mysteriousHexPayload if BINARY_PAYLOAD is set. Half the
+     * size, and stored as BSON binary.
+     */
+    public byte[] binaryPayload;
+
     public String loyaltySchemeName;
 
     public long loyaltySchemeNumber;
@@ -41,6 +48,14 @@ public class ExtraUserData extends AbstractBaseTable {
     public ExtraUserData(Document userDataObjectDoc) {
 
         mysteriousHexPayload = userDataObjectDoc.getString("mysteriousHexPayload");
+
+        Object binaryObject = userDataObjectDoc.get("binaryPayload");
+
+        if (binaryObject instanceof Binary) {
+            binaryPayload = ((Binary) binaryObject).getData();
+        } else if (binaryObject instanceof byte[]) {
+            binaryPayload = (byte[]) binaryObject;
+        }
         loyaltySchemeName = userDataObjectDoc.getString("loyaltySchemeName");
         loyaltySchemeNumber = getLong(userDataObjectDoc, "loyaltySchemeNumber");
 
@@ -54,6 +69,7 @@ public class ExtraUserData extends AbstractBaseTable {
     public String toString() {
         return "ExtraUserData{" +
                 "mysteriousHexPayload='" + mysteriousHexPayload + '\'' +
+                ", binaryPayload=" + (binaryPayload == null ? "null" : binaryPayload.length + " bytes") +
                 ", loyaltySchemeName='" + loyaltySchemeName + '\'' +
                 ", loyaltySchemeNumber=" + loyaltySchemeNumber +
                 '}';
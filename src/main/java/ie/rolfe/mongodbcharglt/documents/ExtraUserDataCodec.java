@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.documents;
+
+
+import org.bson.BsonBinary;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import static ie.rolfe.mongodbcharglt.documents.AbstractBaseTable.*;
+
+/**
+ * Reads and writes ExtraUserData as BSON, without going via JSON.
+ */
+public class ExtraUserDataCodec implements Codec<ExtraUserData> {
+
+    @Override
+    public void encode(BsonWriter writer, ExtraUserData value, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        writeString(writer, "mysteriousHexPayload", value.mysteriousHexPayload);
+        if (value.binaryPayload != null) {
+            writer.writeBinaryData("binaryPayload", new BsonBinary(value.binaryPayload));
+        }
+        writeString(writer, "loyaltySchemeName", value.loyaltySchemeName);
+        writer.writeInt64("loyaltySchemeNumber", value.loyaltySchemeNumber);
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public ExtraUserData decode(BsonReader reader, DecoderContext decoderContext) {
+
+        ExtraUserData eud = new ExtraUserData();
+
+        reader.readStartDocument();
+
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case "mysteriousHexPayload":
+                    eud.mysteriousHexPayload = readString(reader);
+                    break;
+                case "binaryPayload":
+                    eud.binaryPayload = reader.readBinaryData().getData();
+                    break;
+                case "loyaltySchemeName":
+                    eud.loyaltySchemeName = readString(reader);
+                    break;
+                case "loyaltySchemeNumber":
+                    eud.loyaltySchemeNumber = readLong(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        reader.readEndDocument();
+
+        return eud;
+    }
+
+    @Override
+    public Class<ExtraUserData> getEncoderClass() {
+        return ExtraUserData.class;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.documents;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Open addressing hash map with primitive long keys, so get(long), put(long, V)
+ * and remove(long) don't box. Collisions are resolved by linear probing and
+ * removal shifts later entries back, so there are no tombstones. It's still a
+ * Map&lt;Long, V&gt; for anything that wants one, such as Gson, but going via
+ * the Map interface boxes. Null values aren't allowed.
+ *
+ * @param <V> what we store
+ */
+public class LongObjectHashMap<V> extends AbstractMap<Long, V> {
+
+    static final int DEFAULT_CAPACITY = 8;
+
+    long[] keys;
+    Object[] values;
+    int size = 0;
+    int mask;
+
+    public LongObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize how many entries we expect
+     */
+    public LongObjectHashMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    static int tableSizeFor(int expectedSize) {
+        // Keep the load factor at or below 0.5...
+        return Math.max(DEFAULT_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize * 2 - 1)) << 1);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long key) {
+
+        int i = hash(key) & mask;
+
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+
+        if (value == null) {
+            throw new NullPointerException("LongObjectHashMap doesn't allow null values");
+        }
+
+        int i = hash(key) & mask;
+
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                V oldValue = (V) values[i];
+                values[i] = value;
+                return oldValue;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+
+        if (++size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+
+        int i = indexOf(key);
+
+        if (i < 0) {
+            return null;
+        }
+
+        V oldValue = (V) values[i];
+        size--;
+
+        // Shift back anything further along the probe sequence that could
+        // have gone in the slot we've just emptied...
+        int next = (i + 1) & mask;
+
+        while (values[next] != null) {
+
+            final int home = hash(keys[next]) & mask;
+
+            if (((next - home) & mask) >= ((next - i) & mask)) {
+                keys[i] = keys[next];
+                values[i] = values[next];
+                i = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        values[i] = null;
+
+        return oldValue;
+    }
+
+    private void rehash(int newCapacity) {
+
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+
+        allocate(newCapacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int j = hash(oldKeys[i]) & mask;
+                while (values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @Override
+    public V get(Object key) {
+        return key instanceof Long ? get(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Long && containsKey(((Long) key).longValue());
+    }
+
+    @Override
+    public V put(Long key, V value) {
+        return put(key.longValue(), value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return key instanceof Long ? remove(((Long) key).longValue()) : null;
+    }
+
+    /**
+     * Read only view of the values, which doesn't box anything.
+     */
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new SlotIterator<V>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    V at(int slot) {
+                        return (V) values[slot];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Read only view of the entries. Each one is a new object.
+     */
+    @Override
+    public Set<Entry<Long, V>> entrySet() {
+        return new AbstractSet<Entry<Long, V>>() {
+            @Override
+            public Iterator<Entry<Long, V>> iterator() {
+                return new SlotIterator<Entry<Long, V>>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    Entry<Long, V> at(int slot) {
+                        return new SimpleImmutableEntry<>(keys[slot], (V) values[slot]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Walks the occupied slots. Removing while iterating isn't supported, as
+     * removal can move entries we haven't seen yet into slots we have.
+     */
+    private abstract class SlotIterator<T> implements Iterator<T> {
+
+        int slot = nextSlot(0);
+
+        private int nextSlot(int from) {
+            while (from < values.length && values[from] == null) {
+                from++;
+            }
+            return from;
+        }
+
+        abstract T at(int slot);
+
+        @Override
+        public boolean hasNext() {
+            return slot < values.length;
+        }
+
+        @Override
+        public T next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            T result = at(slot);
+            slot = nextSlot(slot + 1);
+            return result;
+        }
+    }
+}
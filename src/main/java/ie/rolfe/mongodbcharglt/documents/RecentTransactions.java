@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.documents;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A user's recent transactions, oldest first, keyed by transaction id. They
+ * live in a ring buffer, so adding a new one or dropping the oldest one
+ * doesn't allocate, plus an open addressing index of ring slots for lookups by
+ * id. It's still a Map&lt;String, UserRecentTransactions&gt; for anything that
+ * wants one, such as Gson.
+ */
+public class RecentTransactions extends AbstractMap<String, UserRecentTransactions> {
+
+    static final int DEFAULT_CAPACITY = 8;
+
+    /**
+     * The transactions. The oldest is at head.
+     */
+    UserRecentTransactions[] ring = new UserRecentTransactions[DEFAULT_CAPACITY];
+    int head = 0;
+    int size = 0;
+
+    /**
+     * ring slot + 1 for each transaction, or 0 if empty. Always at least twice
+     * as big as ring.
+     */
+    int[] index = new int[DEFAULT_CAPACITY * 2];
+
+    static int hash(String txnId) {
+        final int h = txnId.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int slotOf(int position) {
+        return (head + position) & (ring.length - 1);
+    }
+
+    /**
+     * @return where in index txnId is, or -1
+     */
+    private int indexOf(String txnId) {
+
+        final int mask = index.length - 1;
+        int i = hash(txnId) & mask;
+
+        while (index[i] != 0) {
+            if (ring[index[i] - 1].userTxnId.equals(txnId)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    private void addToIndex(String txnId, int slot) {
+
+        final int mask = index.length - 1;
+        int i = hash(txnId) & mask;
+
+        while (index[i] != 0) {
+            i = (i + 1) & mask;
+        }
+
+        index[i] = slot + 1;
+    }
+
+    private void removeFromIndex(int i) {
+
+        final int mask = index.length - 1;
+        int next = (i + 1) & mask;
+
+        while (index[next] != 0) {
+
+            final int home = hash(ring[index[next] - 1].userTxnId) & mask;
+
+            if (((next - home) & mask) >= ((next - i) & mask)) {
+                index[i] = index[next];
+                i = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        index[i] = 0;
+    }
+
+    /**
+     * Lay the ring out again, oldest at slot 0, with room for capacity
+     * transactions, and rebuild the index.
+     */
+    private void rebuild(int capacity) {
+
+        UserRecentTransactions[] newRing = new UserRecentTransactions[capacity];
+
+        for (int i = 0; i < size; i++) {
+            newRing[i] = ring[slotOf(i)];
+        }
+
+        ring = newRing;
+        head = 0;
+        index = new int[capacity * 2];
+
+        for (int i = 0; i < size; i++) {
+            addToIndex(ring[i].userTxnId, i);
+        }
+    }
+
+    public UserRecentTransactions get(String txnId) {
+        final int i = indexOf(txnId);
+        return i < 0 ? null : ring[index[i] - 1];
+    }
+
+    public boolean containsKey(String txnId) {
+        return indexOf(txnId) >= 0;
+    }
+
+    /**
+     * Add a transaction as the newest. If we already have one with the same id
+     * it's replaced where it is.
+     *
+     * @param urt transaction
+     * @return the one it replaced, or null
+     */
+    public UserRecentTransactions add(UserRecentTransactions urt) {
+
+        final int i = indexOf(urt.userTxnId);
+
+        if (i >= 0) {
+            UserRecentTransactions oldUrt = ring[index[i] - 1];
+            ring[index[i] - 1] = urt;
+            return oldUrt;
+        }
+
+        if (size == ring.length) {
+            rebuild(ring.length * 2);
+        }
+
+        final int slot = slotOf(size);
+        ring[slot] = urt;
+        size++;
+        addToIndex(urt.userTxnId, slot);
+
+        return null;
+    }
+
+    /**
+     * @return the oldest transaction, or null if there aren't any
+     */
+    public UserRecentTransactions oldest() {
+        return size == 0 ? null : ring[head];
+    }
+
+    /**
+     * Drop the oldest transaction.
+     *
+     * @return what we dropped, or null if there wasn't anything
+     */
+    public UserRecentTransactions removeOldest() {
+
+        if (size == 0) {
+            return null;
+        }
+
+        UserRecentTransactions urt = ring[head];
+        removeFromIndex(indexOf(urt.userTxnId));
+        ring[head] = null;
+        head = (head + 1) & (ring.length - 1);
+        size--;
+
+        return urt;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(ring, null);
+        Arrays.fill(index, 0);
+        head = 0;
+        size = 0;
+    }
+
+    @Override
+    public UserRecentTransactions get(Object key) {
+        return key instanceof String ? get((String) key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && containsKey((String) key);
+    }
+
+    @Override
+    public UserRecentTransactions put(String key, UserRecentTransactions value) {
+
+        if (!key.equals(value.userTxnId)) {
+            throw new IllegalArgumentException("Key " + key + " isn't the txn id of " + value);
+        }
+
+        return add(value);
+    }
+
+    /**
+     * Remove a transaction by id. This is cheap for the oldest one, but
+     * anywhere else means closing the gap.
+     */
+    @Override
+    public UserRecentTransactions remove(Object key) {
+
+        if (!(key instanceof String)) {
+            return null;
+        }
+
+        final int i = indexOf((String) key);
+
+        if (i < 0) {
+            return null;
+        }
+
+        final int slot = index[i] - 1;
+
+        if (slot == head) {
+            return removeOldest();
+        }
+
+        UserRecentTransactions urt = ring[slot];
+
+        for (int position = (slot - head) & (ring.length - 1); position < size - 1; position++) {
+            ring[slotOf(position)] = ring[slotOf(position + 1)];
+        }
+
+        ring[slotOf(size - 1)] = null;
+        size--;
+        rebuild(ring.length);
+
+        return urt;
+    }
+
+    /**
+     * Read only view of the transactions, oldest first.
+     */
+    @Override
+    public Collection<UserRecentTransactions> values() {
+        return new AbstractCollection<UserRecentTransactions>() {
+            @Override
+            public Iterator<UserRecentTransactions> iterator() {
+                return new PositionIterator<UserRecentTransactions>() {
+                    @Override
+                    UserRecentTransactions at(int slot) {
+                        return ring[slot];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Read only view of the entries, oldest first.
+     */
+    @Override
+    public Set<Entry<String, UserRecentTransactions>> entrySet() {
+        return new AbstractSet<Entry<String, UserRecentTransactions>>() {
+            @Override
+            public Iterator<Entry<String, UserRecentTransactions>> iterator() {
+                return new PositionIterator<Entry<String, UserRecentTransactions>>() {
+                    @Override
+                    Entry<String, UserRecentTransactions> at(int slot) {
+                        return new SimpleImmutableEntry<>(ring[slot].userTxnId, ring[slot]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private abstract class PositionIterator<T> implements Iterator<T> {
+
+        int position = 0;
+
+        abstract T at(int slot);
+
+        @Override
+        public boolean hasNext() {
+            return position < size;
+        }
+
+        @Override
+        public T next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return at(slotOf(position++));
+        }
+    }
+}
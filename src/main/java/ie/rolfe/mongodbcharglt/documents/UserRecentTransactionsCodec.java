@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.documents;
+
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import static ie.rolfe.mongodbcharglt.documents.AbstractBaseTable.*;
+
+/**
+ * Reads and writes UserRecentTransactions as BSON, without going via JSON.
+ */
+public class UserRecentTransactionsCodec implements Codec<UserRecentTransactions> {
+
+    @Override
+    public void encode(BsonWriter writer, UserRecentTransactions value, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        writer.writeInt64("userId", value.userId);
+        writeString(writer, "userTxnId", value.userTxnId);
+        writeDate(writer, "txnTime", value.txnTime);
+        writer.writeInt64("sessionId", value.sessionId);
+        writer.writeInt64("approvedAmount", value.approvedAmount);
+        writer.writeInt64("spentAmount", value.spentAmount);
+        writeString(writer, "purpose", value.purpose);
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public UserRecentTransactions decode(BsonReader reader, DecoderContext decoderContext) {
+
+        UserRecentTransactions urt = new UserRecentTransactions();
+
+        reader.readStartDocument();
+
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case "userId":
+                    urt.userId = readLong(reader);
+                    break;
+                case "userTxnId":
+                    urt.userTxnId = readString(reader);
+                    break;
+                case "txnTime":
+                    urt.txnTime = readDate(reader);
+                    break;
+                case "sessionId":
+                    urt.sessionId = readLong(reader);
+                    break;
+                case "approvedAmount":
+                    urt.approvedAmount = readLong(reader);
+                    break;
+                case "spentAmount":
+                    urt.spentAmount = readLong(reader);
+                    break;
+                case "purpose":
+                    urt.purpose = readString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        reader.readEndDocument();
+
+        return urt;
+    }
+
+    @Override
+    public Class<UserRecentTransactions> getEncoderClass() {
+        return UserRecentTransactions.class;
+    }
+}
@@ -11,8 +11,8 @@ package ie.rolfe.mongodbcharglt.documents;
 import ie.rolfe.mongodbcharglt.ReferenceData;
 import org.bson.Document;
 
-import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * CREATE table user_table
@@ -31,6 +31,12 @@ public class UserTable extends AbstractBaseTable {
     public static final String ALREADY_HAPPENED = " already happened";
     public static long TX_KEEP_MS = 300000;
 
+    /**
+     * Most recent transactions we keep per user. Once we have this many the
+     * oldest is dropped, even if it's less than five minutes old.
+     */
+    public static int MAX_RECENT_TRANSACTIONS = 100;
+
 
     public long _id;
 
@@ -40,11 +46,31 @@ public class UserTable extends AbstractBaseTable {
     public long userSoftLockSessionId = Long.MIN_VALUE;
     public Date userSoftlockExpiry;
 
-    public HashMap<Long, UserUsageTable> userUsage = new HashMap<Long, UserUsageTable>();
-    public HashMap<String, UserRecentTransactions> userRecentTransactions = new HashMap<String, UserRecentTransactions>();
+    /**
+     * Reservations by session id, without boxing the session id.
+     */
+    public LongObjectHashMap<UserUsageTable> userUsage = new LongObjectHashMap<UserUsageTable>();
+
+    /**
+     * Recent transactions by id, oldest first.
+     */
+    public RecentTransactions userRecentTransactions = new RecentTransactions();
 
     public long balance = 0;
 
+    /**
+     * Sum of allocatedAmount across userUsage, kept up to date as reservations
+     * change so we don't have to walk userUsage to find available credit.
+     */
+    public long reservedTotal = 0;
+
+    /**
+     * Goes up by one every time addCredit or reportQuotaUsage runs, so OCC
+     * writers can tell if someone else got there first. Documents written
+     * before we had it are version 0.
+     */
+    public long version = 0;
+
     public UserTable(long userId, ExtraUserData userJsonObject, Date userLastSeen, Date userSoftlockExpiry, long userSoftLockSessionId) {
         this.userId = userId;
         _id = userId;
@@ -72,16 +98,21 @@ public class UserTable extends AbstractBaseTable {
             userSoftLockSessionId = getLong(document, "userSoftLockSessionId");
             balance = getLong(document, "balance");
 
-            Document urtDoc = (Document) document.get("userRecentTransactions");
-
-            if (urtDoc != null) {
-                Collection<Object> urtAsObjects = urtDoc.values();
-                Object[] urtEntries = urtAsObjects.toArray();
+            Object urtObject = document.get("userRecentTransactions");
 
-                for (Object urtEntry : urtEntries) {
-                    UserRecentTransactions newTx = new UserRecentTransactions((Document) urtEntry);
-                    userRecentTransactions.put(newTx.userTxnId, newTx);
+            if (urtObject instanceof List) {
+                ArrayList<UserRecentTransactions> urtList = new ArrayList<UserRecentTransactions>();
+                for (Object urtEntry : (List<?>) urtObject) {
+                    urtList.add(new UserRecentTransactions((Document) urtEntry));
                 }
+                loadRecentTransactions(urtList, true);
+            } else if (urtObject != null) {
+                // Older documents keep them in a sub-document keyed by txn id...
+                ArrayList<UserRecentTransactions> urtList = new ArrayList<UserRecentTransactions>();
+                for (Object urtEntry : ((Document) urtObject).values()) {
+                    urtList.add(new UserRecentTransactions((Document) urtEntry));
+                }
+                loadRecentTransactions(urtList, false);
             }
 
             Document uuDoc = (Document) document.get("userUsage");
@@ -95,6 +126,16 @@ public class UserTable extends AbstractBaseTable {
                     userUsage.put(newTx.sessionId, newTx);
                 }
             }
+
+            if (document.get("reservedTotal") != null) {
+                reservedTotal = getLong(document, "reservedTotal");
+            } else {
+                recalculateReservedTotal();
+            }
+
+            if (document.get("version") != null) {
+                version = getLong(document, "version");
+            }
         }
 
     }
@@ -120,42 +161,62 @@ public class UserTable extends AbstractBaseTable {
     }
 
     public void setUserUsage(UserUsageTable userUsageTable) {
-        userUsage.put(userUsageTable.sessionId, userUsageTable);
+        UserUsageTable oldUsage = userUsage.put(userUsageTable.sessionId, userUsageTable);
+
+        if (oldUsage != null) {
+            reservedTotal -= oldUsage.allocatedAmount;
+        }
+
+        reservedTotal += userUsageTable.allocatedAmount;
     }
 
-    public HashMap<String, UserRecentTransactions> getUserRecentTransactions() {
+    public RecentTransactions getUserRecentTransactions() {
         return userRecentTransactions;
     }
 
     public boolean txHasHappened(String txId) {
 
-
-        for (Map.Entry<String, UserRecentTransactions> entry : userRecentTransactions.entrySet()) {
-            if (entry.getValue().userTxnId.equals(txId)) {
-                return true;
-            } else if (entry.getValue().txnTime.before(new Date(System.currentTimeMillis() - TX_KEEP_MS))) {
-                userRecentTransactions.remove(entry.getKey());
-            }
-        }
-        return false;
+        deleteOldTransactions(new Date(System.currentTimeMillis() - TX_KEEP_MS));
+        return userRecentTransactions.containsKey(txId);
     }
 
     public void addUserRecentTransaction(UserRecentTransactions theUserRecentTransaction) {
-        userRecentTransactions.put(theUserRecentTransaction.userTxnId, theUserRecentTransaction);
+        userRecentTransactions.add(theUserRecentTransaction);
         balance += theUserRecentTransaction.spentAmount;
-    }
 
-    public long lock() {
+        // Drop the oldest if we have too many...
+        while (userRecentTransactions.size() > MAX_RECENT_TRANSACTIONS) {
+            userRecentTransactions.removeOldest();
+        }
+    }
 
-        if (userSoftlockExpiry == null || userSoftlockExpiry.before(new Date(System.currentTimeMillis() - ReferenceData.LOCK_TIMEOUT_MS))) {
-            SecureRandom secureRandom = new SecureRandom();
-            userSoftLockSessionId = Math.abs(secureRandom.nextLong());
-            userSoftlockExpiry = new Date(System.currentTimeMillis() + ReferenceData.LOCK_TIMEOUT_MS);
-            return (userSoftLockSessionId);
+    /**
+     * Put transactions we've just read into userRecentTransactions, without
+     * changing the balance.
+     *
+     * @param urtList transactions
+     * @param inOrder true if they are already oldest first. If not, we sort
+     *                them by txnTime.
+     */
+    final void loadRecentTransactions(List<UserRecentTransactions> urtList, boolean inOrder) {
+
+        if (!inOrder) {
+            urtList.sort(Comparator.comparing((UserRecentTransactions urt) -> urt.txnTime,
+                    Comparator.nullsFirst(Comparator.naturalOrder())));
         }
 
-        return Long.MIN_VALUE;
+        for (UserRecentTransactions urt : urtList) {
+            userRecentTransactions.add(urt);
+        }
+    }
 
+    /**
+     * @return a positive lock id. Lock ids only need to be different from
+     * each other, not unguessable, so this uses the calling thread's
+     * ThreadLocalRandom.
+     */
+    public static long newLockId() {
+        return ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
     }
 
     @Override
@@ -163,7 +224,7 @@ public class UserTable extends AbstractBaseTable {
         return "UserTable{" +
                 "_id=" + _id +
                 ", userId=" + userId +
-                ", userDataObject='" + userDataObject.toString() + '\'' +
+                ", userDataObject='" + userDataObject + '\'' +
                 ", userLastSeen=" + userLastSeen +
                 ", userSoftlockExpiry=" + userSoftlockExpiry +
                 ", userUsage=" + userUsage +
@@ -189,6 +250,7 @@ public class UserTable extends AbstractBaseTable {
     public String addCredit(long extraCredit, String txnId) {
 
         String retstring = "";
+        version++;
 
         // Sanity Check: Has this transaction already happened?
         if (isTransactionNew(txnId)) {
@@ -205,20 +267,25 @@ public class UserTable extends AbstractBaseTable {
         return retstring;
     }
 
+    /**
+     * Remove transactions from before thresholdDate. As they are kept oldest
+     * first we stop at the first one that's new enough.
+     *
+     * @param thresholdDate
+     * @return how many we removed
+     */
     int deleteOldTransactions(Date thresholdDate) {
 
         int deleted = 0;
-        ArrayList<String> deleteList = new ArrayList<String>();
+        UserRecentTransactions oldest;
 
-        for (Map.Entry<String, UserRecentTransactions> entry : userRecentTransactions.entrySet()) {
-            if (entry.getValue().txnTime.before(thresholdDate)) {
-                deleteList.add(entry.getKey());
+        while ((oldest = userRecentTransactions.oldest()) != null) {
 
+            if (oldest.txnTime != null && !oldest.txnTime.before(thresholdDate)) {
+                break;
             }
-        }
 
-        for (String key : deleteList) {
-            userRecentTransactions.remove(key);
+            userRecentTransactions.removeOldest();
             deleted++;
         }
 
@@ -230,6 +297,7 @@ public class UserTable extends AbstractBaseTable {
 
         byte statusCode = ReferenceData.STATUS_OK;
         String decision = "none";
+        version++;
 
         // Sanity Check: Has this transaction already happened?
         if (isTransactionNew(txnId)) {
@@ -289,6 +357,7 @@ public class UserTable extends AbstractBaseTable {
 
         if (uut != null) {
             userUsage.remove(inputSessionId);
+            reservedTotal -= uut.allocatedAmount;
         }
 
     }
@@ -297,25 +366,48 @@ public class UserTable extends AbstractBaseTable {
         UserUsageTable uut = getUserUsage(inputSessionId);
 
         if (uut != null) {
+            reservedTotal -= uut.allocatedAmount;
             uut.setAllocatedAmount(amountApproved);
         } else {
             uut = new UserUsageTable(userId, amountApproved, inputSessionId, new Date());
             userUsage.put(inputSessionId, uut);
         }
 
+        reservedTotal += amountApproved;
+
     }
 
-    public long getAvailableCredit() {
-        long availableCredit = balance;
+    /**
+     * Work out available credit without decoding the whole document.
+     *
+     * @param document a user, which needs at least balance and either
+     *                 reservedTotal or userUsage
+     * @return balance minus whatever is reserved
+     */
+    public static long getAvailableCredit(Document document) {
+
+        long availableCredit = getLong(document, "balance");
+
+        if (document.get("reservedTotal") != null) {
+            return availableCredit - getLong(document, "reservedTotal");
+        }
 
-        for (Map.Entry<Long, UserUsageTable> entry : userUsage.entrySet()) {
+        // Written before we kept reservedTotal...
+        Document uuDoc = (Document) document.get("userUsage");
 
-            availableCredit -= entry.getValue().allocatedAmount;
+        if (uuDoc != null) {
+            for (Object uuEntry : uuDoc.values()) {
+                availableCredit -= getLong((Document) uuEntry, "allocatedAmount");
+            }
         }
 
         return availableCredit;
     }
 
+    public long getAvailableCredit() {
+        return balance - reservedTotal;
+    }
+
     private void reportFinancialEvent(long amountSpent, String txnId, String decision) {
     }
 
@@ -348,16 +440,23 @@ public class UserTable extends AbstractBaseTable {
     public void clearSessions() {
 
         userUsage.clear();
+        reservedTotal = 0;
     }
 
     public long getUsageBalance() {
+        return reservedTotal;
+    }
 
-        long total = 0;
-        if (userUsage != null) {
-            for (Map.Entry<Long, UserUsageTable> entry : userUsage.entrySet()) {
-                total += entry.getValue().allocatedAmount;
-            }
+    /**
+     * Work out reservedTotal from scratch, for documents written before we kept
+     * it.
+     */
+    final void recalculateReservedTotal() {
+
+        reservedTotal = 0;
+
+        for (UserUsageTable uut : userUsage.values()) {
+            reservedTotal += uut.allocatedAmount;
         }
-        return total;
     }
 }
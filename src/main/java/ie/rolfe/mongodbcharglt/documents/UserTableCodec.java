@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.documents;
+
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import java.util.ArrayList;
+
+import static ie.rolfe.mongodbcharglt.documents.AbstractBaseTable.*;
+
+/**
+ * Reads and writes UserTable as BSON, without going via JSON. userUsage is
+ * keyed by session id, the same as Gson did it. userRecentTransactions is an
+ * array, oldest first, but we can still read the sub-document keyed by
+ * transaction id that Gson produced. Dates are written as BSON dates and
+ * numbers as int64s, but we can still read the text dates and int32s Gson left
+ * behind. Documents without a version are version 0.
+ */
+public class UserTableCodec implements Codec<UserTable> {
+
+    final ExtraUserDataCodec extraUserDataCodec = new ExtraUserDataCodec();
+    final UserUsageTableCodec userUsageTableCodec = new UserUsageTableCodec();
+    final UserRecentTransactionsCodec userRecentTransactionsCodec = new UserRecentTransactionsCodec();
+
+    @Override
+    public void encode(BsonWriter writer, UserTable value, EncoderContext encoderContext) {
+
+        writer.writeStartDocument();
+        writer.writeInt64("_id", value._id);
+        writer.writeInt64("userId", value.userId);
+
+        if (value.userDataObject != null) {
+            writer.writeName("userDataObject");
+            extraUserDataCodec.encode(writer, value.userDataObject, encoderContext);
+        }
+
+        writeDate(writer, "userLastSeen", value.userLastSeen);
+        writer.writeInt64("userSoftLockSessionId", value.userSoftLockSessionId);
+        writeDate(writer, "userSoftlockExpiry", value.userSoftlockExpiry);
+        encodeChargingFields(writer, value, encoderContext);
+        writer.writeEndDocument();
+    }
+
+    /**
+     * Write the fields addCredit and reportQuotaUsage change, and nothing
+     * else, into a document we've already started. OCC writes $set these so
+     * they don't undo KV changes to the same user.
+     */
+    public void encodeChargingFields(BsonWriter writer, UserTable value, EncoderContext encoderContext) {
+
+        writer.writeStartDocument("userUsage");
+        for (UserUsageTable uut : value.userUsage.values()) {
+            writer.writeName(Long.toString(uut.sessionId));
+            userUsageTableCodec.encode(writer, uut, encoderContext);
+        }
+        writer.writeEndDocument();
+
+        writer.writeStartArray("userRecentTransactions");
+        for (UserRecentTransactions urt : value.userRecentTransactions.values()) {
+            userRecentTransactionsCodec.encode(writer, urt, encoderContext);
+        }
+        writer.writeEndArray();
+
+        writer.writeInt64("balance", value.balance);
+        writer.writeInt64("reservedTotal", value.reservedTotal);
+        writer.writeInt64("version", value.version);
+    }
+
+    @Override
+    public UserTable decode(BsonReader reader, DecoderContext decoderContext) {
+
+        UserTable ut = new UserTable();
+        boolean hasReservedTotal = false;
+
+        reader.readStartDocument();
+
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case "_id":
+                    ut._id = readLong(reader);
+                    break;
+                case "userId":
+                    ut.userId = readLong(reader);
+                    break;
+                case "userDataObject":
+                    ut.userDataObject = extraUserDataCodec.decode(reader, decoderContext);
+                    break;
+                case "userLastSeen":
+                    ut.userLastSeen = readDate(reader);
+                    break;
+                case "userSoftLockSessionId":
+                    ut.userSoftLockSessionId = readLong(reader);
+                    break;
+                case "userSoftlockExpiry":
+                    ut.userSoftlockExpiry = readDate(reader);
+                    break;
+                case "userUsage":
+                    reader.readStartDocument();
+                    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                        reader.readName();
+                        UserUsageTable uut = userUsageTableCodec.decode(reader, decoderContext);
+                        ut.userUsage.put(uut.sessionId, uut);
+                    }
+                    reader.readEndDocument();
+                    break;
+                case "userRecentTransactions":
+                    ArrayList<UserRecentTransactions> urtList = new ArrayList<UserRecentTransactions>();
+                    if (reader.getCurrentBsonType() == BsonType.ARRAY) {
+                        reader.readStartArray();
+                        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                            urtList.add(userRecentTransactionsCodec.decode(reader, decoderContext));
+                        }
+                        reader.readEndArray();
+                        ut.loadRecentTransactions(urtList, true);
+                    } else {
+                        reader.readStartDocument();
+                        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                            reader.readName();
+                            urtList.add(userRecentTransactionsCodec.decode(reader, decoderContext));
+                        }
+                        reader.readEndDocument();
+                        ut.loadRecentTransactions(urtList, false);
+                    }
+                    break;
+                case "balance":
+                    ut.balance = readLong(reader);
+                    break;
+                case "reservedTotal":
+                    ut.reservedTotal = readLong(reader);
+                    hasReservedTotal = true;
+                    break;
+                case "version":
+                    ut.version = readLong(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        reader.readEndDocument();
+
+        if (!hasReservedTotal) {
+            ut.recalculateReservedTotal();
+        }
+
+        return ut;
+    }
+
+    @Override
+    public Class<UserTable> getEncoderClass() {
+        return UserTable.class;
+    }
+}
@@ -36,6 +36,10 @@ public class UserUsageTable extends AbstractBaseTable {
         this.lastDate = lastDate;
     }
 
+    public UserUsageTable() {
+
+    }
+
     public UserUsageTable(Document document) {
 
         userId = getLong(document, "userId");
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.documents;
+
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import static ie.rolfe.mongodbcharglt.documents.AbstractBaseTable.*;
+
+/**
+ * Reads and writes UserUsageTable as BSON, without going via JSON.
+ */
+public class UserUsageTableCodec implements Codec<UserUsageTable> {
+
+    @Override
+    public void encode(BsonWriter writer, UserUsageTable value, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        writer.writeInt64("userId", value.userId);
+        writer.writeInt64("allocatedAmount", value.allocatedAmount);
+        writer.writeInt64("sessionId", value.sessionId);
+        writeDate(writer, "lastDate", value.lastDate);
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public UserUsageTable decode(BsonReader reader, DecoderContext decoderContext) {
+
+        UserUsageTable uut = new UserUsageTable();
+
+        reader.readStartDocument();
+
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case "userId":
+                    uut.userId = readLong(reader);
+                    break;
+                case "allocatedAmount":
+                    uut.allocatedAmount = readLong(reader);
+                    break;
+                case "sessionId":
+                    uut.sessionId = readLong(reader);
+                    break;
+                case "lastDate":
+                    uut.lastDate = readDate(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        reader.readEndDocument();
+
+        return uut;
+    }
+
+    @Override
+    public Class<UserUsageTable> getEncoderClass() {
+        return UserUsageTable.class;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.workload;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A fraction of the keys, starting at key 0, get a fraction of the requests.
+ * The default is the classic 80/20 split.
+ */
+public class HotspotKeyGenerator extends KeyGenerator {
+
+    public static final double DEFAULT_HOT_KEY_FRACTION = 0.2;
+    public static final double DEFAULT_HOT_OP_FRACTION = 0.8;
+
+    final double hotKeyFraction;
+    final double hotOpFraction;
+    final int hotKeyCount;
+
+    /**
+     * @param keyCount       how many keys there are
+     * @param hotKeyFraction what fraction of keys are hot
+     * @param hotOpFraction  what fraction of requests go to hot keys
+     */
+    public HotspotKeyGenerator(int keyCount, double hotKeyFraction, double hotOpFraction) {
+        super(keyCount);
+
+        if (!(hotKeyFraction > 0 && hotKeyFraction <= 1) || !(hotOpFraction >= 0 && hotOpFraction <= 1)) {
+            throw new IllegalArgumentException("fractions must be between 0 and 1");
+        }
+
+        this.hotKeyFraction = hotKeyFraction;
+        this.hotOpFraction = hotOpFraction;
+        this.hotKeyCount = Math.max(1, (int) (keyCount * hotKeyFraction));
+    }
+
+    @Override
+    public int nextKey() {
+
+        final ThreadLocalRandom r = ThreadLocalRandom.current();
+
+        if (hotKeyCount == keyCount || r.nextDouble() < hotOpFraction) {
+            return r.nextInt(hotKeyCount);
+        }
+
+        return hotKeyCount + r.nextInt(keyCount - hotKeyCount);
+    }
+
+    @Override
+    public String toString() {
+        return "hotspot(keys=" + hotKeyFraction + ",ops=" + hotOpFraction + ")";
+    }
+}
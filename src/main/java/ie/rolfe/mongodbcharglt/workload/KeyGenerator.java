@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.workload;
+
+import ie.rolfe.mongodbcharglt.BaseChargingDemo;
+
+/**
+ * Picks which user the next request is for. Implementations must be cheap and
+ * allocation free, as we call them millions of times per second, and must be
+ * safe to call from more than one thread.
+ */
+public abstract class KeyGenerator {
+
+    public static final String KEY_DISTRIBUTION = "KEY_DISTRIBUTION";
+
+    /**
+     * Keys are in the range [0, keyCount).
+     */
+    final int keyCount;
+
+    protected KeyGenerator(int keyCount) {
+
+        if (keyCount <= 0) {
+            throw new IllegalArgumentException("keyCount must be > 0, not " + keyCount);
+        }
+
+        this.keyCount = keyCount;
+    }
+
+    /**
+     * @return a key in the range [0, keyCount)
+     */
+    public abstract int nextKey();
+
+    /**
+     * @return how many keys we choose from
+     */
+    public int getKeyCount() {
+        return keyCount;
+    }
+
+    /**
+     * Create a KeyGenerator from a specification.
+     *
+     * @param spec     one of 'uniform', 'zipfian[:theta]', 'hotspot[:hotKeyFraction[:hotOpFraction]]'
+     *                 or 'latest[:n]'
+     * @param keyCount how many keys there are
+     * @return a KeyGenerator
+     */
+    public static KeyGenerator getKeyGenerator(String spec, int keyCount) {
+
+        String[] parts = spec.trim().toLowerCase().split(":");
+
+        switch (parts[0]) {
+            case "uniform":
+                return new UniformKeyGenerator(keyCount);
+            case "zipfian":
+                return new ZipfianKeyGenerator(keyCount,
+                        parts.length > 1 ? Double.parseDouble(parts[1]) : ZipfianKeyGenerator.DEFAULT_THETA);
+            case "hotspot":
+                return new HotspotKeyGenerator(keyCount,
+                        parts.length > 1 ? Double.parseDouble(parts[1]) : HotspotKeyGenerator.DEFAULT_HOT_KEY_FRACTION,
+                        parts.length > 2 ? Double.parseDouble(parts[2]) : HotspotKeyGenerator.DEFAULT_HOT_OP_FRACTION);
+            case "latest":
+                return new LatestKeyGenerator(keyCount,
+                        parts.length > 1 ? Integer.parseInt(parts[1]) : Math.max(1, keyCount / 100));
+            default:
+                throw new IllegalArgumentException("Unknown key distribution '" + spec + "'");
+        }
+    }
+
+    /**
+     * get KEY_DISTRIBUTION env variable if set
+     *
+     * @return a specification for getKeyGenerator, 'uniform' by default
+     */
+    public static String getKeyDistributionIfSet() {
+
+        String keyDistributionEnv = System.getenv(KEY_DISTRIBUTION);
+
+        if (keyDistributionEnv != null && !keyDistributionEnv.isEmpty()) {
+            BaseChargingDemo.msg("KEY_DISTRIBUTION is '" + keyDistributionEnv + "'");
+            return keyDistributionEnv;
+        }
+
+        return "uniform";
+    }
+}
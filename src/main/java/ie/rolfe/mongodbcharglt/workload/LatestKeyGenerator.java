@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.workload;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Only the N most recently created users, which are the ones with the highest
+ * ids, get requests.
+ */
+public class LatestKeyGenerator extends KeyGenerator {
+
+    final int latestCount;
+
+    /**
+     * @param keyCount    how many keys there are
+     * @param latestCount how many of the newest keys we use
+     */
+    public LatestKeyGenerator(int keyCount, int latestCount) {
+        super(keyCount);
+
+        if (latestCount <= 0) {
+            throw new IllegalArgumentException("latestCount must be > 0, not " + latestCount);
+        }
+
+        this.latestCount = Math.min(latestCount, keyCount);
+    }
+
+    @Override
+    public int nextKey() {
+        return keyCount - 1 - ThreadLocalRandom.current().nextInt(latestCount);
+    }
+
+    @Override
+    public String toString() {
+        return "latest(n=" + latestCount + ")";
+    }
+}
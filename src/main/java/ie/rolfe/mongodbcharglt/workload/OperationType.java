@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.workload;
+
+/**
+ * The operations a WorkloadMix can ask for.
+ */
+public enum OperationType {
+
+    /**
+     * Add credit to a user.
+     */
+    ADD_CREDIT(false),
+
+    /**
+     * Report usage and ask for more.
+     */
+    REPORT_USAGE(false),
+
+    /**
+     * Report usage and ask for nothing, i.e. end of session.
+     */
+    REPORT_USAGE_ZERO_WANTED(false),
+
+    /**
+     * Read a user and soft lock it.
+     */
+    KV_GET_AND_LOCK(true),
+
+    /**
+     * Change the loyalty number of a user we have locked and unlock it.
+     */
+    KV_DELTA_UPDATE(true),
+
+    /**
+     * Replace the JSON payload of a user we have locked and unlock it.
+     */
+    KV_FULL_UPDATE(true),
+
+    /**
+     * Read a user without a transaction.
+     */
+    POINT_READ(false);
+
+    /**
+     * True if this operation uses the KV soft lock.
+     */
+    final boolean kv;
+
+    OperationType(boolean kv) {
+        this.kv = kv;
+    }
+
+    /**
+     * @return true if this operation uses the KV soft lock
+     */
+    public boolean isKV() {
+        return kv;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.workload;
+
+import ie.rolfe.mongodbcharglt.BaseChargingDemo;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a trace written by TraceWriter through a memory mapped buffer. Big files
+ * are mapped a chunk at a time. Call next() to move to the next record, then use
+ * the getters. Nothing is allocated per record. Not thread safe.
+ */
+public class TraceReader implements AutoCloseable {
+
+    public static final String TRACE_REPLAY = "TRACE_REPLAY";
+    public static final String TRACE_REPLAY_SPEED = "TRACE_REPLAY_SPEED";
+
+    /**
+     * How many records we map at once.
+     */
+    static final int RECORDS_PER_CHUNK = (Integer.MAX_VALUE / TraceWriter.RECORD_SIZE) / 2;
+
+    static final OperationType[] OPERATIONS = OperationType.values();
+
+    final FileChannel channel;
+
+    final int userCount;
+
+    final double tpMs;
+
+    final long recordCount;
+
+    final int recordsPerChunk;
+
+    /**
+     * Current chunk.
+     */
+    MappedByteBuffer chunk = null;
+
+    /**
+     * Records read so far.
+     */
+    long recordsRead = 0;
+
+    OperationType operation;
+    int userId;
+    long sessionId;
+    int unitsUsed;
+    int unitsWanted;
+    long txnSeq;
+    long intendedOffsetNs;
+
+    /**
+     * Open a trace file.
+     *
+     * @param path where it is
+     * @throws IOException if it isn't a trace, or is damaged
+     */
+    public TraceReader(Path path) throws IOException {
+        this(path, RECORDS_PER_CHUNK);
+    }
+
+    TraceReader(Path path, int recordsPerChunk) throws IOException {
+
+        this.recordsPerChunk = recordsPerChunk;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, TraceWriter.HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (header.getInt() != TraceWriter.MAGIC) {
+            channel.close();
+            throw new IOException(path + " is not a trace file");
+        }
+
+        int version = header.getInt();
+
+        if (version != TraceWriter.VERSION) {
+            channel.close();
+            throw new IOException(path + " is trace version " + version + ", we need " + TraceWriter.VERSION);
+        }
+
+        userCount = header.getInt();
+        header.getInt();
+        tpMs = header.getDouble();
+        recordCount = header.getLong();
+
+        if (channel.size() < TraceWriter.HEADER_SIZE + recordCount * TraceWriter.RECORD_SIZE) {
+            channel.close();
+            throw new IOException(path + " should have " + recordCount + " records but is too short. Was it closed properly?");
+        }
+    }
+
+    /**
+     * get TRACE_REPLAY env variable if set and open the trace
+     *
+     * @return a TraceReader, or null if TRACE_REPLAY isn't set
+     * @throws IOException
+     */
+    public static TraceReader getTraceReaderIfSet() throws IOException {
+
+        String traceReplayEnv = System.getenv(TRACE_REPLAY);
+
+        if (traceReplayEnv != null && !traceReplayEnv.isEmpty()) {
+            BaseChargingDemo.msg("TRACE_REPLAY is '" + traceReplayEnv + "'");
+            return new TraceReader(Paths.get(traceReplayEnv));
+        }
+
+        return null;
+    }
+
+    /**
+     * get TRACE_REPLAY_SPEED env variable if set
+     *
+     * @return how much faster than the original we replay, default 1
+     */
+    public static double getReplaySpeedIfSet() {
+
+        double speed = 1;
+
+        String speedEnv = System.getenv(TRACE_REPLAY_SPEED);
+
+        if (speedEnv != null && !speedEnv.isEmpty()) {
+            BaseChargingDemo.msg("TRACE_REPLAY_SPEED is '" + speedEnv + "'");
+            speed = Double.parseDouble(speedEnv);
+
+            if (!(speed > 0)) {
+                throw new IllegalArgumentException("TRACE_REPLAY_SPEED must be > 0, not " + speed);
+            }
+        }
+
+        return speed;
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false if there are no more
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+
+        if (recordsRead >= recordCount) {
+            return false;
+        }
+
+        if (chunk == null || !chunk.hasRemaining()) {
+
+            long recordsInChunk = Math.min(recordsPerChunk, recordCount - recordsRead);
+            chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+                    TraceWriter.HEADER_SIZE + recordsRead * TraceWriter.RECORD_SIZE,
+                    recordsInChunk * TraceWriter.RECORD_SIZE);
+            chunk.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        operation = OPERATIONS[chunk.get()];
+        userId = chunk.getInt();
+        sessionId = chunk.getLong();
+        unitsUsed = chunk.getInt();
+        unitsWanted = chunk.getInt();
+        txnSeq = chunk.getLong();
+        intendedOffsetNs = chunk.getLong();
+
+        recordsRead++;
+
+        return true;
+    }
+
+    /**
+     * @return how many users the recorded run had
+     */
+    public int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * @return transactions per millisecond the recorded run asked for
+     */
+    public double getTpMs() {
+        return tpMs;
+    }
+
+    /**
+     * @return how many records there are
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public OperationType getOperation() {
+        return operation;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return units used, or credit for ADD_CREDIT
+     */
+    public int getUnitsUsed() {
+        return unitsUsed;
+    }
+
+    public int getUnitsWanted() {
+        return unitsWanted;
+    }
+
+    public long getTxnSeq() {
+        return txnSeq;
+    }
+
+    /**
+     * @return when this record was meant to start, in ns since the recorded run
+     * started
+     */
+    public long getIntendedOffsetNs() {
+        return intendedOffsetNs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunk = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.workload;
+
+import ie.rolfe.mongodbcharglt.BaseChargingDemo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the operations a run sent to a binary trace file so TraceReader can
+ * replay exactly the same load later.
+ * <p>
+ * The file is a HEADER_SIZE byte header (MAGIC, VERSION, userCount, tpMs,
+ * record count) followed by fixed width RECORD_SIZE byte records, all little
+ * endian:
+ * <pre>
+ * byte  OperationType ordinal
+ * int   user id
+ * long  session id
+ * int   units used, or credit for ADD_CREDIT
+ * int   units wanted
+ * long  transaction sequence number
+ * long  intended start, in ns since the run started
+ * </pre>
+ * Records are buffered in a direct ByteBuffer, so writing one doesn't allocate.
+ * Not thread safe.
+ */
+public class TraceWriter implements AutoCloseable {
+
+    public static final String TRACE_RECORD = "TRACE_RECORD";
+
+    public static final int MAGIC = 0x43475452; // 'CGTR'
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 1 + 4 + 8 + 4 + 4 + 8 + 8;
+
+    /**
+     * Where the record count lives in the header.
+     */
+    static final int RECORD_COUNT_OFFSET = 24;
+
+    static final int BUFFER_RECORDS = 4096;
+
+    final FileChannel channel;
+
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * BUFFER_RECORDS).order(ByteOrder.LITTLE_ENDIAN);
+
+    long recordCount = 0;
+
+    /**
+     * Create a trace file, overwriting any file that's already there.
+     *
+     * @param path      where to write
+     * @param userCount how many users the run has
+     * @param tpMs      requested transactions per millisecond
+     * @throws IOException
+     */
+    public TraceWriter(Path path, int userCount, double tpMs) throws IOException {
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(userCount);
+        buffer.putInt(0);
+        buffer.putDouble(tpMs);
+        buffer.putLong(0);
+        flush();
+    }
+
+    /**
+     * get TRACE_RECORD env variable if set and open a trace file
+     *
+     * @param userCount how many users the run has
+     * @param tpMs      requested transactions per millisecond
+     * @return a TraceWriter, or null if TRACE_RECORD isn't set
+     * @throws IOException
+     */
+    public static TraceWriter getTraceWriterIfSet(int userCount, double tpMs) throws IOException {
+
+        String traceRecordEnv = System.getenv(TRACE_RECORD);
+
+        if (traceRecordEnv != null && !traceRecordEnv.isEmpty()) {
+            BaseChargingDemo.msg("TRACE_RECORD is '" + traceRecordEnv + "'");
+            return new TraceWriter(Paths.get(traceRecordEnv), userCount, tpMs);
+        }
+
+        return null;
+    }
+
+    /**
+     * Add a record.
+     *
+     * @param op               what we did
+     * @param userId           who we did it to
+     * @param sessionId        charging session
+     * @param unitsUsed        units used, or credit for ADD_CREDIT
+     * @param unitsWanted      units wanted
+     * @param txnSeq           transaction sequence number
+     * @param intendedOffsetNs when it was meant to start, in ns since the run
+     *                         started
+     * @throws IOException
+     */
+    public void write(OperationType op, int userId, long sessionId, int unitsUsed, int unitsWanted, long txnSeq,
+                      long intendedOffsetNs) throws IOException {
+
+        if (buffer.remaining() < RECORD_SIZE) {
+            flush();
+        }
+
+        buffer.put((byte) op.ordinal());
+        buffer.putInt(userId);
+        buffer.putLong(sessionId);
+        buffer.putInt(unitsUsed);
+        buffer.putInt(unitsWanted);
+        buffer.putLong(txnSeq);
+        buffer.putLong(intendedOffsetNs);
+
+        recordCount++;
+    }
+
+    private void flush() throws IOException {
+
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    /**
+     * @return how many records we've written
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Flush what we have, fill in the record count and close the file.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        flush();
+
+        buffer.putLong(recordCount);
+        buffer.flip();
+
+        long position = RECORD_COUNT_OFFSET;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+
+        buffer.clear();
+        channel.close();
+    }
+}
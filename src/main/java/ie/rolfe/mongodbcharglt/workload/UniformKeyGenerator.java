@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.workload;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Every key is equally likely. This is what the demo has always done.
+ */
+public class UniformKeyGenerator extends KeyGenerator {
+
+    public UniformKeyGenerator(int keyCount) {
+        super(keyCount);
+    }
+
+    @Override
+    public int nextKey() {
+        return ThreadLocalRandom.current().nextInt(keyCount);
+    }
+
+    @Override
+    public String toString() {
+        return "uniform";
+    }
+}
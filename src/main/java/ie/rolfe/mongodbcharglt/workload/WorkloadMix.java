@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.workload;
+
+import ie.rolfe.mongodbcharglt.BaseChargingDemo;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Weighted mix of operations, e.g. 'REPORT_USAGE=70,ADD_CREDIT=10,POINT_READ=20'.
+ * Weights are integers and don't need to add up to 100. We precompute a lookup
+ * table with one slot per unit of weight, so picking an operation is one random
+ * number and one array read, with no allocation.
+ */
+public class WorkloadMix {
+
+    public static final String WORKLOAD_MIX = "WORKLOAD_MIX";
+
+    /**
+     * Roughly what a busy hour looks like: mostly usage reports, with a steady
+     * trickle of top ups, session ends, profile changes and lookups.
+     */
+    public static final String DEFAULT_MIX = "ADD_CREDIT=5,REPORT_USAGE=60,REPORT_USAGE_ZERO_WANTED=10,"
+            + "KV_GET_AND_LOCK=5,KV_DELTA_UPDATE=8,KV_FULL_UPDATE=2,POINT_READ=10";
+
+    /**
+     * Upper limit on the sum of weights, so the lookup table stays small.
+     */
+    public static final int MAX_TOTAL_WEIGHT = 1000000;
+
+    static final OperationType[] OPERATIONS = OperationType.values();
+
+    /**
+     * Weight of each operation, indexed by ordinal.
+     */
+    final int[] weights = new int[OPERATIONS.length];
+
+    /**
+     * One entry per unit of weight, holding an OperationType ordinal.
+     */
+    final byte[] table;
+
+    /**
+     * Create a mix from a specification.
+     *
+     * @param spec comma delimited list of OPERATION=weight
+     */
+    public WorkloadMix(String spec) {
+
+        int totalWeight = 0;
+
+        for (String part : spec.split(",")) {
+
+            if (part.isBlank()) {
+                continue;
+            }
+
+            String[] nameAndWeight = part.split("=");
+
+            if (nameAndWeight.length != 2) {
+                throw new IllegalArgumentException("Expected OPERATION=weight, not '" + part + "'");
+            }
+
+            OperationType op = OperationType.valueOf(nameAndWeight[0].trim().toUpperCase());
+            int weight = Integer.parseInt(nameAndWeight[1].trim());
+
+            if (weight < 0) {
+                throw new IllegalArgumentException("Weight for " + op + " must be >= 0, not " + weight);
+            }
+
+            totalWeight = totalWeight - weights[op.ordinal()] + weight;
+            weights[op.ordinal()] = weight;
+        }
+
+        if (totalWeight <= 0 || totalWeight > MAX_TOTAL_WEIGHT) {
+            throw new IllegalArgumentException("Total weight must be between 1 and " + MAX_TOTAL_WEIGHT + ", not " + totalWeight);
+        }
+
+        table = new byte[totalWeight];
+
+        int slot = 0;
+        for (int i = 0; i < weights.length; i++) {
+            for (int j = 0; j < weights[i]; j++) {
+                table[slot++] = (byte) i;
+            }
+        }
+    }
+
+    /**
+     * get WORKLOAD_MIX env variable if set
+     *
+     * @return a WorkloadMix, DEFAULT_MIX if WORKLOAD_MIX isn't set
+     */
+    public static WorkloadMix getWorkloadMixIfSet() {
+
+        String workloadMixEnv = System.getenv(WORKLOAD_MIX);
+
+        if (workloadMixEnv != null && !workloadMixEnv.isEmpty()) {
+            BaseChargingDemo.msg("WORKLOAD_MIX is '" + workloadMixEnv + "'");
+            return new WorkloadMix(workloadMixEnv);
+        }
+
+        return new WorkloadMix(DEFAULT_MIX);
+    }
+
+    /**
+     * @return the next operation to run
+     */
+    public OperationType nextOperation() {
+        return OPERATIONS[table[ThreadLocalRandom.current().nextInt(table.length)]];
+    }
+
+    /**
+     * @param op an operation
+     * @return its weight
+     */
+    public int getWeight(OperationType op) {
+        return weights[op.ordinal()];
+    }
+
+    /**
+     * @return sum of all weights
+     */
+    public int getTotalWeight() {
+        return table.length;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuffer b = new StringBuffer();
+
+        for (OperationType op : OPERATIONS) {
+            if (weights[op.ordinal()] > 0) {
+                if (b.length() > 0) {
+                    b.append(',');
+                }
+                b.append(op);
+                b.append('=');
+                b.append(weights[op.ordinal()]);
+            }
+        }
+
+        return b.toString();
+    }
+}
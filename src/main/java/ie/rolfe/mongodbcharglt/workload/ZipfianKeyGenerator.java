@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package ie.rolfe.mongodbcharglt.workload;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Zipfian distribution where key 0 is the most popular, key 1 the next most
+ * popular and so on. Uses the constant time method from Gray et al, "Quickly
+ * Generating Billion-Record Synthetic Databases", as YCSB does. The only
+ * expensive part is working out zeta(n) when we are created.
+ */
+public class ZipfianKeyGenerator extends KeyGenerator {
+
+    public static final double DEFAULT_THETA = 0.99;
+
+    final double theta;
+    final double zetaN;
+    final double alpha;
+    final double eta;
+    final double halfPowTheta;
+
+    /**
+     * @param keyCount how many keys there are
+     * @param theta    skew, between 0 and 1 exclusive. Higher is more skewed.
+     */
+    public ZipfianKeyGenerator(int keyCount, double theta) {
+        super(keyCount);
+
+        if (!(theta > 0 && theta < 1)) {
+            throw new IllegalArgumentException("theta must be between 0 and 1, not " + theta);
+        }
+
+        this.theta = theta;
+
+        double zeta = 0;
+        for (int i = 1; i <= keyCount; i++) {
+            zeta += 1 / Math.pow(i, theta);
+        }
+
+        zetaN = zeta;
+
+        final double zeta2 = 1 + 1 / Math.pow(2, theta);
+
+        alpha = 1 / (1 - theta);
+        eta = (1 - Math.pow(2d / keyCount, 1 - theta)) / (1 - zeta2 / zetaN);
+        halfPowTheta = 1 + Math.pow(0.5, theta);
+    }
+
+    @Override
+    public int nextKey() {
+
+        final double u = ThreadLocalRandom.current().nextDouble();
+        final double uz = u * zetaN;
+
+        if (uz < 1) {
+            return 0;
+        }
+
+        if (uz < halfPowTheta) {
+            return Math.min(1, keyCount - 1);
+        }
+
+        return Math.min(keyCount - 1, (int) (keyCount * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    @Override
+    public String toString() {
+        return "zipfian(theta=" + theta + ")";
+    }
+}
@@ -16,6 +16,12 @@ import java.util.HashMap;
  */
 public class SafeHistogramCache {
 
+    /**
+     * Suffix for histograms that measure latency from when an operation was
+     * meant to start, rather than when it actually started.
+     */
+    public static final String INTENDED_SUFFIX = "_FROM_INTENDED";
+
     private static SafeHistogramCache instance = null;
     final int DEFAULT_SIZE = 100;
     HashMap<String, LatencyHistogram> theHistogramMap = new HashMap<>();
@@ -305,6 +311,47 @@ public class SafeHistogramCache {
 
     }
 
+    /**
+     * Report a latency measurement twice, relative to now, in milliseconds. Once
+     * from when the operation actually started, under 'type', and once from when
+     * a pacing scheduler meant it to start, under 'type' + INTENDED_SUFFIX. The
+     * difference between the two is time spent queueing behind slow operations,
+     * which a closed loop driver would otherwise hide ("coordinated omission").
+     *
+     * @param type            what we are measuring
+     * @param intendedStartNs System.nanoTime() when the operation should have
+     *                        started
+     * @param actualStartNs   System.nanoTime() when the operation did start
+     * @param comment
+     * @param defaultSize
+     */
+    public void reportLatencyWithIntended(String type, long intendedStartNs, long actualStartNs, String comment,
+                                          int defaultSize) {
+
+        final long now = System.nanoTime();
+        final String intendedType = type + INTENDED_SUFFIX;
+
+        synchronized (theHistogramMap) {
+            LatencyHistogram h = theHistogramMap.get(type);
+            if (h == null) {
+                h = new LatencyHistogram(type, defaultSize);
+                theHistogramMap.put(type, h);
+            }
+
+            h.report((int) ((now - actualStartNs) / 1000000), comment, 1);
+
+            LatencyHistogram hIntended = theHistogramMap.get(intendedType);
+            if (hIntended == null) {
+                hIntended = new LatencyHistogram(intendedType, defaultSize);
+                theHistogramMap.put(intendedType, hIntended);
+            }
+
+            hIntended.report((int) ((now - intendedStartNs) / 1000000), comment, 1);
+
+        }
+
+    }
+
     /**
      * Report a latency measurement, relative to now, in microseconds. If it's >=
      * maxSize it goes into the last element. Negative values are forced to zero.
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt;
+
+import com.google.gson.Gson;
+import ie.rolfe.mongodbcharglt.documents.ChargingCodecProvider;
+import ie.rolfe.mongodbcharglt.documents.UserTable;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AtomicAddCreditTest {
+
+    BsonDocument render(Bson bson) {
+        return bson.toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY);
+    }
+
+    @Test
+    void updateTurnsOldRecentTransactionsIntoAnArray() {
+
+        List<Bson> pipeline = BaseChargingDemo.getAtomicAddCreditUpdate(7, 100, "Txn1");
+        assertEquals(1, pipeline.size());
+
+        BsonDocument set = render(pipeline.get(0)).getDocument("$set");
+        assertTrue(set.containsKey("balance"));
+        assertTrue(set.containsKey("version"));
+
+        BsonArray concat = set.getDocument("userRecentTransactions").getArray("$slice").get(0).asDocument()
+                .getArray("$concatArrays");
+
+        // Arrays are kept as they are, sub-documents are turned into their values...
+        BsonArray cond = concat.get(0).asDocument().getArray("$cond");
+        assertEquals("$userRecentTransactions", cond.get(0).asDocument().getString("$isArray").getValue());
+        assertEquals("$userRecentTransactions", cond.get(1).asString().getValue());
+        assertTrue(cond.get(2).asDocument().containsKey("$map"));
+
+        assertEquals("Txn1", concat.get(1).asArray().get(0).asDocument().getString("userTxnId").getValue());
+    }
+
+    @Test
+    void filterFindsTxnIdInOldRecentTransactions() {
+
+        UserTable ut = UserTable.getUserTable(BaseChargingDemo.getExtraUserDataAsObject(100, new Random(), false),
+                1000, 7, System.currentTimeMillis());
+
+        // Gson writes userRecentTransactions as a sub-document keyed by txn id...
+        Document legacy = Document.parse(new Gson().toJson(ut));
+        assertTrue(legacy.get("userRecentTransactions") instanceof Document);
+
+        BsonArray and = render(BaseChargingDemo.getNewTxnFilter(7, "Create_7")).getArray("$and");
+        BsonDocument exists = and.get(2).asDocument().getDocument("userRecentTransactions.Create_7");
+        assertFalse(exists.getBoolean("$exists").getValue());
+        assertTrue(legacy.get("userRecentTransactions", Document.class).containsKey("Create_7"));
+    }
+}
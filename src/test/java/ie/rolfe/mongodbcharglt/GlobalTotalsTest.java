@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GlobalTotalsTest {
+
+    @Test
+    void deltasGoToTheUsersStripe() {
+
+        GlobalTotals totals = new GlobalTotals(null, 4);
+
+        totals.record(1, 100, 10);
+        totals.record(5, -30, 0);
+        totals.record(2, 0, -10);
+        totals.record(3, 7, 0);
+        totals.record(3, -7, 0);
+
+        long[] balance = new long[4];
+        long[] reserved = new long[4];
+        totals.drain(balance, reserved);
+
+        assertArrayEquals(new long[]{0, 70, 0, 0}, balance);
+        assertArrayEquals(new long[]{0, 10, -10, 0}, reserved);
+
+        // Draining leaves nothing behind...
+        totals.drain(balance, reserved);
+        assertArrayEquals(new long[4], balance);
+        assertArrayEquals(new long[4], reserved);
+    }
+
+    @Test
+    void onlyChangedStripesAreWritten() {
+
+        List<UpdateOneModel<Document>> updates = GlobalTotals.getStripeUpdates(new long[]{0, 70, 0}, new long[]{0, 10, -10});
+
+        assertEquals(2, updates.size());
+
+        BsonDocument first = updates.get(0).getUpdate().toBsonDocument().getDocument("$inc");
+        assertEquals(70, first.getInt64("balance").getValue());
+        assertEquals(10, first.getInt64("reserved").getValue());
+        assertTrue(updates.get(0).getOptions().isUpsert());
+    }
+
+    @Test
+    void partialFlushOnlyPutsBackFailedStripes() {
+
+        GlobalTotals totals = new GlobalTotals(null, 4);
+
+        long[] balance = {0, 70, 5, 0};
+        long[] reserved = {0, 10, 0, -10};
+
+        // Updates go to stripes 1, 2 and 3; only the one for stripe 2 failed...
+        MongoBulkWriteException e = new MongoBulkWriteException(BulkWriteResult.acknowledged(0, 2, 0, 2,
+                Collections.emptyList(), Collections.emptyList()),
+                List.of(new BulkWriteError(11000, "Test", new BsonDocument(), 1)), null, new ServerAddress(),
+                Collections.emptySet());
+
+        totals.putBack(balance, reserved, e);
+
+        long[] balanceLeft = new long[4];
+        long[] reservedLeft = new long[4];
+        totals.drain(balanceLeft, reservedLeft);
+
+        assertArrayEquals(new long[]{0, 0, 5, 0}, balanceLeft);
+        assertArrayEquals(new long[4], reservedLeft);
+
+        // Anything else and we don't know what was written, so try it all again...
+        totals.putBack(balance, reserved, new MongoException("Test"));
+        totals.drain(balanceLeft, reservedLeft);
+
+        assertArrayEquals(balance, balanceLeft);
+        assertArrayEquals(reserved, reservedLeft);
+    }
+
+    @Test
+    void negativeUserIds() {
+        assertEquals(1, new GlobalTotals(null, 4).getStripe(-3));
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdempotencyStoreTest {
+
+    MongoWriteException writeError(int code) {
+        return new MongoWriteException(new WriteError(code, "test", new BsonDocument()), new ServerAddress(),
+                Collections.emptySet());
+    }
+
+    @Test
+    void keysAreScopedByUser() {
+        assertNotEquals(IdempotencyStore.getKey(1, "AddCredit_10_1").get("_id"),
+                IdempotencyStore.getKey(2, "AddCredit_10_1").get("_id"));
+        assertEquals(IdempotencyStore.getKey(1, "AddCredit_10_1").get("_id"),
+                IdempotencyStore.getKey(1, "AddCredit_10_1").get("_id"));
+    }
+
+    @Test
+    void duplicateKeyMeansAlreadyHappened() {
+        assertTrue(IdempotencyStore.isDuplicate(writeError(11000)));
+        assertTrue(IdempotencyStore.isDuplicate(new CompletionException(writeError(11000))));
+        assertFalse(IdempotencyStore.isDuplicate(writeError(2)));
+        assertFalse(IdempotencyStore.isDuplicate(new RuntimeException()));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt;
+
+import ie.rolfe.mongodbcharglt.documents.ChargingCodecProvider;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KVDeltaUpdateTest {
+
+    @Test
+    void deltaOnlySetsTheLoyaltyNumberAndUnlocks() {
+
+        BsonDocument update = BaseChargingDemo.getDeltaUpdate(123)
+                .toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY);
+
+        BsonDocument set = update.getDocument("$set");
+        assertEquals(2, set.size());
+        assertEquals(123, set.getInt64("userDataObject.loyaltySchemeNumber").getValue());
+        assertEquals(Long.MIN_VALUE, set.getInt64("userSoftLockSessionId").getValue());
+        assertTrue(update.getDocument("$unset").containsKey("userSoftlockExpiry"));
+
+        BsonDocument filter = BaseChargingDemo.getLockOwnerFilter(7, 42)
+                .toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY);
+        assertEquals(7, filter.getArray("$and").get(0).asDocument().getInt64("_id").getValue());
+        assertEquals(List.of(new BsonInt64(42), new BsonInt64(Long.MIN_VALUE), BsonNull.VALUE),
+                filter.getArray("$and").get(1).asDocument().getDocument("userSoftLockSessionId").getArray("$in"));
+    }
+
+    @Test
+    void deltaMovesFarFewerBytes() {
+
+        Bson filter = BaseChargingDemo.getLockOwnerFilter(7, 42);
+        Bson fullUpdate = BaseChargingDemo.getKVUpdate(BaseChargingDemo.getExtraUserDataAsObject(1000, new Random(), false));
+
+        final int deltaBytes = BaseChargingDemo.getBsonSize(filter)
+                + BaseChargingDemo.getBsonSize(BaseChargingDemo.getKVUpdate("123"));
+        final int fullBytes = BaseChargingDemo.getBsonSize(filter) + BaseChargingDemo.getBsonSize(fullUpdate);
+
+        assertEquals(BaseChargingDemo.KV_PUT_FULL, BaseChargingDemo.getKVPutType(new Object()));
+        assertEquals(BaseChargingDemo.KV_PUT_DELTA, BaseChargingDemo.getKVPutType("123"));
+        assertTrue(fullBytes > 1000, "full " + fullBytes);
+        assertTrue(deltaBytes < 250, "delta " + deltaBytes);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt;
+
+import ie.rolfe.mongodbcharglt.documents.ChargingCodecProvider;
+import ie.rolfe.mongodbcharglt.documents.ExtraUserData;
+import ie.rolfe.mongodbcharglt.documents.UserTable;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.junit.jupiter.api.Test;
+import org.voltdb.voltutil.stats.LatencyHistogram;
+import org.voltdb.voltutil.stats.SafeHistogramCache;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KVLockTest {
+
+    @Test
+    void lockOnlyMatchesUnlockedOrExpiredUsers() {
+
+        BsonArray and = BaseChargingDemo.getLockableFilter(7)
+                .toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY).getArray("$and");
+
+        assertEquals(7, and.get(0).asDocument().getInt64("_id").getValue());
+        assertEquals(new BsonArray(List.of(new BsonString("$userSoftlockExpiry"), new BsonString("$$NOW"))),
+                and.get(1).asDocument().getDocument("$expr").getArray("$lte"));
+
+        BsonDocument set = BaseChargingDemo.getLockUpdate(42, 80).get(0)
+                .toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY).getDocument("$set");
+
+        assertEquals(42, set.getInt64("userSoftLockSessionId").getValue());
+        assertEquals(80, set.getDocument("userSoftlockExpiry").getArray("$add").get(1).asInt64().getValue());
+    }
+
+    @Test
+    void optimisticWritesOnlyMatchUnlockedUsers() {
+
+        BsonArray and = BaseChargingDemo.getUnlockedFilter(7)
+                .toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY).getArray("$and");
+
+        assertEquals(7, and.get(0).asDocument().getInt64("_id").getValue());
+
+        // Expired leases don't count as unlocked, missing lock ids do...
+        BsonArray in = and.get(1).asDocument().getDocument("userSoftLockSessionId").getArray("$in");
+        assertEquals(List.of(new BsonInt64(Long.MIN_VALUE), BsonNull.VALUE), in);
+        assertEquals(2, and.size());
+    }
+
+    @Test
+    void takingAnExpiredLeaseIsCounted() {
+
+        final long stolenBefore = BaseChargingDemo.shc.getCounter(LockLease.LOCK_LEASE_STOLEN);
+
+        assertFalse(BaseChargingDemo.reportIfLeaseStolen(RawBsonDocument.parse(
+                new Document("userSoftLockSessionId", Long.MIN_VALUE).toJson())));
+        assertTrue(BaseChargingDemo.reportIfLeaseStolen(RawBsonDocument.parse(
+                new Document("userSoftLockSessionId", 42L).toJson())));
+
+        assertEquals(stolenBefore + 1, BaseChargingDemo.shc.getCounter(LockLease.LOCK_LEASE_STOLEN));
+    }
+
+    @Test
+    void adaptiveLeaseFollowsKVPutLatency() {
+
+        assertEquals(ReferenceData.LOCK_TIMEOUT_MS, LockLease.getLockLease("adaptive").getLeaseMs());
+        assertEquals(75, LockLease.getLockLease("75").getLeaseMs());
+
+        LockLease lease = LockLease.getLockLease("adaptive:20:100");
+        LatencyHistogram kvPut = new LatencyHistogram("KV_PUT", 2000);
+
+        lease.recalculate(kvPut);
+        assertEquals(20, lease.leaseMs);
+
+        kvPut.report(10, "");
+        lease.recalculate(kvPut);
+        assertEquals(10 * LockLease.ADAPTIVE_MULTIPLIER, lease.leaseMs);
+
+        kvPut.report(500, "", 10);
+        lease.recalculate(kvPut);
+        assertEquals(100, lease.leaseMs);
+
+        assertThrows(IllegalArgumentException.class, () -> LockLease.getLockLease("adaptive:50:10"));
+    }
+
+    @Test
+    void optimisticWritesChangeAndUnlockInOneUpdate() {
+
+        BsonDocument delta = BaseChargingDemo.getKVUpdate("123")
+                .toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY);
+        assertEquals(123, delta.getDocument("$set").getInt64("userDataObject.loyaltySchemeNumber").getValue());
+
+        ExtraUserData eud = BaseChargingDemo.getExtraUserDataAsObject(100, new Random(), false);
+        BsonDocument full = BaseChargingDemo.getKVUpdate(eud)
+                .toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY);
+        assertEquals(eud.loyaltySchemeNumber, full.getDocument("$set").getDocument("userDataObject")
+                .getInt64("loyaltySchemeNumber").getValue());
+
+        for (BsonDocument update : List.of(delta, full)) {
+            assertEquals(Long.MIN_VALUE, update.getDocument("$set").getInt64("userSoftLockSessionId").getValue());
+            assertTrue(update.getDocument("$unset").containsKey("userSoftlockExpiry"));
+        }
+
+        final long writesBefore = BaseChargingDemo.shc.getCounter(BaseChargingDemo.KV_OPTIMISTIC_WRITE);
+        final long conflictsBefore = BaseChargingDemo.shc.getCounter(BaseChargingDemo.KV_OPTIMISTIC_CONFLICT);
+
+        assertTrue(BaseChargingDemo.reportOptimisticWrite(true));
+        assertFalse(BaseChargingDemo.reportOptimisticWrite(false));
+
+        assertEquals(writesBefore + 1, BaseChargingDemo.shc.getCounter(BaseChargingDemo.KV_OPTIMISTIC_WRITE));
+        assertEquals(conflictsBefore + 1, BaseChargingDemo.shc.getCounter(BaseChargingDemo.KV_OPTIMISTIC_CONFLICT));
+    }
+
+    @Test
+    void lockIdsAreNeverUnlocked() {
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(UserTable.newLockId() > 0);
+        }
+    }
+
+    @Test
+    void failedLockWaitsForTheOtherLock() {
+
+        UserKVState state = new UserKVState(7, SafeHistogramCache.getInstance());
+        state.setStatus(UserKVState.STATUS_TRYING_TO_LOCK);
+
+        final long beforeMs = System.currentTimeMillis();
+        state.setLockedBySomeoneElse();
+
+        assertEquals(UserKVState.STATUS_LOCKED_BY_SOMEONE_ELSE, state.getUserStatus());
+        assertEquals(Long.MIN_VALUE, state.getLockId());
+        assertEquals(1, state.getLockedBySomeoneElseCount());
+        assertTrue(state.getOtherLockTimeMs() >= beforeMs);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt;
+
+import ie.rolfe.mongodbcharglt.documents.ChargingCodecProvider;
+import ie.rolfe.mongodbcharglt.documents.UserTable;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonNull;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OCCTest {
+
+    BsonDocument render(Bson bson) {
+        return bson.toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY);
+    }
+
+    @Test
+    void chargingBumpsTheVersion() {
+
+        UserTable ut = UserTable.getUserTable(BaseChargingDemo.getExtraUserDataAsObject(100, new Random(), false),
+                1000, 7, System.currentTimeMillis());
+        assertEquals(0, ut.version);
+
+        ut.addCredit(10, "Txn1");
+        ut.reportQuotaUsage(5, 10, 42, "Txn2");
+        assertEquals(2, ut.version);
+    }
+
+    @Test
+    void updateOnlySetsChargingFields() {
+
+        UserTable ut = UserTable.getUserTable(BaseChargingDemo.getExtraUserDataAsObject(100, new Random(), false),
+                1000, 7, System.currentTimeMillis());
+        ut.addCredit(10, "Txn1");
+
+        BsonDocument set = render(BaseChargingDemo.getChargingUpdate(ut)).getDocument("$set");
+
+        assertEquals(1, set.getInt64("version").getValue());
+        assertEquals(ut.balance, set.getInt64("balance").getValue());
+        assertTrue(set.containsKey("userUsage"));
+        assertTrue(set.containsKey("userRecentTransactions"));
+        assertFalse(set.containsKey("userDataObject"));
+        assertFalse(set.containsKey("userSoftLockSessionId"));
+
+        // ...so charging reads don't need to fetch the payload
+        assertEquals(new BsonDocument("userDataObject", new BsonInt32(0)), render(BaseChargingDemo.CHARGING_PROJECTION));
+    }
+
+    @Test
+    void filterChecksTheVersion() {
+
+        BsonArray and = render(BaseChargingDemo.getOCCFilter(7, 3)).getArray("$and");
+        assertEquals(7, and.get(0).asDocument().getInt64("_id").getValue());
+        assertEquals(3, and.get(1).asDocument().getInt64("version").getValue());
+
+        // Version 0 also matches documents that don't have one yet...
+        BsonArray in = render(BaseChargingDemo.getOCCFilter(7, 0)).getArray("$and").get(1).asDocument()
+                .getDocument("version").getArray("$in");
+        assertTrue(in.contains(BsonNull.VALUE));
+    }
+
+    @Test
+    void conflictsAndRetriesAreCounted() {
+
+        final long conflictsBefore = BaseChargingDemo.shc.getCounter(BaseChargingDemo.OCC_CONFLICT);
+        final long gaveUpBefore = BaseChargingDemo.shc.getCounter(BaseChargingDemo.OCC_GAVE_UP);
+        final long writesBefore = BaseChargingDemo.shc.get(BaseChargingDemo.OCC_RETRIES).getReports();
+
+        assertFalse(BaseChargingDemo.reportOCCAttempt(1, false));
+        assertTrue(BaseChargingDemo.reportOCCAttempt(2, true));
+        assertFalse(BaseChargingDemo.reportOCCAttempt(ChargingMode.MAX_OCC_ATTEMPTS, false));
+
+        assertEquals(conflictsBefore + 2, BaseChargingDemo.shc.getCounter(BaseChargingDemo.OCC_CONFLICT));
+        assertEquals(gaveUpBefore + 1, BaseChargingDemo.shc.getCounter(BaseChargingDemo.OCC_GAVE_UP));
+        assertEquals(writesBefore + 1, BaseChargingDemo.shc.get(BaseChargingDemo.OCC_RETRIES).getReports());
+
+        assertEquals(ReferenceData.STATUS_TOO_MANY_CONFLICTS,
+                BaseChargingDemo.recordOCCReportQuotaUsage(7, BaseChargingDemo.OCC_GAVE_UP_RESULT));
+        assertEquals(ReferenceData.STATUS_USER_DOESNT_EXIST, BaseChargingDemo.recordOCCReportQuotaUsage(7, null));
+    }
+}
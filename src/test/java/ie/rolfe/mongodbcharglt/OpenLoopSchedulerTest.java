@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OpenLoopSchedulerTest {
+
+    @Test
+    void intendedStartTimesAreEvenlySpaced() {
+
+        final long startNs = 1000;
+        OpenLoopScheduler s = new OpenLoopScheduler(4, startNs);
+
+        assertEquals(startNs, s.getNextIntendedStartNs());
+
+        for (int i = 0; i < 10; i++) {
+            s.requestCount++;
+        }
+
+        // 4 per ms is one every 250,000 ns
+        assertEquals(startNs + 2500000, s.getNextIntendedStartNs());
+
+    }
+
+    @Test
+    void fractionalRate() {
+
+        OpenLoopScheduler s = new OpenLoopScheduler(0.25, 0);
+        s.requestCount = 3;
+
+        // 0.25 per ms is one every 4 ms
+        assertEquals(12000000, s.getNextIntendedStartNs());
+
+    }
+
+    @Test
+    void awaitNextWaitsAndDoesNotSkipWhenBehind() throws InterruptedException {
+
+        final long startNs = System.nanoTime() - 5000000;
+        OpenLoopScheduler s = new OpenLoopScheduler(1, startNs);
+
+        // We are 5 ms behind, so the first few requests go straight away
+        assertEquals(startNs, s.awaitNext());
+        assertEquals(startNs + 1000000, s.awaitNext());
+        assertEquals(2, s.getRequestCount());
+
+        OpenLoopScheduler s2 = new OpenLoopScheduler(0.5);
+        s2.awaitNext();
+        long intended = s2.awaitNext();
+        assertTrue(System.nanoTime() >= intended);
+
+    }
+
+    @Test
+    void extraMs() {
+
+        assertEquals(10, OpenLoopScheduler.getEffectiveTpMs(10, 0));
+        assertEquals(5, OpenLoopScheduler.getEffectiveTpMs(10, 1));
+        assertThrows(IllegalArgumentException.class, () -> new OpenLoopScheduler(0));
+
+    }
+
+}
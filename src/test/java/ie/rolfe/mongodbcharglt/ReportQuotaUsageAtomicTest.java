@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt;
+
+import com.google.gson.Gson;
+import ie.rolfe.mongodbcharglt.documents.ChargingCodecProvider;
+import ie.rolfe.mongodbcharglt.documents.UserTable;
+import ie.rolfe.mongodbcharglt.documents.UserUsageTable;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static ie.rolfe.mongodbcharglt.BaseChargingDemo.getExtraUserDataAsObject;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Server free checks of CHARGING_MODE=ATOMIC reportQuotaUsage: the pipeline
+ * only leaves UserTable's own fields behind, and the status we work out from
+ * the document it started with agrees with UserTable.reportQuotaUsage.
+ * ReportQuotaUsagePipelineTest runs the pipeline itself against a server.
+ */
+class ReportQuotaUsageAtomicTest {
+
+    final long SESSION_ID = 42;
+    final long INITIAL_CREDIT = 1000;
+    final long INITIAL_ALLOCATED = 10;
+    final long USER_ID = 1;
+
+    final Gson g = new Gson();
+
+    UserTable javaTable;
+    UserTransactionState userTS;
+
+    @BeforeEach
+    void createUser() {
+
+        Date now = new Date();
+
+        javaTable = UserTable.getUserTable(getExtraUserDataAsObject(100, g, new Random()), INITIAL_CREDIT, USER_ID,
+                now.getTime());
+        javaTable.setUserUsage(new UserUsageTable(USER_ID, INITIAL_ALLOCATED, SESSION_ID, now));
+
+        userTS = new UserTransactionState((int) USER_ID, 0);
+    }
+
+    /**
+     * Work out the status from the document as the server would have it, then
+     * do the same thing in Java, and compare status and available credit.
+     */
+    byte both(int unitsUsed, int unitsWanted, long sessionId, String txnId, boolean hasReservedTotal) {
+
+        Document before = Document.parse(g.toJson(javaTable, UserTable.class));
+
+        if (!hasReservedTotal) {
+            before.remove("reservedTotal");
+        }
+
+        byte pipelineStatus = BaseChargingDemo.getAtomicReportQuotaUsageStatus(USER_ID, unitsUsed, unitsWanted,
+                sessionId, before, userTS);
+        byte javaStatus = javaTable.reportQuotaUsage(unitsUsed, unitsWanted, sessionId, txnId);
+
+        assertEquals(javaStatus, pipelineStatus);
+        assertEquals(javaTable.getAvailableCredit(), userTS.spendableBalance);
+
+        return pipelineStatus;
+    }
+
+    byte both(int unitsUsed, int unitsWanted, long sessionId, String txnId) {
+        return both(unitsUsed, unitsWanted, sessionId, txnId, true);
+    }
+
+    @Test
+    void pipelineOnlyLeavesUserTableFields() {
+
+        final Set<String> chargingFields = Set.of("balance", "userUsage", "reservedTotal", "userRecentTransactions",
+                "version");
+
+        for (int unitsWanted : new int[]{0, 10}) {
+            for (boolean keepTxnId : new boolean[]{true, false}) {
+
+                List<Bson> pipeline = BaseChargingDemo.getAtomicReportQuotaUsagePipeline(100, unitsWanted, SESSION_ID,
+                        "TestRQU", keepTxnId);
+
+                Set<String> setFields = new HashSet<>();
+                BsonDocument lastSet = null;
+
+                for (Bson stage : pipeline.subList(0, pipeline.size() - 1)) {
+                    lastSet = stage.toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY)
+                            .getDocument("$set");
+                    setFields.addAll(lastSet.keySet());
+                }
+
+                // Everything that isn't a UserTable field is unset at the end...
+                BsonArray unset = pipeline.get(pipeline.size() - 1)
+                        .toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY).getArray("$unset");
+
+                List<String> unsetFields = new ArrayList<>();
+                for (BsonValue field : unset) {
+                    unsetFields.add(field.asString().getValue());
+                }
+
+                setFields.removeAll(chargingFields);
+                assertEquals(new HashSet<>(BaseChargingDemo.RQU_TEMPORARY_FIELDS), setFields);
+                assertEquals(BaseChargingDemo.RQU_TEMPORARY_FIELDS, unsetFields);
+
+                // ...and the txn id is only kept if there's no IdempotencyStore
+                BsonArray newTrans = lastSet.getDocument("userRecentTransactions").getArray("$slice").get(0)
+                        .asDocument().getArray("$concatArrays").get(1).asArray();
+
+                if (keepTxnId) {
+                    assertEquals(new BsonString("TestRQU"), newTrans.get(0).asDocument().get("userTxnId"));
+                } else {
+                    assertTrue(newTrans.isEmpty());
+                }
+            }
+        }
+    }
+
+    @Test
+    void filterSkipsDuplicates() {
+
+        BsonArray and = BaseChargingDemo.getNewTxnFilter(USER_ID, "TestRQU")
+                .toBsonDocument(BsonDocument.class, ChargingCodecProvider.CODEC_REGISTRY).getArray("$and");
+
+        assertEquals("TestRQU", and.get(1).asDocument().getDocument("userRecentTransactions.userTxnId")
+                .getString("$ne").getValue());
+    }
+
+    @Test
+    void reportQuotaUsageSmoketest() {
+        assertEquals(ReferenceData.STATUS_OK, both(0, 0, SESSION_ID, "TestRQU"));
+        assertEquals(INITIAL_CREDIT, userTS.spendableBalance);
+    }
+
+    @Test
+    void reportQuotaUsageZeroWanted() {
+        assertEquals(ReferenceData.STATUS_OK, both(100, 0, SESSION_ID, "TestRQU"));
+        assertEquals(INITIAL_CREDIT - 100, userTS.spendableBalance);
+    }
+
+    @Test
+    void reportQuotaUsageAllAllocated() {
+        assertEquals(ReferenceData.STATUS_ALL_UNITS_ALLOCATED, both(100, 10, SESSION_ID, "TestRQU"));
+        assertEquals(INITIAL_CREDIT - 100 - 10, userTS.spendableBalance);
+    }
+
+    @Test
+    void reportQuotaUsageSomeAllocated() {
+        assertEquals(ReferenceData.STATUS_SOME_UNITS_ALLOCATED,
+                both(100, (int) (INITIAL_CREDIT - INITIAL_ALLOCATED + 1), SESSION_ID, "TestRQU"));
+        assertEquals(0, userTS.spendableBalance);
+    }
+
+    @Test
+    void reportQuotaUsageNoneAllocated() {
+        both((int) INITIAL_CREDIT, 0, SESSION_ID, "TestRQU_1");
+        assertEquals(ReferenceData.STATUS_NO_MONEY, both(0, 1, SESSION_ID, "TestRQU_2"));
+        assertEquals(0, userTS.spendableBalance);
+    }
+
+    @Test
+    void reportQuotaUsageAllAllocatedManySessions() {
+        for (int i = 1; i < 20; i++) {
+            assertEquals(ReferenceData.STATUS_ALL_UNITS_ALLOCATED, both(0, 10, SESSION_ID + i, "TestRQU_" + i));
+            assertEquals(INITIAL_CREDIT - 10 - (i * 10L), userTS.spendableBalance);
+        }
+    }
+
+    @Test
+    void reportQuotaUsageWithoutReservedTotal() {
+        both(0, 10, SESSION_ID + 1, "TestRQU_1");
+        assertEquals(ReferenceData.STATUS_ALL_UNITS_ALLOCATED, both(100, 20, SESSION_ID, "TestRQU_2", false));
+        assertEquals(INITIAL_CREDIT - 100 - 10 - 20, userTS.spendableBalance);
+    }
+}
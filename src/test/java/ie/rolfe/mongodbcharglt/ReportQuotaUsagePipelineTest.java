@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt;
+
+import com.google.gson.Gson;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import ie.rolfe.mongodbcharglt.documents.ExtraUserData;
+import ie.rolfe.mongodbcharglt.documents.UserTable;
+import ie.rolfe.mongodbcharglt.documents.UserUsageTable;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static ie.rolfe.mongodbcharglt.BaseChargingDemo.getExtraUserDataAsObject;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the reportQuotaUsage scenarios from UserTableTest through both
+ * UserTable.reportQuotaUsage and the update pipeline used by
+ * CHARGING_MODE=ATOMIC, and checks they agree. Needs a real server, so it only
+ * runs if CHARGLT_TEST_HOSTS is set.
+ */
+@EnabledIfEnvironmentVariable(named = "CHARGLT_TEST_HOSTS", matches = ".+")
+class ReportQuotaUsagePipelineTest {
+
+    static final String TEST_COLLECTION = "CHARGLT_PIPELINE_TEST";
+
+    final long SESSION_ID = 42;
+    final long INITIAL_CREDIT = 1000;
+    final long INITIAL_ALLOCATED = 10;
+    final long USER_ID = 1;
+
+    static MongoClient client;
+    static MongoCollection<Document> collection;
+
+    UserTable javaTable;
+    UserTransactionState userTS;
+
+    @BeforeAll
+    static void connect() {
+        client = MongoClients.create("mongodb://" + System.getenv("CHARGLT_TEST_HOSTS") + ":"
+                + BaseChargingDemo.MONGO_DEFAULT_PORT + "/");
+        collection = client.getDatabase(BaseChargingDemo.CHARGLT_DATABASE).getCollection(TEST_COLLECTION);
+    }
+
+    @AfterAll
+    static void disconnect() {
+        collection.drop();
+        client.close();
+    }
+
+    @BeforeEach
+    void createUser() {
+
+        Gson g = new Gson();
+        Random r = new Random();
+        ExtraUserData eud = getExtraUserDataAsObject(100, g, r);
+        Date now = new Date();
+
+        javaTable = UserTable.getUserTable(eud, INITIAL_CREDIT, USER_ID, now.getTime());
+        javaTable.setUserUsage(new UserUsageTable(USER_ID, INITIAL_ALLOCATED, SESSION_ID, now));
+
+        collection.drop();
+        collection.insertOne(Document.parse(g.toJson(javaTable, UserTable.class)));
+
+        userTS = new UserTransactionState((int) USER_ID, 0);
+    }
+
+    /**
+     * Do the same thing both ways and compare status and available credit.
+     */
+    byte both(int unitsUsed, int unitsWanted, long sessionId, String txnId) {
+
+        byte javaStatus = javaTable.reportQuotaUsage(unitsUsed, unitsWanted, sessionId, txnId);
+        byte pipelineStatus = BaseChargingDemo.reportQuotaUsageAtomic(collection, (int) USER_ID, unitsUsed,
+                unitsWanted, sessionId, txnId, userTS);
+
+        assertEquals(javaStatus, pipelineStatus);
+        assertEquals(javaTable.getAvailableCredit(), userTS.spendableBalance);
+
+        Document serverDoc = collection.find().first();
+        for (String field : BaseChargingDemo.RQU_TEMPORARY_FIELDS) {
+            assertFalse(serverDoc.containsKey(field));
+        }
+
+        UserTable serverTable = new UserTable(serverDoc);
+        assertEquals(javaTable.balance, serverTable.balance);
+        assertEquals(javaTable.getUserUsageCount(), serverTable.getUserUsageCount());
+        assertEquals(javaTable.getTxCount(), serverTable.getTxCount());
+
+        return pipelineStatus;
+    }
+
+    @Test
+    void addCreditAtomicOnOldRecentTransactions() {
+
+        // createUser wrote userRecentTransactions the way Gson does, as a sub-document...
+        assertTrue(collection.find().first().get("userRecentTransactions") instanceof Document);
+
+        final String txnId = "TestAddCredit";
+
+        assertEquals(1, collection.updateOne(BaseChargingDemo.getNewTxnFilter(USER_ID, txnId),
+                BaseChargingDemo.getAtomicAddCreditUpdate(USER_ID, 100, txnId)).getModifiedCount());
+        assertEquals(0, collection.updateOne(BaseChargingDemo.getNewTxnFilter(USER_ID, txnId),
+                BaseChargingDemo.getAtomicAddCreditUpdate(USER_ID, 100, txnId)).getModifiedCount());
+
+        javaTable.addCredit(100, txnId);
+
+        Document serverDoc = collection.find().first();
+        assertTrue(serverDoc.get("userRecentTransactions") instanceof List);
+
+        UserTable serverTable = new UserTable(serverDoc);
+        assertEquals(javaTable.balance, serverTable.balance);
+        assertEquals(javaTable.getTxCount(), serverTable.getTxCount());
+        assertTrue(serverTable.txHasHappened(txnId));
+
+        // ...and an old txn id still counts as a duplicate
+        assertEquals(0, collection.updateOne(BaseChargingDemo.getNewTxnFilter(USER_ID, "Create_" + USER_ID),
+                BaseChargingDemo.getAtomicAddCreditUpdate(USER_ID, 100, "Create_" + USER_ID)).getModifiedCount());
+    }
+
+    @Test
+    void reportQuotaUsageSmoketest() {
+        assertEquals(ReferenceData.STATUS_OK, both(0, 0, SESSION_ID, "TestRQU"));
+        assertEquals(INITIAL_CREDIT, userTS.spendableBalance);
+    }
+
+    @Test
+    void reportQuotaUsageZeroWanted() {
+        assertEquals(ReferenceData.STATUS_OK, both(100, 0, SESSION_ID, "TestRQU"));
+        assertEquals(INITIAL_CREDIT - 100, userTS.spendableBalance);
+    }
+
+    @Test
+    void reportQuotaUsageAllAllocated() {
+        assertEquals(ReferenceData.STATUS_ALL_UNITS_ALLOCATED, both(100, 10, SESSION_ID, "TestRQU"));
+        assertEquals(INITIAL_CREDIT - 100 - 10, userTS.spendableBalance);
+    }
+
+    @Test
+    void reportQuotaUsageSomeAllocated() {
+        assertEquals(ReferenceData.STATUS_SOME_UNITS_ALLOCATED,
+                both(100, (int) (INITIAL_CREDIT - INITIAL_ALLOCATED + 1), SESSION_ID, "TestRQU"));
+        assertEquals(0, userTS.spendableBalance);
+    }
+
+    @Test
+    void reportQuotaUsageNoneAllocated() {
+        both((int) INITIAL_CREDIT, 0, SESSION_ID, "TestRQU_1");
+        assertEquals(ReferenceData.STATUS_NO_MONEY, both(0, 1, SESSION_ID, "TestRQU_2"));
+        assertEquals(0, userTS.spendableBalance);
+    }
+
+    @Test
+    void reportQuotaUsageAllAllocatedManySessions() {
+        for (int i = 1; i < 20; i++) {
+            assertEquals(ReferenceData.STATUS_ALL_UNITS_ALLOCATED, both(0, 10, SESSION_ID + i, "TestRQU_" + i));
+            assertEquals(INITIAL_CREDIT - 10 - (i * 10L), userTS.spendableBalance);
+        }
+    }
+
+    @Test
+    void reportQuotaUsageAlreadyHappened() {
+        both(100, 10, SESSION_ID, "TestRQU");
+        Document firstTime = collection.find().first();
+
+        assertEquals(ReferenceData.STATUS_TXN_ALREADY_HAPPENED, both(100, 10, SESSION_ID, "TestRQU"));
+
+        // A duplicate leaves the document alone...
+        assertEquals(firstTime, collection.find().first());
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt;
+
+import org.junit.jupiter.api.Test;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReservedCreditTest {
+
+    @Test
+    void partitionsCoverEveryUser() {
+
+        long[] bounds = BaseChargingDemo.getPartitionBounds(1000003, 7);
+
+        assertEquals(8, bounds.length);
+        assertEquals(0, bounds[0]);
+        assertEquals(1000003, bounds[7]);
+
+        for (int i = 1; i < bounds.length; i++) {
+            long size = bounds[i] - bounds[i - 1];
+            assertTrue(size == 1000003 / 7 || size == 1000003 / 7 + 1);
+        }
+    }
+
+    @Test
+    void morePartitionsThanUsers() {
+
+        long[] bounds = BaseChargingDemo.getPartitionBounds(2, 4);
+
+        assertArrayEquals(new long[]{0, 0, 1, 1, 2}, bounds);
+    }
+
+    @Test
+    void onlyMatchWhenFiltered() {
+
+        assertEquals(2, BaseChargingDemo.getReservedCreditPipeline(null).size());
+        assertEquals(3, BaseChargingDemo.getReservedCreditPipeline(eq(1)).size());
+    }
+}
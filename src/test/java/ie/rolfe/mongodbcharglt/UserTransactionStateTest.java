@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserTransactionStateTest {
+
+    @Test
+    void onlyOneTransactionAtATime() {
+
+        UserTransactionState user = new UserTransactionState(7, 2000);
+
+        assertTrue(user.tryStartTran());
+        assertTrue(user.isTxInFlight());
+        assertFalse(user.tryStartTran());
+
+        user.endTran();
+        assertTrue(user.tryStartTran());
+    }
+
+    @Test
+    void workersSharingAUserDontBothStart() throws InterruptedException {
+
+        UserTransactionState user = new UserTransactionState(7, 2000);
+        AtomicInteger started = new AtomicInteger();
+        Thread[] workers = new Thread[8];
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(() -> {
+                if (user.tryStartTran()) {
+                    started.incrementAndGet();
+                }
+            });
+            workers[i].start();
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(1, started.get());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt.documents;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongObjectHashMapTest {
+
+    @Test
+    void putGetRemove() {
+
+        LongObjectHashMap<String> map = new LongObjectHashMap<>();
+
+        assertNull(map.put(42, "a"));
+        assertEquals("a", map.put(42, "b"));
+        assertEquals("b", map.get(42));
+        assertEquals("b", map.get(Long.valueOf(42)));
+        assertNull(map.get(Integer.valueOf(42)));
+        assertTrue(map.containsKey(42));
+        assertEquals(1, map.size());
+
+        assertEquals("b", map.remove(42));
+        assertNull(map.remove(42));
+        assertFalse(map.containsKey(42));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    void behavesLikeHashMap() {
+
+        // Lots of keys, lots of removes and a small table, so we get
+        // collisions, backward shifts and rehashes...
+        LongObjectHashMap<Long> map = new LongObjectHashMap<>(2);
+        HashMap<Long, Long> expected = new HashMap<>();
+        Random r = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+
+            long key = r.nextInt(500) - 250;
+
+            if (r.nextBoolean()) {
+                assertEquals(expected.put(key, (long) i), map.put(key, Long.valueOf(i)));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+
+            assertEquals(expected.size(), map.size());
+        }
+
+        assertEquals(expected, map);
+
+        long total = 0;
+        for (Long value : map.values()) {
+            total += value;
+        }
+        assertEquals(expected.values().stream().mapToLong(Long::longValue).sum(), total);
+    }
+
+    @Test
+    void nullValuesAreRejected() {
+        assertThrows(NullPointerException.class, () -> new LongObjectHashMap<String>().put(1, null));
+    }
+}
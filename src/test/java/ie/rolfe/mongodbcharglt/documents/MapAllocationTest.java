@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt.documents;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that LongObjectHashMap and RecentTransactions don't allocate once
+ * they have settled down: after a warm up, churning a steady number of
+ * entries through them keeps the same backing arrays, so nothing is rehashed
+ * or grown.
+ */
+class MapAllocationTest {
+
+    static final int ENTRIES = 16;
+    static final int OPS = 100000;
+
+    /**
+     * Sessions come and go, ENTRIES at a time.
+     *
+     * @param map  map to churn
+     * @param from first key to add
+     * @param ops  how many put/remove/get to do
+     */
+    static void churn(LongObjectHashMap<String> map, long from, int ops) {
+        for (long i = from; i < from + ops; i++) {
+            map.put(i + ENTRIES, "Usage");
+            map.remove(i);
+            assertNotNull(map.get(i + 1));
+        }
+    }
+
+    /**
+     * Transactions are added and the oldest dropped, ENTRIES at a time.
+     *
+     * @param recentTransactions ring to churn
+     * @param txns               transactions to add
+     * @param from               first one to add
+     * @param to                 one after the last one to add
+     */
+    static void churn(RecentTransactions recentTransactions, UserRecentTransactions[] txns, int from, int to) {
+        for (int i = from; i < to; i++) {
+            recentTransactions.add(txns[i]);
+            if (recentTransactions.size() > ENTRIES) {
+                recentTransactions.removeOldest();
+            }
+            assertTrue(recentTransactions.containsKey(txns[i].userTxnId));
+        }
+    }
+
+    @Test
+    void userUsageDoesntGrow() {
+
+        // Keys are outside the Long cache...
+        final LongObjectHashMap<String> map = new LongObjectHashMap<>();
+
+        for (long i = 0; i < ENTRIES; i++) {
+            map.put(1000 + i, "Usage");
+        }
+
+        churn(map, 1000, ENTRIES);
+
+        final long[] keys = map.keys;
+        final Object[] values = map.values;
+
+        churn(map, 1000 + ENTRIES, OPS);
+
+        assertEquals(ENTRIES, map.size());
+        assertSame(keys, map.keys);
+        assertSame(values, map.values);
+    }
+
+    @Test
+    void recentTransactionsDontGrow() {
+
+        final UserRecentTransactions[] txns = new UserRecentTransactions[OPS + ENTRIES * 2];
+
+        for (int i = 0; i < txns.length; i++) {
+            txns[i] = new UserRecentTransactions(1, "Txn" + i, new Date(i), 0, 0, i, "Test");
+        }
+
+        final RecentTransactions recentTransactions = new RecentTransactions();
+
+        churn(recentTransactions, txns, 0, ENTRIES * 2);
+
+        final UserRecentTransactions[] ring = recentTransactions.ring;
+        final int[] index = recentTransactions.index;
+
+        churn(recentTransactions, txns, ENTRIES * 2, txns.length);
+
+        assertEquals(ENTRIES, recentTransactions.size());
+        assertEquals(txns[txns.length - ENTRIES], recentTransactions.oldest());
+        assertSame(ring, recentTransactions.ring);
+        assertSame(index, recentTransactions.index);
+
+        // Clearing keeps them too...
+        recentTransactions.clear();
+        churn(recentTransactions, txns, 0, ENTRIES * 2);
+
+        assertSame(ring, recentTransactions.ring);
+        assertSame(index, recentTransactions.index);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt.documents;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecentTransactionsTest {
+
+    UserRecentTransactions getTxn(int i) {
+        return new UserRecentTransactions(1, "Txn" + i, new Date(i), 0, 0, i, "Test");
+    }
+
+    List<String> getIds(RecentTransactions rt) {
+        ArrayList<String> ids = new ArrayList<>();
+        for (UserRecentTransactions urt : rt.values()) {
+            ids.add(urt.userTxnId);
+        }
+        return ids;
+    }
+
+    @Test
+    void keepsOldestFirstAsTheRingWraps() {
+
+        RecentTransactions rt = new RecentTransactions();
+
+        for (int i = 0; i < 1000; i++) {
+
+            rt.add(getTxn(i));
+
+            if (rt.size() > 5) {
+                assertEquals("Txn" + (i - 5), rt.removeOldest().userTxnId);
+            }
+        }
+
+        assertEquals(List.of("Txn995", "Txn996", "Txn997", "Txn998", "Txn999"), getIds(rt));
+        assertEquals("Txn995", rt.oldest().userTxnId);
+        assertTrue(rt.containsKey("Txn999"));
+        assertFalse(rt.containsKey("Txn994"));
+        assertEquals(997, rt.get("Txn997").spentAmount);
+    }
+
+    @Test
+    void growsAndRemovesFromTheMiddle() {
+
+        RecentTransactions rt = new RecentTransactions();
+
+        for (int i = 0; i < 20; i++) {
+            rt.add(getTxn(i));
+        }
+
+        assertEquals(20, rt.size());
+        assertEquals(7, rt.remove("Txn7").spentAmount);
+        assertNull(rt.remove("Txn7"));
+        assertFalse(rt.containsKey("Txn7"));
+        assertEquals(19, rt.size());
+        assertEquals("Txn6", getIds(rt).get(6));
+        assertEquals("Txn8", getIds(rt).get(7));
+
+        for (int i = 0; i < 20; i++) {
+            if (i != 7) {
+                assertEquals(i, rt.get("Txn" + i).spentAmount);
+            }
+        }
+    }
+
+    @Test
+    void replacesInPlace() {
+
+        RecentTransactions rt = new RecentTransactions();
+        rt.add(getTxn(1));
+        rt.add(getTxn(2));
+
+        UserRecentTransactions newer = new UserRecentTransactions(1, "Txn1", new Date(), 0, 0, 100, "Test");
+        assertEquals(1, rt.put("Txn1", newer).spentAmount);
+
+        assertEquals(List.of("Txn1", "Txn2"), getIds(rt));
+        assertEquals(100, rt.get("Txn1").spentAmount);
+
+        assertThrows(IllegalArgumentException.class, () -> rt.put("Txn3", getTxn(4)));
+
+        rt.clear();
+        assertNull(rt.oldest());
+        assertNull(rt.removeOldest());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt.documents;
+
+import com.google.gson.Gson;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonInt32;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+import java.util.Random;
+
+import static ie.rolfe.mongodbcharglt.BaseChargingDemo.getExtraUserDataAsObject;
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserTableCodecTest {
+
+    final long SESSION_ID = 42;
+    final long USER_ID = 7;
+    final String TXN_ID = "Txn42";
+
+    final UserTableCodec codec = new UserTableCodec();
+
+    UserTable getTable() {
+        Gson g = new Gson();
+        ExtraUserData eud = getExtraUserDataAsObject(100, g, new Random());
+        UserTable ut = UserTable.getUserTable(eud, 1000, USER_ID, System.currentTimeMillis());
+        ut.setUserUsage(new UserUsageTable(USER_ID, 10, SESSION_ID, new Date()));
+        ut.reportQuotaUsage(5, 10, SESSION_ID, TXN_ID);
+        return ut;
+    }
+
+    BsonDocument encode(UserTable ut) {
+        BsonDocument doc = new BsonDocument();
+        codec.encode(new BsonDocumentWriter(doc), ut, EncoderContext.builder().build());
+        return doc;
+    }
+
+    UserTable decode(BsonDocument doc) {
+        return codec.decode(new BsonDocumentReader(doc), DecoderContext.builder().build());
+    }
+
+    void assertSameUser(UserTable expected, UserTable actual) {
+        assertEquals(expected._id, actual._id);
+        assertEquals(expected.userId, actual.userId);
+        assertEquals(expected.balance, actual.balance);
+        assertEquals(expected.userSoftLockSessionId, actual.userSoftLockSessionId);
+        assertEquals(expected.userDataObject.loyaltySchemeNumber, actual.userDataObject.loyaltySchemeNumber);
+        assertEquals(expected.userDataObject.mysteriousHexPayload, actual.userDataObject.mysteriousHexPayload);
+        assertEquals(expected.getUserUsage(SESSION_ID).allocatedAmount, actual.getUserUsage(SESSION_ID).allocatedAmount);
+        assertEquals(expected.getAvailableCredit(), actual.getAvailableCredit());
+        assertTrue(actual.txHasHappened(TXN_ID));
+        assertEquals(expected.getUserRecentTransactions().get(TXN_ID).spentAmount,
+                actual.getUserRecentTransactions().get(TXN_ID).spentAmount);
+    }
+
+    @Test
+    void roundTrip() {
+
+        UserTable ut = getTable();
+        BsonDocument doc = encode(ut);
+
+        assertEquals(BsonType.INT64, doc.get("balance").getBsonType());
+        assertEquals(BsonType.DATE_TIME, doc.get("userLastSeen").getBsonType());
+        assertEquals(BsonType.ARRAY, doc.get("userRecentTransactions").getBsonType());
+
+        UserTable decoded = decode(doc);
+        assertSameUser(ut, decoded);
+        assertEquals(ut.userLastSeen, decoded.userLastSeen);
+        assertEquals(ut.version, decoded.version);
+
+        // Documents from before we had versions are version 0...
+        doc.remove("version");
+        assertEquals(0, decode(doc).version);
+    }
+
+    @Test
+    void readsGsonDocuments() {
+
+        UserTable ut = getTable();
+        BsonDocument legacy = Document.parse(new Gson().toJson(ut)).toBsonDocument();
+
+        assertEquals(BsonType.STRING, legacy.get("userLastSeen").getBsonType());
+
+        UserTable decoded = decode(legacy);
+        assertSameUser(ut, decoded);
+
+        // Older documents have no reservedTotal, so it's worked out from userUsage...
+        legacy.remove("reservedTotal");
+        assertEquals(ut.reservedTotal, decode(legacy).reservedTotal);
+
+        // Gson's text dates only go down to the second...
+        assertEquals(ut.userLastSeen.getTime() / 1000, decoded.userLastSeen.getTime() / 1000);
+    }
+
+    @Test
+    void binaryPayload() {
+
+        UserTable ut = getTable();
+        ut.userDataObject.mysteriousHexPayload = null;
+        ut.userDataObject.binaryPayload = new byte[]{0, 1, (byte) 0xFF};
+
+        BsonDocument doc = encode(ut);
+        BsonDocument eudDoc = doc.getDocument("userDataObject");
+
+        assertEquals(BsonType.BINARY, eudDoc.get("binaryPayload").getBsonType());
+        assertFalse(eudDoc.containsKey("mysteriousHexPayload"));
+
+        assertArrayEquals(ut.userDataObject.binaryPayload, decode(doc).userDataObject.binaryPayload);
+        assertArrayEquals(ut.userDataObject.binaryPayload,
+                new ExtraUserData(Document.parse(eudDoc.toJson())).binaryPayload);
+    }
+
+    @Test
+    void skipsUnknownFields() {
+
+        UserTable ut = getTable();
+        BsonDocument doc = encode(ut);
+        doc.put("somethingNew", new BsonDocument("a", new BsonInt32(1)));
+
+        assertSameUser(ut, decode(doc));
+    }
+}
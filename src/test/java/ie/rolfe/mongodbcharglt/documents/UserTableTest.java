@@ -12,7 +12,7 @@ import ie.rolfe.mongodbcharglt.ReferenceData;
 import org.junit.jupiter.api.Test;
 
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 
 import static ie.rolfe.mongodbcharglt.BaseChargingDemo.getExtraUserDataAsObject;
@@ -128,8 +128,8 @@ class UserTableTest {
         assertEquals(3, t.getTxCount());
 
 // Fix date of oldest...
-        HashMap<String, UserRecentTransactions> userRecentTransactions = t.getUserRecentTransactions();
-        userRecentTransactions.get(testTxn + "_2").txnTime = new Date(System.currentTimeMillis() - (FIVE_MINUTES_IN_MS + 1));
+        Map<String, UserRecentTransactions> userRecentTransactions = t.getUserRecentTransactions();
+        userRecentTransactions.get("Create_" + USER_ID).txnTime = new Date(System.currentTimeMillis() - (FIVE_MINUTES_IN_MS + 1));
 
         String add3 = t.addCredit(EXTRA_CREDIT, testTxn + "_4");
         expected = EXTRA_CREDIT + UserTable.ADDED_BY_TXN + testTxn + "_4";
@@ -137,10 +137,30 @@ class UserTableTest {
 
         // Number of records should still be 3...
         assertEquals(3, t.getTxCount());
+        assertFalse(t.txHasHappened("Create_" + USER_ID));
 
 
     }
 
+    @Test
+    void recentTransactionsAreBounded() {
+
+        UserTable t = getBasicTable();
+
+        for (int i = 0; i < UserTable.MAX_RECENT_TRANSACTIONS * 2; i++) {
+            t.addCredit(1, "TestBound_" + i);
+        }
+
+        assertEquals(UserTable.MAX_RECENT_TRANSACTIONS, t.getTxCount());
+        assertEquals(INITIAL_CREDIT + UserTable.MAX_RECENT_TRANSACTIONS * 2, t.balance);
+
+        // The oldest ones went first...
+        assertFalse(t.txHasHappened("TestBound_" + (UserTable.MAX_RECENT_TRANSACTIONS - 1)));
+        assertTrue(t.txHasHappened("TestBound_" + UserTable.MAX_RECENT_TRANSACTIONS));
+        assertEquals("TestBound_" + UserTable.MAX_RECENT_TRANSACTIONS,
+                t.getUserRecentTransactions().keySet().iterator().next());
+    }
+
     @Test
     void reportQuotaUsageSmoketest() {
 
@@ -260,5 +280,29 @@ class UserTableTest {
 
     }
 
+    @Test
+    void reservedTotalMatchesUserUsage() {
+
+        UserTable t = getBasicTable();
+        Random r = new Random(42);
+
+        for (int i = 0; i < 200; i++) {
+
+            t.reportQuotaUsage(r.nextInt(20), r.nextInt(4) * 10, SESSION_ID + r.nextInt(5), "TestRT_" + i);
+
+            long expected = 0;
+            for (UserUsageTable uut : t.userUsage.values()) {
+                expected += uut.allocatedAmount;
+            }
+
+            assertEquals(expected, t.reservedTotal);
+            assertEquals(t.balance - expected, t.getAvailableCredit());
+        }
+
+        t.clearSessions();
+        assertEquals(0, t.getUsageBalance());
+        assertEquals(t.balance, t.getAvailableCredit());
+    }
+
 
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt.workload;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyGeneratorTest {
+
+    final int KEY_COUNT = 1000;
+    final int DRAWS = 100000;
+
+    int[] draw(KeyGenerator kg) {
+
+        int[] counts = new int[kg.getKeyCount()];
+
+        for (int i = 0; i < DRAWS; i++) {
+            int key = kg.nextKey();
+            assertTrue(key >= 0 && key < kg.getKeyCount(), "key " + key + " out of range");
+            counts[key]++;
+        }
+
+        return counts;
+    }
+
+    @Test
+    void uniform() {
+
+        int[] counts = draw(KeyGenerator.getKeyGenerator("uniform", KEY_COUNT));
+
+        // Expect about 100 each...
+        for (int count : counts) {
+            assertTrue(count > 30 && count < 200);
+        }
+    }
+
+    @Test
+    void zipfian() {
+
+        KeyGenerator kg = KeyGenerator.getKeyGenerator("zipfian:0.99", KEY_COUNT);
+        assertEquals("zipfian(theta=0.99)", kg.toString());
+
+        int[] counts = draw(kg);
+
+        // Key 0 is the busiest and gets far more than its uniform share...
+        assertTrue(counts[0] > counts[1]);
+        assertTrue(counts[1] > counts[KEY_COUNT / 2]);
+        assertTrue(counts[0] > DRAWS / 20);
+
+        assertThrows(IllegalArgumentException.class, () -> new ZipfianKeyGenerator(KEY_COUNT, 1));
+    }
+
+    @Test
+    void hotspot() {
+
+        int[] counts = draw(KeyGenerator.getKeyGenerator("hotspot:0.1:0.9", KEY_COUNT));
+
+        int hot = 0;
+        for (int i = 0; i < KEY_COUNT / 10; i++) {
+            hot += counts[i];
+        }
+
+        assertTrue(hot > DRAWS * 0.85 && hot < DRAWS * 0.95);
+    }
+
+    @Test
+    void latest() {
+
+        int[] counts = draw(KeyGenerator.getKeyGenerator("latest:10", KEY_COUNT));
+
+        for (int i = 0; i < KEY_COUNT - 10; i++) {
+            assertEquals(0, counts[i]);
+        }
+
+        assertTrue(counts[KEY_COUNT - 1] > 0);
+    }
+
+    @Test
+    void singleKey() {
+
+        assertEquals(0, KeyGenerator.getKeyGenerator("zipfian", 1).nextKey());
+        assertEquals(0, KeyGenerator.getKeyGenerator("hotspot", 1).nextKey());
+        assertEquals(0, KeyGenerator.getKeyGenerator("latest", 1).nextKey());
+        assertThrows(IllegalArgumentException.class, () -> KeyGenerator.getKeyGenerator("gaussian", KEY_COUNT));
+    }
+}
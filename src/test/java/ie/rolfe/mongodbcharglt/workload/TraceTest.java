@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt.workload;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TraceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void roundTrip() throws IOException {
+
+        final int records = 10000;
+        Path path = tempDir.resolve("trace.bin");
+        OperationType[] ops = OperationType.values();
+
+        try (TraceWriter writer = new TraceWriter(path, 500, 2.5)) {
+            for (int i = 0; i < records; i++) {
+                writer.write(ops[i % ops.length], i % 500, Long.MIN_VALUE + i, i * 2, i % 100, i, i * 1000L);
+            }
+        }
+
+        assertEquals(TraceWriter.HEADER_SIZE + (long) records * TraceWriter.RECORD_SIZE, Files.size(path));
+
+        // Small chunks so we cross chunk boundaries...
+        try (TraceReader reader = new TraceReader(path, 333)) {
+
+            assertEquals(500, reader.getUserCount());
+            assertEquals(2.5, reader.getTpMs());
+            assertEquals(records, reader.getRecordCount());
+
+            for (int i = 0; i < records; i++) {
+                assertTrue(reader.next());
+                assertEquals(ops[i % ops.length], reader.getOperation());
+                assertEquals(i % 500, reader.getUserId());
+                assertEquals(Long.MIN_VALUE + i, reader.getSessionId());
+                assertEquals(i * 2, reader.getUnitsUsed());
+                assertEquals(i % 100, reader.getUnitsWanted());
+                assertEquals(i, reader.getTxnSeq());
+                assertEquals(i * 1000L, reader.getIntendedOffsetNs());
+            }
+
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    void notATrace() throws IOException {
+
+        Path path = tempDir.resolve("junk.bin");
+        Files.write(path, new byte[TraceWriter.HEADER_SIZE]);
+
+        assertThrows(IOException.class, () -> new TraceReader(path));
+    }
+}
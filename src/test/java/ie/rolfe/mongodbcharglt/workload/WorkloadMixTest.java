@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2025 David Rolfe
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package ie.rolfe.mongodbcharglt.workload;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkloadMixTest {
+
+    @Test
+    void proportions() {
+
+        WorkloadMix mix = new WorkloadMix("report_usage=70, ADD_CREDIT=10,POINT_READ=20,KV_FULL_UPDATE=0");
+
+        assertEquals(100, mix.getTotalWeight());
+        assertEquals(70, mix.getWeight(OperationType.REPORT_USAGE));
+        assertEquals(0, mix.getWeight(OperationType.KV_FULL_UPDATE));
+        assertEquals("ADD_CREDIT=10,REPORT_USAGE=70,POINT_READ=20", mix.toString());
+
+        int[] counts = new int[OperationType.values().length];
+
+        for (int i = 0; i < 100000; i++) {
+            counts[mix.nextOperation().ordinal()]++;
+        }
+
+        assertTrue(counts[OperationType.REPORT_USAGE.ordinal()] > 68000 && counts[OperationType.REPORT_USAGE.ordinal()] < 72000);
+        assertTrue(counts[OperationType.ADD_CREDIT.ordinal()] > 9000 && counts[OperationType.ADD_CREDIT.ordinal()] < 11000);
+        assertEquals(0, counts[OperationType.KV_FULL_UPDATE.ordinal()]);
+        assertEquals(0, counts[OperationType.KV_GET_AND_LOCK.ordinal()]);
+    }
+
+    @Test
+    void defaultMix() {
+
+        WorkloadMix mix = new WorkloadMix(WorkloadMix.DEFAULT_MIX);
+
+        for (OperationType op : OperationType.values()) {
+            assertTrue(mix.getWeight(op) > 0, op + " missing from default mix");
+        }
+    }
+
+    @Test
+    void badSpecs() {
+
+        assertThrows(IllegalArgumentException.class, () -> new WorkloadMix("ADD_CREDIT=0"));
+        assertThrows(IllegalArgumentException.class, () -> new WorkloadMix("ADD_CREDIT=-1,POINT_READ=5"));
+        assertThrows(IllegalArgumentException.class, () -> new WorkloadMix("ADD_CREDIT"));
+        assertThrows(IllegalArgumentException.class, () -> new WorkloadMix("DROP_TABLE=5"));
+    }
+}